@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.QuoteMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the CSV export of a table, as done by the database uploader, against an in memory H2 database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvExportBenchmark {
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private Connection conn;
+
+    @Setup
+    public void setup() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:csvexport" + rows + ";DB_CLOSE_DELAY=-1");
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("drop table if exists EXPORT_TEST");
+            statement.execute("create table EXPORT_TEST (ID int primary key, NAME varchar(64), AMOUNT decimal(12,2), CREATED timestamp, ACTIVE boolean, NOTES varchar(256))");
+            statement.execute("insert into EXPORT_TEST select X, 'Name ' || X, X * 1.25, dateadd('SECOND', X, timestamp '2020-01-01 00:00:00'), mod(X, 2) = 0, case when mod(X, 5) = 0 then null else 'Note, with \"quotes\" ' || X end from system_range(1, " + rows + ")");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Benchmark
+    public long csvWriter() throws IOException, SQLException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from EXPORT_TEST");
+             CsvWriter writer = new CsvWriter(out, resultSet.getMetaData())) {
+            writer.writeHeader();
+            writer.writeAll(resultSet);
+        }
+        return out.count;
+    }
+
+    /**
+     * The commons-csv printer the uploader used before, which produces the same output
+     */
+    @Benchmark
+    public long printRecords() throws IOException, SQLException {
+        CountingOutputStream out = new CountingOutputStream();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from EXPORT_TEST");
+             CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(out, StandardCharsets.UTF_8), CSVFormat.RFC4180.withQuoteMode(QuoteMode.ALL_NON_NULL).withHeader(resultSet))) {
+            printer.printRecords(resultSet);
+        }
+        return out.count;
+    }
+
+    /**
+     * Discard the output, just counting the bytes
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
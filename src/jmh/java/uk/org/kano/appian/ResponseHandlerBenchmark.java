@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark reading response bodies of different sizes as text and as base64.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Thread)
+public class ResponseHandlerBenchmark {
+    private static final ContentType TEXT_CSV = ContentType.parse("text/csv;charset=utf-8");
+
+    @Param({"1024", "1048576", "104857600"})
+    public int bodySize;
+
+    @Param({"false", "true"})
+    public boolean base64;
+
+    private byte[] body;
+    private BasicResponseHandler brh;
+
+    @Setup
+    public void setup() {
+        // Printable text, so that the body decodes as-is when not encoded
+        body = new byte[bodySize];
+        byte[] row = "\"12345\",\"Example data\",\"2020-01-01 00:00:00\"\n".getBytes();
+        for (int i = 0; i < bodySize; i += row.length) {
+            System.arraycopy(row, 0, body, i, Math.min(row.length, bodySize - i));
+        }
+
+        brh = new BasicResponseHandler();
+        brh.setEncodeBodyAsBase64(base64);
+    }
+
+    @Benchmark
+    public IntegrationResponse handleResponse() throws HttpException, IOException {
+        BasicClassicHttpResponse classicHttpResponse = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+        classicHttpResponse.setEntity(new ByteArrayEntity(body, TEXT_CSV, false));
+        return brh.handleResponse(classicHttpResponse);
+    }
+}
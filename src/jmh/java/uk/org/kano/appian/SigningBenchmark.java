@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark request signing with a range of query string and header counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SigningBenchmark {
+    @Param({"0", "4", "16"})
+    public int queryParameters;
+
+    @Param({"0", "8", "32"})
+    public int headers;
+
+    private SigningHttpRequestInterceptor signer;
+    private BasicClassicHttpRequest request;
+    private ByteArrayEntity entity;
+
+    @Setup
+    public void setup() {
+        signer = new SigningHttpRequestInterceptor("account", Base64.getEncoder().encodeToString(new byte[64]));
+
+        StringBuilder uri = new StringBuilder("https://account.dfs.core.windows.net/filesystem/directory/file.csv");
+        for (int i = 0; i < queryParameters; i++) {
+            uri.append(0 == i ? '?' : '&').append("parameter").append(i).append("=value%20").append(i);
+        }
+        request = new BasicClassicHttpRequest("PATCH", URI.create(uri.toString()));
+        signer.getAuthenticationHeaders().forEach(request::addHeader);
+        for (int i = 0; i < headers; i++) {
+            request.addHeader(0 == i % 2 ? "x-ms-header-" + i : "X-Other-" + i, "value " + i);
+        }
+        entity = new ByteArrayEntity(new byte[1024], ContentType.parse("text/csv;charset=utf8"), false);
+    }
+
+    @Benchmark
+    public Object process() throws IOException {
+        request.removeHeaders("x-ms-date");
+        request.removeHeaders("Authorization");
+        signer.process(request, entity, null);
+        return request.getFirstHeader("Authorization");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Choose the size of each append for an upload. The size starts at the minimum and doubles while appends complete
+ * quickly and larger appends do not lower the throughput, and halves when appends become slow. The size is never more
+ * than the ceiling, or more than the buffers in use can take from the free heap. Sizes are always the minimum size
+ * times a power of two.
+ */
+public class AdaptiveChunkSizer {
+    public static final int MIN_CHUNK_SIZE = 1048576;
+
+    // Appends quicker than this can grow, and ones more than twice this shrink
+    private static final long TARGET_LATENCY_NANOS = 2_000_000_000L;
+    // The number of appends at a size before it can grow
+    private static final int SAMPLES_BEFORE_GROWTH = 2;
+    // The share of the free heap the upload buffers may take
+    private static final double HEAP_FRACTION = 0.25;
+    // The smoothing of the throughput at the current size
+    private static final double THROUGHPUT_WEIGHT = 0.5;
+
+    private final int minChunkSize;
+    private final int buffers;
+    private int maxChunkSize;
+    private int chunkSize;
+    private int samples = 0;
+    private double throughput = 0;
+    private double bestThroughput = 0;
+    private final List<Integer> chunkSizes = new ArrayList<>();
+
+    /**
+     * Create a sizer
+     * @param minChunkSize The smallest, and starting, append size
+     * @param maxChunkSize The largest append size
+     * @param buffers The number of buffers of the chosen size that may be held at once
+     */
+    public AdaptiveChunkSizer(int minChunkSize, int maxChunkSize, int buffers) {
+        this.minChunkSize = Math.max(1, minChunkSize);
+        this.maxChunkSize = Math.max(this.minChunkSize, maxChunkSize);
+        this.buffers = Math.max(1, buffers);
+        this.chunkSize = this.minChunkSize;
+        chunkSizes.add(chunkSize);
+    }
+
+    /**
+     * @return The size to use for the next append
+     */
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return Each size that has been chosen, in order
+     */
+    public synchronized List<Integer> getChunkSizes() {
+        return new ArrayList<>(chunkSizes);
+    }
+
+    /**
+     * Record a completed append, and choose the size of the following ones. Only appends of the current size are
+     * counted, so the short final append and any in flight when the size changed are ignored.
+     * @param length The length of the append
+     * @param elapsedNanos The time the append took
+     */
+    public synchronized void record(int length, long elapsedNanos) {
+        if (length != chunkSize || elapsedNanos <= 0) return;
+
+        double sample = (double) length / elapsedNanos;
+        throughput = 0 == samples ? sample : THROUGHPUT_WEIGHT * sample + (1 - THROUGHPUT_WEIGHT) * throughput;
+        samples++;
+
+        if (elapsedNanos > 2 * TARGET_LATENCY_NANOS) {
+            resize(chunkSize / 2);
+        } else if (samples >= SAMPLES_BEFORE_GROWTH) {
+            if (throughput < bestThroughput * 0.9) {
+                // Larger appends were no faster, so go back and stay there
+                maxChunkSize = Math.max(minChunkSize, chunkSize / 2);
+                resize(maxChunkSize);
+            } else if (elapsedNanos < TARGET_LATENCY_NANOS) {
+                bestThroughput = Math.max(bestThroughput, throughput);
+                resize(chunkSize * 2L);
+            }
+        }
+    }
+
+    /**
+     * Change the size, keeping it within the limits
+     * @param size The wanted size
+     */
+    private void resize(long size) {
+        long limit = Math.min(maxChunkSize, getHeapLimit());
+        int newSize = minChunkSize;
+        while ((long) newSize * 2 <= Math.min(size, limit)) newSize *= 2;
+        if (newSize == chunkSize) return;
+
+        chunkSize = newSize;
+        samples = 0;
+        throughput = 0;
+        chunkSizes.add(chunkSize);
+    }
+
+    /**
+     * @return The largest size for which all the buffers fit in the allowed share of the free heap
+     */
+    private long getHeapLimit() {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (long) (free * HEAP_FRACTION) / buffers;
+    }
+}
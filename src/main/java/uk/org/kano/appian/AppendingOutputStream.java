@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that writes straight into the buffers of a ParallelAppender. Each buffer is appended as soon as it
+ * is full, so the data is only copied once, into the buffer that is then sent. Writes block while all the buffers are
+ * in flight, and fail once any append has failed.
+ * <p>
+ * flush() does nothing, as every append other than the last must be a full buffer. The last partial buffer is
+ * appended on close().
+ */
+public class AppendingOutputStream extends OutputStream {
+    private final ParallelAppender appender;
+    private byte[] buf = null;
+    private int bufLen = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a stream
+     * @param appender The appender to write to
+     */
+    public AppendingOutputStream(ParallelAppender appender) {
+        this.appender = appender;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        takeBuffer();
+        buf[bufLen++] = (byte) b;
+        if (bufLen == buf.length) append();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            takeBuffer();
+            int copyLen = Math.min(len, buf.length - bufLen);
+            System.arraycopy(b, off, buf, bufLen, copyLen);
+            bufLen += copyLen;
+            off += copyLen;
+            len -= copyLen;
+            if (bufLen == buf.length) append();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (null == buf) return;
+
+        if (bufLen > 0 && null == appender.getError()) {
+            append();
+        } else {
+            appender.returnBuffer(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * Make sure there is a buffer to write to, waiting for one if they are all in flight
+     * @throws IOException If the stream is closed, an append has failed, or the wait is interrupted
+     */
+    private void takeBuffer() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        IntegrationResponse error = appender.getError();
+        if (null != error) throw new IOException(error.getError().getTitle() + ": " + error.getError().getDetail());
+        if (null != buf) return;
+
+        try {
+            buf = appender.takeBuffer();
+            bufLen = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for an upload buffer");
+        }
+    }
+
+    /**
+     * Hand the current buffer to the appender
+     */
+    private void append() {
+        appender.append(buf, bufLen);
+        buf = null;
+        bufLen = 0;
+    }
+}
@@ -22,6 +22,11 @@ import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfigurat
 import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
 import com.appian.connectedsystems.templateframework.sdk.configuration.ConfigurationDescriptor;
 
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * Utilities for working with Appian
  */
@@ -36,4 +41,25 @@ public class AppianUtils {
         desc = integrationTemplate.getConfigurationDescriptor(desc, connectedSystemConfiguration.toConfiguration(), null, executionContext);
         return SimpleConfiguration.from(desc, null, executionContext);
     }
+
+    /**
+     * Resolve a file on the Appian server, which must be within the local root of the connected system. Links are
+     * followed before the check, so neither a relative path nor a link can reach outside the root.
+     * @param localPath The file, absolute or relative to the local root
+     * @return The real path of the file
+     * @throws IOException If there is no local root, the file does not exist, or it is outside the local root
+     */
+    public static Path getLocalPath(SimpleConfiguration connectedSystemConfiguration, String localPath) throws IOException {
+        String localRoot = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT);
+        if (null == localRoot || localRoot.trim().isEmpty()) {
+            throw new AccessDeniedException(localPath, null, "no local root is set on the connected system");
+        }
+
+        Path root = Paths.get(localRoot.trim()).toRealPath();
+        Path path = root.resolve(localPath.trim()).toRealPath();
+        if (!path.startsWith(root)) {
+            throw new AccessDeniedException(localPath, null, "outside the local root " + root);
+        }
+        return path;
+    }
 }
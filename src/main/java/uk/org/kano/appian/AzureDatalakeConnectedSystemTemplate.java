@@ -33,6 +33,8 @@ public class AzureDatalakeConnectedSystemTemplate extends SimpleTestableConnecte
     static String CS_ADLS_G2_ACCOUNT_NAME = "accountName";
     static String CS_ADLS_G2_ACCOUNT_KEY = "accountKey";
     static String CS_ADLS_G2_FILESYSTEM = "fileSystem";
+    static String CS_ADLS_G2_ENDPOINT = "endpoint";
+    static String CS_ADLS_G2_LOCAL_ROOT = "localRoot";
     static String CS_ADLS_G2_DOMAINNAME = ".dfs.core.windows.net";
 
     /**
@@ -61,6 +63,18 @@ public class AzureDatalakeConnectedSystemTemplate extends SimpleTestableConnecte
                         .description("The File System of the ADLS resource eg: https://accountname.blob.core.windows.net/filesystem")
                         .isRequired(true)
                         .isImportCustomizable(true)
+                        .build(),
+                textProperty(CS_ADLS_G2_ENDPOINT)
+                        .label("Endpoint")
+                        .description("Override the service endpoint, eg: http://localhost:10000/accountname. Default is https://accountname.dfs.core.windows.net")
+                        .isRequired(false)
+                        .isImportCustomizable(true)
+                        .build(),
+                textProperty(CS_ADLS_G2_LOCAL_ROOT)
+                        .label("Local root")
+                        .description("The directory on the Appian server that local files may be uploaded from. Without it, only Appian documents can be uploaded.")
+                        .isRequired(false)
+                        .isImportCustomizable(true)
                         .build()
         );
     }
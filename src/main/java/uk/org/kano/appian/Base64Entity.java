@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * An entity for part of a base64 string, decoded as it is sent. The string is read a character at a time, so the
+ * decoded data is never held in memory as a whole, and a large string can be split into several entities on base64
+ * quantum boundaries to send as separate appends.
+ */
+public class Base64Entity extends AbstractHttpEntity {
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+    private final String content;
+    private final int start;
+    private final int end;
+    private final long length;
+
+    /**
+     * Create an entity
+     * @param content The base64 string
+     * @param start The first character, which must start a quantum
+     * @param end The character after the last, which must end a quantum
+     * @param length The decoded length
+     * @param contentType The content type of the decoded data
+     */
+    private Base64Entity(String content, int start, int end, long length, ContentType contentType) {
+        super(contentType, null, false);
+        this.content = content;
+        this.start = start;
+        this.end = end;
+        this.length = length;
+    }
+
+    /**
+     * Split a base64 string into entities
+     * @param content The base64 string, without line breaks
+     * @param maxLength The largest decoded length of each entity
+     * @param contentType The content type of the decoded data
+     * @return The entities, in order, with at least one even if the string is empty
+     * @throws IllegalArgumentException If the string is not valid base64
+     */
+    public static List<Base64Entity> split(String content, int maxLength, ContentType contentType) {
+        long decodedLength = decodedLength(content);
+        if (decodedLength < 0) throw new IllegalArgumentException("The content is not valid base64");
+        int quantumChars = Math.max(1, maxLength / 3) * 4;
+
+        List<Base64Entity> entities = new ArrayList<>();
+        int start = 0;
+        do {
+            int end = (int) Math.min(content.length(), (long) start + quantumChars);
+            long length = end == content.length() ? decodedLength - (long) start / 4 * 3 : (long) (end - start) / 4 * 3;
+            entities.add(new Base64Entity(content, start, end, length, contentType));
+            start = end;
+        } while (start < content.length());
+        return entities;
+    }
+
+    /**
+     * Check a base64 string and work out its decoded length, without decoding it
+     * @param content The base64 string
+     * @return The decoded length, or -1 if the string is not valid base64
+     */
+    public static long decodedLength(String content) {
+        int chars = content.length();
+        if (0 != chars % 4) return -1;
+
+        int padding = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = content.charAt(i);
+            if ('=' == c) {
+                if (i < chars - 2 || (i == chars - 2 && '=' != content.charAt(chars - 1))) return -1;
+                padding++;
+            } else if (!(c >= 'A' && c <= 'Z') && !(c >= 'a' && c <= 'z') && !(c >= '0' && c <= '9') && '+' != c && '/' != c) {
+                return -1;
+            }
+        }
+        return (long) chars / 4 * 3 - padding;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() {
+        return Base64.getDecoder().wrap(new InputStream() {
+            private int position = start;
+
+            @Override
+            public int read() {
+                return position < end ? content.charAt(position++) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= end) return -1;
+                int count = Math.min(len, end - position);
+                for (int i = 0; i < count; i++) b[off + i] = (byte) content.charAt(position++);
+                return count;
+            }
+        });
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        byte[] buf = new byte[(int) Math.min(OUTPUT_BUFFER_SIZE, Math.max(1, length))];
+        try (InputStream in = getContent()) {
+            int count;
+            while ((count = in.read(buf)) > 0) outStream.write(buf, 0, count);
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -39,6 +40,12 @@ import java.util.Map;
  */
 public class BasicResponseHandler implements HttpClientResponseHandler<IntegrationResponse> {
     private static final Logger logger = LoggerFactory.getLogger(BasicResponseHandler.class);
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int MAX_PRESIZED_BODY = Integer.MAX_VALUE / 2;
+
+    // Read buffers are reused by each thread rather than allocated per response
+    private static final ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[READ_BUFFER_SIZE]);
+
     private boolean missingResourceIsError = true;
     private boolean encodeBodyAsBase64 = false;
 
@@ -70,41 +77,24 @@ public class BasicResponseHandler implements HttpClientResponseHandler<Integrati
             // Parse the properties
             responseMap.put("properties", getProperties(classicHttpResponse));
             responseMap.put("requestId", getHeaderValue(classicHttpResponse.getHeader("x-ms-request-id")));
+            responseMap.put("etag", getHeaderValue(classicHttpResponse.getFirstHeader("ETag")));
             responseMap.put("exists", true);
             responseMap.put("body", null);
             responseMap.put("length", null);
             responseMap.put("type", null);
+            responseMap.put("encoding", getHeaderValue(classicHttpResponse.getFirstHeader("Content-Encoding")));
 
-            // Extract the response body.
+            // Extract the response body. The client does not decompress, so a stored encoding is removed here.
             HttpEntity entity = classicHttpResponse.getEntity();
             if (null != entity) {
                 try (InputStream entityInputStream = entity.getContent()) {
-                    String body = null;
                     ContentType contentType = ContentType.parse(entity.getContentType());
                     if (null != contentType) responseMap.put("type", contentType.toString());
 
-                    if (null == contentType) {
-                        // Happens on a delete
-                    } else if (ContentType.APPLICATION_JSON.isSameMimeType(contentType) || ContentType.APPLICATION_OCTET_STREAM.isSameMimeType(contentType) || contentType.getMimeType().startsWith("text/")) { // Read the body
-                        // If application/octet-stream, force read to a string.
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        int bufLen, bufSize=1024;
-                        byte[] buf = new byte[1024];
-                        while ((bufLen = entityInputStream.read(buf, 0, bufSize)) > 0) {
-                            baos.write(buf, 0, bufLen);
-                        }
-
-                        if (encodeBodyAsBase64 || ContentType.APPLICATION_OCTET_STREAM.isSameMimeType(contentType)) {
-                            body = Base64.getEncoder().encodeToString(baos.toByteArray());
-                        } else {
-                            Charset charset = contentType.getCharset();
-                            if (null == charset) charset = StandardCharsets.UTF_8;
-                            body = new String(baos.toByteArray(), charset);
-                        }
-                    } else {
-                        logger.info("Do not know how to handle a response body of type " + entity.getContentType());
+                    String body = null;
+                    if (null != contentType) { // A delete has no content type
+                        body = readBody(entityInputStream, contentType, entity.getContentEncoding(), entity.getContentLength());
                     }
-
                     responseMap.put("body", body);
                     rv = IntegrationResponse.forSuccess(responseMap).build();
                 } catch (IOException e) {
@@ -136,8 +126,10 @@ public class BasicResponseHandler implements HttpClientResponseHandler<Integrati
                 responseMap.put("exists", false);
                 rv = IntegrationResponse.forSuccess(responseMap).build();
             }
-        } else if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR && status <= HttpStatus.SC_SERVICE_UNAVAILABLE) {
-            rv = LogUtil.createError("Service Unavailable", classicHttpResponse.getReasonPhrase());
+        } else if (status == HttpStatus.SC_TOO_MANY_REQUESTS || (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR && status <= HttpStatus.SC_GATEWAY_TIMEOUT)) {
+            // Only seen once the retries have been used up
+            String errorCode = getHeaderValue(classicHttpResponse.getFirstHeader("x-ms-error-code"));
+            rv = LogUtil.createError("Service Unavailable", null == errorCode ? classicHttpResponse.getReasonPhrase() : classicHttpResponse.getReasonPhrase() + " (" + errorCode + ")");
         } else {
             rv = LogUtil.createError("Unknown error", "An unknown error occurred ("+status+" - " + classicHttpResponse.getReasonPhrase() + ")");
         }
@@ -150,6 +142,57 @@ public class BasicResponseHandler implements HttpClientResponseHandler<Integrati
         return rv.toBuilder().withDiagnostic(integrationDesignerDiagnostic).build();
     }
 
+    /**
+     * Read a body as a string. JSON and text are decoded with their charset, and application/octet-stream, or any body
+     * when base64 is requested, is base64 encoded as it is read. A body with a stored gzip or zstd encoding is
+     * decompressed first, and one with an unknown encoding is returned as base64.
+     * @param in The body
+     * @param contentType The content type of the body
+     * @param contentEncoding The stored content encoding, or null
+     * @param contentLength The length of the body if known, otherwise -1. Only used to size the output.
+     * @return The body, or null if the content type is not handled
+     * @throws IOException On a read failure
+     */
+    public String readBody(InputStream in, ContentType contentType, String contentEncoding, long contentLength) throws IOException {
+        if (!ContentType.APPLICATION_JSON.isSameMimeType(contentType) && !ContentType.APPLICATION_OCTET_STREAM.isSameMimeType(contentType) && !contentType.getMimeType().startsWith("text/")) {
+            logger.info("Do not know how to handle a response body of type " + contentType);
+            return null;
+        }
+
+        // The output is sized from the content length so that it does not need to grow, unless the body is compressed
+        Compression compression = Compression.forContentEncoding(contentEncoding);
+        int sizeHint = Compression.NONE == compression && contentLength >= 0 && contentLength <= MAX_PRESIZED_BODY ? (int) contentLength : READ_BUFFER_SIZE;
+        try (InputStream bodyInputStream = null == compression ? in : compression.unwrap(in)) {
+            if (encodeBodyAsBase64 || null == compression || ContentType.APPLICATION_OCTET_STREAM.isSameMimeType(contentType)) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(4 * ((sizeHint + 2) / 3));
+                try (OutputStream base64OutputStream = Base64.getEncoder().wrap(baos)) {
+                    copy(bodyInputStream, base64OutputStream);
+                }
+                return baos.toString(StandardCharsets.US_ASCII.name());
+            } else {
+                Charset charset = contentType.getCharset();
+                if (null == charset) charset = StandardCharsets.UTF_8;
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(sizeHint);
+                copy(bodyInputStream, baos);
+                return baos.toString(charset.name());
+            }
+        }
+    }
+
+    /**
+     * Copy a stream using the thread's read buffer
+     * @param in The source
+     * @param out The destination
+     * @throws IOException On a read or write failure
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = readBuffers.get();
+        int bufLen;
+        while ((bufLen = in.read(buf, 0, buf.length)) > 0) {
+            out.write(buf, 0, bufLen);
+        }
+    }
+
     /**
      * Get the Azure properties from the object
      * @param classicHttpResponse
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression applied to exported files. gzip is in the JDK. zstd needs the zstd-jni library, which is only bundled
+ * with the plugin when it is built with the zstd profile, so it is loaded by name.
+ */
+public enum Compression {
+    NONE("none", "", null),
+    GZIP("gzip", ".gz", "gzip"),
+    ZSTD("zstd", ".zst", "zstd");
+
+    private static final int GZIP_BUFFER_SIZE = 65536;
+    private static final int ZSTD_LEVEL = 3;
+    private static final String ZSTD_OUTPUT_STREAM = "com.github.luben.zstd.ZstdOutputStream";
+    private static final String ZSTD_INPUT_STREAM = "com.github.luben.zstd.ZstdInputStream";
+
+    private final String name;
+    private final String extension;
+    private final String contentEncoding;
+
+    Compression(String name, String extension, String contentEncoding) {
+        this.name = name;
+        this.extension = extension;
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * Get the compression by name
+     * @param name none, gzip or zstd, ignoring case. Null or empty is none.
+     * @return The compression, or null if the name is not known
+     */
+    public static Compression forName(String name) {
+        if (null == name || name.trim().isEmpty()) return NONE;
+        for (Compression compression: values()) {
+            if (compression.name.equalsIgnoreCase(name.trim())) return compression;
+        }
+        return null;
+    }
+
+    /**
+     * Get the compression of a stored content encoding
+     * @param contentEncoding The content encoding, ignoring case. Null or empty is none.
+     * @return The compression, or null if the encoding is not known
+     */
+    public static Compression forContentEncoding(String contentEncoding) {
+        if (null == contentEncoding || contentEncoding.trim().isEmpty()) return NONE;
+        for (Compression compression: values()) {
+            if (null != compression.contentEncoding && compression.contentEncoding.equalsIgnoreCase(contentEncoding.trim())) return compression;
+        }
+        return null;
+    }
+
+    /**
+     * @return The name of the compression
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The file extension to add, including the dot
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return The content encoding of a compressed file, or null if not compressed
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @return True if the compression can be used
+     */
+    public boolean isAvailable() {
+        if (ZSTD != this) return true;
+        try {
+            Class.forName(ZSTD_OUTPUT_STREAM);
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wrap a stream so that whatever is written to it is compressed. Closing the returned stream finishes the
+     * compression and closes the wrapped stream.
+     * @param out The stream to write the compressed data to
+     * @return The compressing stream
+     * @throws IOException If the compressor cannot be created
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            case ZSTD:
+                try {
+                    Constructor<?> constructor = Class.forName(ZSTD_OUTPUT_STREAM).getConstructor(OutputStream.class, int.class);
+                    return (OutputStream) constructor.newInstance(out, ZSTD_LEVEL);
+                } catch (InvocationTargetException e) {
+                    throw new IOException("Unable to create the zstd compressor", e.getCause());
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    throw new IOException("zstd compression is not available", e);
+                }
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Wrap a stream so that whatever is read from it is decompressed. Closing the returned stream closes the wrapped
+     * stream.
+     * @param in The stream to read the compressed data from
+     * @return The decompressing stream
+     * @throws IOException If the decompressor cannot be created
+     */
+    public InputStream unwrap(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, GZIP_BUFFER_SIZE);
+            case ZSTD:
+                try {
+                    Constructor<?> constructor = Class.forName(ZSTD_INPUT_STREAM).getConstructor(InputStream.class);
+                    return (InputStream) constructor.newInstance(in);
+                } catch (InvocationTargetException e) {
+                    throw new IOException("Unable to create the zstd decompressor", e.getCause());
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    throw new IOException("zstd compression is not available", e);
+                }
+            default:
+                return in;
+        }
+    }
+}
@@ -34,4 +34,31 @@ public final class Constants {
     public static final String SC_ATTR_MIME_TYPE = "mimeType";
     public static final String SC_ATTR_TABLES = "tables";
     public static final String SC_ATTR_JNDI_RESOURCE = "jdniResource";
+    public static final String SC_ATTR_MAX_IN_FLIGHT = "maxInFlight";
+    public static final String SC_ATTR_PARALLEL_TABLES = "parallelTables";
+    public static final String SC_ATTR_PARALLEL_DOWNLOAD = "parallelDownload";
+    public static final String SC_ATTR_MAX_RESULTS = "maxResults";
+    public static final String SC_ATTR_MAX_PAGES = "maxPages";
+    public static final String SC_ATTR_CONTINUATION = "continuation";
+    public static final String SC_ATTR_SINGLE_REQUEST = "singleRequest";
+    public static final String SC_ATTR_POSITION = "position";
+    public static final String SC_ATTR_ETAG = "etag";
+    public static final String SC_ATTR_MAX_CHUNK_SIZE = "maxChunkSize";
+    public static final String SC_ATTR_COMPRESSION = "compression";
+    public static final String SC_ATTR_CONTENT_ENCODING = "contentEncoding";
+    public static final String SC_ATTR_FORMAT = "format";
+    public static final String SC_ATTR_ROW_GROUP_SIZE = "rowGroupSize";
+    public static final String SC_ATTR_WATERMARK_COLUMN = "watermarkColumn";
+    public static final String SC_ATTR_APPEND_TO_FILE = "appendToFile";
+    public static final String SC_ATTR_PARTITIONS = "partitions";
+    public static final String SC_ATTR_PARTITION_COLUMN = "partitionColumn";
+    public static final String SC_ATTR_MAX_CONNECTIONS = "maxConnections";
+    public static final String SC_ATTR_OPERATIONS = "operations";
+    public static final String SC_ATTR_MAX_PARALLEL = "maxParallel";
+    public static final String SC_ATTR_DOCUMENT = "document";
+    public static final String SC_ATTR_SOURCE_FILE = "sourceFile";
+    public static final String SC_ATTR_PROPERTIES = "properties";
+    public static final String SC_ATTR_SOURCE_DIRECTORY = "sourceDirectory";
+    public static final String SC_ATTR_COMPARE = "compare";
+    public static final String SC_ATTR_DELETE_ORPHANS = "deleteOrphans";
 }
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+
+/**
+ * Write a result set as RFC4180 CSV in UTF-8. The column types are read once, and each value is read with the matching
+ * primitive getter and encoded straight into a reusable byte buffer, so numbers, dates and times are written without
+ * any per-cell objects. Every non-null value is quoted and nulls are left empty, the same as a commons-csv printer with
+ * QuoteMode.ALL_NON_NULL, and values are written as their JDBC objects would print them.
+ */
+public class CsvWriter implements Closeable {
+    private static final int BUFFER_SIZE = 65536;
+    private static final byte QUOTE = '"';
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+    private enum Kind { BOOLEAN, LONG, FLOAT, DOUBLE, DECIMAL, DATE, TIME, TIMESTAMP, STRING, BINARY, OBJECT }
+
+    private final OutputStream out;
+    private final Kind[] kinds;
+    private final String[] labels;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] digits = new byte[20];
+    private final StringBuilder text = new StringBuilder(32);
+    private int count = 0;
+    private long rows = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a writer
+     * @param out The stream to write the CSV to, closed when the writer is closed
+     * @param metaData The columns of the result set to be written
+     * @throws SQLException If the result set metadata cannot be read
+     */
+    public CsvWriter(OutputStream out, ResultSetMetaData metaData) throws SQLException {
+        this.out = out;
+        int columnCount = metaData.getColumnCount();
+        kinds = new Kind[columnCount];
+        labels = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            kinds[i] = kindOf(metaData, i + 1);
+            labels[i] = metaData.getColumnLabel(i + 1);
+        }
+    }
+
+    /**
+     * Map a JDBC type to the getter used to read it
+     * @param metaData The result set metadata
+     * @param column The column index
+     * @return The kind of value
+     * @throws SQLException If the metadata cannot be read
+     */
+    private static Kind kindOf(ResultSetMetaData metaData, int column) throws SQLException {
+        switch (metaData.getColumnType(column)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return Kind.BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return Kind.LONG;
+            case Types.BIGINT:
+                // An unsigned BIGINT does not fit in a long
+                return metaData.isSigned(column) ? Kind.LONG : Kind.DECIMAL;
+            case Types.REAL:
+                return Kind.FLOAT;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return Kind.DOUBLE;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return Kind.DECIMAL;
+            case Types.DATE:
+                return Kind.DATE;
+            case Types.TIME:
+                return Kind.TIME;
+            case Types.TIMESTAMP:
+                return Kind.TIMESTAMP;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return Kind.STRING;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return Kind.BINARY;
+            default:
+                return Kind.OBJECT;
+        }
+    }
+
+    /**
+     * Write the column labels as the header record
+     * @throws IOException If the header cannot be written
+     */
+    public void writeHeader() throws IOException {
+        for (int i = 0; i < labels.length; i++) {
+            if (i > 0) writeByte((byte) ',');
+            writeQuoted(labels[i]);
+        }
+        writeEndOfRecord();
+    }
+
+    /**
+     * Write the current row of a result set
+     * @param resultSet The result set, positioned on a row
+     * @throws IOException If the row cannot be written
+     * @throws SQLException If a value cannot be read
+     */
+    public void write(ResultSet resultSet) throws IOException, SQLException {
+        for (int i = 0; i < kinds.length; i++) {
+            if (i > 0) writeByte((byte) ',');
+            writeValue(resultSet, i + 1, kinds[i]);
+        }
+        writeEndOfRecord();
+        rows++;
+    }
+
+    /**
+     * Write the remaining rows of a result set
+     * @param resultSet The result set
+     * @return The number of rows written
+     * @throws IOException If a row cannot be written
+     * @throws SQLException If a value cannot be read
+     */
+    public long writeAll(ResultSet resultSet) throws IOException, SQLException {
+        long start = rows;
+        while (resultSet.next()) write(resultSet);
+        return rows - start;
+    }
+
+    /**
+     * @return The number of rows written
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void writeValue(ResultSet resultSet, int column, Kind kind) throws IOException, SQLException {
+        switch (kind) {
+            case BOOLEAN: {
+                boolean value = resultSet.getBoolean(column);
+                if (resultSet.wasNull()) return;
+                writeByte(QUOTE);
+                writeAscii(value ? "true" : "false");
+                writeByte(QUOTE);
+                return;
+            }
+            case LONG: {
+                long value = resultSet.getLong(column);
+                if (resultSet.wasNull()) return;
+                writeByte(QUOTE);
+                writeLong(value);
+                writeByte(QUOTE);
+                return;
+            }
+            case FLOAT: {
+                float value = resultSet.getFloat(column);
+                if (resultSet.wasNull()) return;
+                text.setLength(0);
+                writeQuoted(text.append(value));
+                return;
+            }
+            case DOUBLE: {
+                double value = resultSet.getDouble(column);
+                if (resultSet.wasNull()) return;
+                text.setLength(0);
+                writeQuoted(text.append(value));
+                return;
+            }
+            case DECIMAL: {
+                BigDecimal value = resultSet.getBigDecimal(column);
+                if (null != value) writeQuoted(value.toString());
+                return;
+            }
+            case DATE: {
+                Date value = resultSet.getDate(column);
+                if (null == value) return;
+                writeByte(QUOTE);
+                writeDate(value.getYear() + 1900, value.getMonth() + 1, value.getDate());
+                writeByte(QUOTE);
+                return;
+            }
+            case TIME: {
+                Time value = resultSet.getTime(column);
+                if (null == value) return;
+                writeByte(QUOTE);
+                writeTime(value.getHours(), value.getMinutes(), value.getSeconds());
+                writeByte(QUOTE);
+                return;
+            }
+            case TIMESTAMP: {
+                Timestamp value = resultSet.getTimestamp(column);
+                if (null == value) return;
+                writeByte(QUOTE);
+                writeDate(value.getYear() + 1900, value.getMonth() + 1, value.getDate());
+                writeByte((byte) ' ');
+                writeTime(value.getHours(), value.getMinutes(), value.getSeconds());
+                writeNanos(value.getNanos());
+                writeByte(QUOTE);
+                return;
+            }
+            case STRING: {
+                String value = resultSet.getString(column);
+                if (null != value) writeQuoted(value);
+                return;
+            }
+            case BINARY: {
+                byte[] value = resultSet.getBytes(column);
+                if (null == value) return;
+                writeByte(QUOTE);
+                writeBase64(value);
+                writeByte(QUOTE);
+                return;
+            }
+            default: {
+                Object value = resultSet.getObject(column);
+                if (null == value) return;
+                if (value instanceof Clob) {
+                    writeQuoted(((Clob) value).getCharacterStream());
+                } else if (value instanceof byte[]) {
+                    writeByte(QUOTE);
+                    writeBase64((byte[]) value);
+                    writeByte(QUOTE);
+                } else {
+                    writeQuoted(value.toString());
+                }
+            }
+        }
+    }
+
+    private void writeEndOfRecord() throws IOException {
+        ensure(2);
+        buffer[count++] = '\r';
+        buffer[count++] = '\n';
+    }
+
+    private void writeByte(byte b) throws IOException {
+        ensure(1);
+        buffer[count++] = b;
+    }
+
+    private void writeAscii(String value) throws IOException {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) buffer[count++] = (byte) value.charAt(i);
+    }
+
+    private void writeLong(long value) throws IOException {
+        ensure(20);
+        if (Long.MIN_VALUE == value) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        System.arraycopy(digits, pos, buffer, count, digits.length - pos);
+        count += digits.length - pos;
+    }
+
+    /**
+     * Write a number padded with leading zeros to at least a width
+     */
+    private void writePadded(int value, int width) throws IOException {
+        ensure(width);
+        for (int bound = 1, i = 1; i < width; i++) {
+            bound *= 10;
+            if (value < bound) buffer[count++] = '0';
+        }
+        writeLong(value);
+    }
+
+    private void writeDate(int year, int month, int day) throws IOException {
+        if (year < 0) writeLong(year); else writePadded(year, 4);
+        writeByte((byte) '-');
+        writePadded(month, 2);
+        writeByte((byte) '-');
+        writePadded(day, 2);
+    }
+
+    private void writeTime(int hours, int minutes, int seconds) throws IOException {
+        writePadded(hours, 2);
+        writeByte((byte) ':');
+        writePadded(minutes, 2);
+        writeByte((byte) ':');
+        writePadded(seconds, 2);
+    }
+
+    /**
+     * Write the fraction of a second as Timestamp.toString does, without trailing zeros but with at least one digit
+     */
+    private void writeNanos(int nanos) throws IOException {
+        writeByte((byte) '.');
+        if (0 == nanos) {
+            writeByte((byte) '0');
+            return;
+        }
+        int width = 9;
+        while (0 == nanos % 10) {
+            nanos /= 10;
+            width--;
+        }
+        writePadded(nanos, width);
+    }
+
+    private void writeBase64(byte[] value) throws IOException {
+        int i = 0;
+        for (; i + 2 < value.length; i += 3) {
+            ensure(4);
+            int bits = (value[i] & 0xff) << 16 | (value[i + 1] & 0xff) << 8 | (value[i + 2] & 0xff);
+            buffer[count++] = BASE64[bits >>> 18];
+            buffer[count++] = BASE64[(bits >>> 12) & 0x3f];
+            buffer[count++] = BASE64[(bits >>> 6) & 0x3f];
+            buffer[count++] = BASE64[bits & 0x3f];
+        }
+        if (i < value.length) {
+            ensure(4);
+            int bits = (value[i] & 0xff) << 16 | (i + 1 < value.length ? (value[i + 1] & 0xff) << 8 : 0);
+            buffer[count++] = BASE64[bits >>> 18];
+            buffer[count++] = BASE64[(bits >>> 12) & 0x3f];
+            buffer[count++] = i + 1 < value.length ? BASE64[(bits >>> 6) & 0x3f] : (byte) '=';
+            buffer[count++] = '=';
+        }
+    }
+
+    /**
+     * Write a quoted value, doubling any quotes in it
+     */
+    private void writeQuoted(CharSequence value) throws IOException {
+        writeByte(QUOTE);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+            } else {
+                writeChar(c);
+            }
+        }
+        writeByte(QUOTE);
+    }
+
+    private void writeQuoted(Reader value) throws IOException {
+        writeByte(QUOTE);
+        try (Reader reader = value) {
+            int c, pending = -1;
+            while (-1 != (c = reader.read())) {
+                if (-1 != pending) {
+                    if (Character.isLowSurrogate((char) c)) {
+                        writeCodePoint(Character.toCodePoint((char) pending, (char) c));
+                        pending = -1;
+                        continue;
+                    }
+                    writeChar((char) pending);
+                    pending = -1;
+                }
+                if (Character.isHighSurrogate((char) c)) {
+                    pending = c;
+                } else {
+                    writeChar((char) c);
+                }
+            }
+            if (-1 != pending) writeChar((char) pending);
+        }
+        writeByte(QUOTE);
+    }
+
+    /**
+     * Write a character that is not part of a surrogate pair. Unpaired surrogates are replaced, as the UTF-8 encoder does.
+     */
+    private void writeChar(char c) throws IOException {
+        ensure(3);
+        if (c < 0x80) {
+            if (QUOTE == c) buffer[count++] = QUOTE;
+            buffer[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[count++] = (byte) (0xc0 | (c >> 6));
+            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            buffer[count++] = '?';
+        } else {
+            buffer[count++] = (byte) (0xe0 | (c >> 12));
+            buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void writeCodePoint(int codePoint) throws IOException {
+        ensure(4);
+        buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+    }
+
+    /**
+     * Make room in the buffer, writing it out if needed
+     * @param length The number of bytes about to be written, at most the buffer size
+     */
+    private void ensure(int length) throws IOException {
+        if (count + length > buffer.length) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Write out the buffered CSV
+     * @throws IOException If the CSV cannot be written
+     */
+    public void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+
+    /**
+     * Write out the buffered CSV and close the stream
+     * @throws IOException If the CSV cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (count > 0) out.write(buffer, 0, count);
+            count = 0;
+        } finally {
+            out.close();
+        }
+    }
+}
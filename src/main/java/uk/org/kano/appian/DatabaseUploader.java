@@ -20,6 +20,7 @@ package uk.org.kano.appian;
 import com.appian.connectedsystems.simplified.sdk.SimpleIntegrationTemplate;
 import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
 import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationError;
 import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
 import com.appian.connectedsystems.templateframework.sdk.TemplateId;
 import com.appian.connectedsystems.templateframework.sdk.configuration.PropertyPath;
@@ -27,34 +28,42 @@ import com.appian.connectedsystems.templateframework.sdk.configuration.SystemTyp
 import com.appian.connectedsystems.templateframework.sdk.diagnostics.IntegrationDesignerDiagnostic;
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateRequestPolicy;
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVPrinter;
-import org.apache.commons.csv.QuoteMode;
-import org.apache.hc.client5.http.classic.methods.HttpPatch;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
-import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.metrics.DatalakeMetrics;
+import uk.org.kano.appian.parquet.ParquetWriter;
 import uk.org.kano.appian.path.PathCreate;
+import uk.org.kano.appian.path.PathDelete;
+import uk.org.kano.appian.path.PathGetProperties;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.*;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 /**
  * Get the properties of a path
@@ -64,8 +73,23 @@ import java.util.concurrent.*;
 public class DatabaseUploader extends SimpleIntegrationTemplate {
     private static final Logger logger = LoggerFactory.getLogger(DatabaseUploader.class);
     private static final String DEFAULT_JNDI_RESOURCE = "jdbc/Appian";
-    private static final ContentType CSV_CONTENT_TYPE = ContentType.parse("text/csv;charset=utf8");
+    private static final ContentType CSV_CONTENT_TYPE = ContentType.parse("text/csv;charset=utf-8");
+    private static final ContentType PARQUET_CONTENT_TYPE = ContentType.create("application/vnd.apache.parquet");
+    private static final String FORMAT_CSV = "csv";
+    private static final String FORMAT_PARQUET = "parquet";
+    private static final int DEFAULT_ROW_GROUP_SIZE_MB = 64;
+    private static final int MAX_ROW_GROUP_SIZE_MB = 1024;
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*");
+    private static final DateTimeFormatter PART_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'").withZone(ZoneOffset.UTC);
+    private static final int MAX_PARTITIONS = 64;
+    private static final Set<Integer> INTEGRAL_TYPES = new HashSet<>(Arrays.asList(Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT));
+    private static final Set<Integer> NUMERIC_TYPES = new HashSet<>(Arrays.asList(Types.TINYINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT, Types.DECIMAL, Types.NUMERIC, Types.REAL, Types.FLOAT, Types.DOUBLE));
     private static final int FETCH_ROWS = 1000;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_PARALLEL_TABLES = 1;
+    private static final int DEFAULT_MAX_CHUNK_SIZE_MB = 64;
+    private static final int MAX_CHUNK_SIZE_MB = 1024;
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
 
     @Override
     protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
@@ -90,6 +114,73 @@ public class DatabaseUploader extends SimpleIntegrationTemplate {
                         .isRequired(false)
                         .isExpressionable(true)
                         .isImportCustomizable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_PARALLEL_TABLES)
+                        .label("Parallel tables")
+                        .description("The maximum number of tables to export at once, each on its own connection (default " + DEFAULT_PARALLEL_TABLES + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_IN_FLIGHT)
+                        .label("Parallel uploads")
+                        .description("The maximum number of uploads in flight at once for each table (default " + DEFAULT_MAX_IN_FLIGHT + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_CHUNK_SIZE)
+                        .label("Maximum upload size (MB)")
+                        .description("The largest single upload request. Uploads start at 1MB and grow while the datalake keeps up (default " + DEFAULT_MAX_CHUNK_SIZE_MB + ", at most " + MAX_CHUNK_SIZE_MB + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_COMPRESSION)
+                        .label("Compression")
+                        .description("Compress the exported files with none (default), gzip or zstd. zstd needs the plugin to be built with the zstd profile.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_FORMAT)
+                        .label("Format")
+                        .description("The format of the exported files, csv (default) or parquet. Parquet files are compressed inside the file.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_ROW_GROUP_SIZE)
+                        .label("Row group size (MB)")
+                        .description("The size of each Parquet row group. Each table export holds up to one row group in memory (default " + DEFAULT_ROW_GROUP_SIZE_MB + ", at most " + MAX_ROW_GROUP_SIZE_MB + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_WATERMARK_COLUMN)
+                        .label("Watermark column")
+                        .description("Export incrementally, taking only the rows past the last exported value of this column. The column must only increase, such as an id or a created timestamp.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                booleanProperty(Constants.SC_ATTR_APPEND_TO_FILE)
+                        .label("Append to file")
+                        .description("For an incremental CSV export, append the new rows to the table file rather than writing a new part file. Default false.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_PARTITIONS)
+                        .label("Partitions per table")
+                        .description("Split each table into this many ranges of the partition column, each read on its own connection into its own part file (default 1, at most " + MAX_PARTITIONS + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_PARTITION_COLUMN)
+                        .label("Partition column")
+                        .description("The numeric column to split the tables on. Defaults to the primary key, which must be a single column.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_CONNECTIONS)
+                        .label("Maximum connections")
+                        .description("The most database connections in use at once, across all the tables and partitions being exported (default " + DEFAULT_MAX_CONNECTIONS + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .isImportCustomizable(true)
                         .build()
         );
     }
@@ -101,9 +192,8 @@ public class DatabaseUploader extends SimpleIntegrationTemplate {
         Map<String, Object> configurationValues;
         SimpleConfiguration subIntegrationConfiguration;
         IntegrationResponse subIntegrationResponse;
-        IntegrationResponse executeResponse = null;
         PathCreate pathCreate = new PathCreate();
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -128,17 +218,43 @@ public class DatabaseUploader extends SimpleIntegrationTemplate {
         if (null == basePath) {
             return LogUtil.createError("Invalid base path", "Base path was not specified");
         }
-
-        // Get the connection
-        Connection conn;
-        try {
-            conn = dataSource.getConnection();
-            conn.setAutoCommit(false);
-        } catch (SQLException e) {
-            IntegrationResponse error =  LogUtil.createError("Unable to get database connection", e.getMessage());
-            logger.error(error.getError().getTitle(), e);
-            return error;
+        Integer maxInFlight = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_IN_FLIGHT);
+        Integer parallelTables = integrationConfiguration.getValue(Constants.SC_ATTR_PARALLEL_TABLES);
+        Integer maxChunkSizeMb = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_CHUNK_SIZE);
+        Compression compression = Compression.forName(integrationConfiguration.getValue(Constants.SC_ATTR_COMPRESSION));
+        if (null == compression) {
+            return LogUtil.createError("Invalid compression", "Compression must be one of none, gzip or zstd");
+        }
+        if (!compression.isAvailable()) {
+            return LogUtil.createError("Compression not available", "The " + compression.getName() + " library is not bundled with the plugin");
+        }
+        String format = integrationConfiguration.getValue(Constants.SC_ATTR_FORMAT);
+        format = null == format || format.trim().isEmpty() ? FORMAT_CSV : format.trim().toLowerCase();
+        if (!FORMAT_CSV.equals(format) && !FORMAT_PARQUET.equals(format)) {
+            return LogUtil.createError("Invalid format", "Format must be one of csv or parquet");
         }
+        Integer rowGroupSizeMb = integrationConfiguration.getValue(Constants.SC_ATTR_ROW_GROUP_SIZE);
+        String watermarkColumn = integrationConfiguration.getValue(Constants.SC_ATTR_WATERMARK_COLUMN);
+        if (null != watermarkColumn) watermarkColumn = watermarkColumn.trim().isEmpty() ? null : watermarkColumn.trim();
+        if (null != watermarkColumn && !COLUMN_NAME.matcher(watermarkColumn).matches()) {
+            return LogUtil.createError("Invalid watermark column", "The watermark column must be a plain column name");
+        }
+        boolean appendToFile = Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_APPEND_TO_FILE));
+        if (appendToFile && FORMAT_PARQUET.equals(format)) {
+            return LogUtil.createError("Invalid format", "Appending to the table file is only supported for CSV");
+        }
+        Integer partitions = integrationConfiguration.getValue(Constants.SC_ATTR_PARTITIONS);
+        partitions = Math.min(MAX_PARTITIONS, null == partitions || partitions < 1 ? 1 : partitions);
+        String partitionColumn = integrationConfiguration.getValue(Constants.SC_ATTR_PARTITION_COLUMN);
+        if (null != partitionColumn) partitionColumn = partitionColumn.trim().isEmpty() ? null : partitionColumn.trim();
+        if (null != partitionColumn && !COLUMN_NAME.matcher(partitionColumn).matches()) {
+            return LogUtil.createError("Invalid partition column", "The partition column must be a plain column name");
+        }
+        if (appendToFile && partitions > 1) {
+            return LogUtil.createError("Invalid partitions", "Appending to the table file cannot be combined with partitions");
+        }
+        Integer maxConnections = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_CONNECTIONS);
+        maxConnections = null == maxConnections || maxConnections < 1 ? DEFAULT_MAX_CONNECTIONS : maxConnections;
 
         // Create the basepath
         subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathCreate, connectedSystemConfiguration, executionContext);
@@ -149,256 +265,627 @@ public class DatabaseUploader extends SimpleIntegrationTemplate {
         configurationValues.forEach(subIntegrationConfiguration::setValue);
         subIntegrationResponse = pathCreate.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
         if (!subIntegrationResponse.isSuccess()) {
-            try { conn.close(); } catch (SQLException ignored) {}
             return subIntegrationResponse;
         }
 
+        // The settings shared by all the table exports
+        ExportJob job = new ExportJob();
+        job.client = client;
+        job.resourceUri = resourceUri;
+        job.dataSource = dataSource;
+        job.basePath = basePath;
+        job.maxInFlight = null == maxInFlight || maxInFlight < 1 ? DEFAULT_MAX_IN_FLIGHT : maxInFlight;
+        job.compression = compression;
+        job.format = format;
+        job.accountUri = HttpUtils.getAccountUri(connectedSystemConfiguration);
+        job.accountName = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_NAME);
+        job.watermarkColumn = watermarkColumn;
+        job.appendToFile = appendToFile;
+        job.partitions = partitions;
+        job.partitionColumn = partitionColumn;
+        job.maxConnections = maxConnections;
+        job.connections = new Semaphore(maxConnections, true);
+        job.rowGroupSize = 1048576L * Math.min(MAX_ROW_GROUP_SIZE_MB, null == rowGroupSizeMb || rowGroupSizeMb < 1 ? DEFAULT_ROW_GROUP_SIZE_MB : rowGroupSizeMb);
+        job.maxChunkSize = AdaptiveChunkSizer.MIN_CHUNK_SIZE * Math.min(MAX_CHUNK_SIZE_MB, null == maxChunkSizeMb || maxChunkSizeMb < 1 ? DEFAULT_MAX_CHUNK_SIZE_MB : maxChunkSizeMb);
+        job.connectedSystemConfiguration = connectedSystemConfiguration;
+        job.executionContext = executionContext;
+
         startTime = System.currentTimeMillis();
-        // Loop over the tables to make sure they exist and start the upload
+        // Export the tables, each on its own connection, with a bounded number running at once
         List<String> tables = integrationConfiguration.getValue(Constants.SC_ATTR_TABLES);
+        int tableThreads = Math.max(1, Math.min(tables.size(), null == parallelTables || parallelTables < 1 ? DEFAULT_PARALLEL_TABLES : parallelTables));
+        ExecutorService tableExecutorService = Executors.newFixedThreadPool(tableThreads);
+        List<Future<IntegrationResponse>> tableFutures = new ArrayList<>();
         for (String table: tables) {
-            // Check the table exists
+            tableFutures.add(tableExecutorService.submit(() -> exportTable(job, table)));
+        }
+        tableExecutorService.shutdown();
+
+        // Collect the results in table order
+        List<Map<String, Object>> tableResults = new ArrayList<>();
+        List<String> failedTables = new ArrayList<>();
+        IntegrationResponse firstError = null;
+        for (int i = 0; i < tables.size(); i++) {
+            IntegrationResponse tableResponse;
             try {
-                DatabaseMetaData databaseMetaData = conn.getMetaData();
-                ResultSet resultSet = databaseMetaData.getTables(null, null, table, null);
+                tableResponse = tableFutures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                tableResponse = LogUtil.createError("Table export task threw an exception", e.getMessage());
+                logger.error(tableResponse.getError().getTitle(), e);
+            }
 
-                int tableCount = 0;
-                while (resultSet.next()) {
-                    tableCount++;
-                }
-                resultSet.close();
+            Map<String, Object> tableResult;
+            if (tableResponse.isSuccess()) {
+                tableResult = new HashMap<>(tableResponse.getResult());
+                tableResult.put("success", true);
+            } else {
+                if (null == firstError) firstError = tableResponse;
+                failedTables.add(tables.get(i));
+                tableResult = LogUtil.getIntegrationDataMap("table", tables.get(i), "success", false, "error", tableResponse.getError().getTitle(), "detail", tableResponse.getError().getMessage());
+            }
+            tableResults.add(tableResult);
+        }
+        endTime = System.currentTimeMillis();
+
+        // Create the response
+        Map<String, Object> chunkSizes = new HashMap<>();
+        tableResults.forEach(result -> chunkSizes.put(result.get("table").toString(), result.get("chunkSizes")));
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName(), "parallelTables", tableThreads, "maxConnections", maxConnections, "format", format, "watermarkColumn", watermarkColumn, "partitions", partitions, "compression", compression.getName(), "maxChunkSize", job.maxChunkSize, "chunkSizes", chunkSizes, "results", tableResults);
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(requestDiagnostic)
+                .addExecutionTimeDiagnostic(endTime - startTime)
+                .build();
+
+        // Name the failed tables, so that they can be retried on their own, and keep every table's result in the diagnostic
+        if (null != firstError) {
+            logger.error("Export failed for {} of {} tables: {}", failedTables.size(), tables.size(), failedTables);
+            IntegrationError error = IntegrationError.builder()
+                    .title("Export failed for tables " + String.join(", ", failedTables))
+                    .message(firstError.getError().getTitle() + ": " + firstError.getError().getMessage())
+                    .build();
+            return IntegrationResponse.forError(error).withDiagnostic(integrationDesignerDiagnostic).build();
+        }
 
-                if (0 == tableCount) throw  new SQLException("Table does not exist");
-                if (tableCount > 1) throw  new SQLException("Name matched multiple tables");
+        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("tables", tables, "results", tableResults);
+        return IntegrationResponse.forSuccess(responseData).withDiagnostic(integrationDesignerDiagnostic).build();
+    }
+
+    /**
+     * Export a single table to a file under the base path. The table gets its own connection from the data source, which
+     * is returned as soon as the table is done, or for a partitioned table as soon as the ranges are known.
+     * @param job The settings shared by all the tables
+     * @param table The table to export
+     * @return An error, or a success with the table, path and length
+     */
+    private IntegrationResponse exportTable(ExportJob job, String table) {
+        LeasedConnection lease;
+        try {
+            lease = openConnection(job);
+        } catch (SQLException e) {
+            IntegrationResponse error =  LogUtil.createError("Unable to get database connection", e.getMessage());
+            logger.error(error.getError().getTitle(), e);
+            return error;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LogUtil.createError("Export interrupted for " + table, "Interrupted while waiting for a database connection");
+        }
+
+        try {
+            return exportTable(job, table, lease);
+        } finally {
+            lease.close();
+        }
+    }
+
+    /**
+     * Get a connection from the data source, waiting until the export is below its maximum connections
+     * @param job The settings shared by all the tables
+     * @return The connection, with auto commit off, and the permit it holds
+     * @throws SQLException If the connection cannot be made
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static LeasedConnection openConnection(ExportJob job) throws SQLException, InterruptedException {
+        job.connections.acquire();
+        try {
+            Connection conn = job.dataSource.getConnection();
+            conn.setAutoCommit(false);
+            return new LeasedConnection(conn, job.connections);
+        } catch (SQLException | RuntimeException e) {
+            job.connections.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Export a single table on a connection
+     * @param job The settings shared by all the tables
+     * @param table The table to export
+     * @param lease The connection to read the table from
+     * @return An error, or a success with the table, path, stored and raw lengths written, the upload sizes used, any
+     * parts and any watermarks
+     */
+    private IntegrationResponse exportTable(ExportJob job, String table, LeasedConnection lease) {
+        Connection conn = lease.connection;
+        SimpleConfiguration subIntegrationConfiguration;
+        IntegrationResponse subIntegrationResponse;
+        CloseableHttpClient client = job.client;
+        URI resourceUri = job.resourceUri;
+        String basePath = job.basePath;
+        SimpleConfiguration connectedSystemConfiguration = job.connectedSystemConfiguration;
+        ExecutionContext executionContext = job.executionContext;
+
+        // Check the table exists
+        try {
+            DatabaseMetaData databaseMetaData = conn.getMetaData();
+            ResultSet resultSet = databaseMetaData.getTables(null, null, table, null);
+
+            int tableCount = 0;
+            while (resultSet.next()) {
+                tableCount++;
+            }
+            resultSet.close();
+
+            if (0 == tableCount) throw  new SQLException("Table does not exist");
+            if (tableCount > 1) throw  new SQLException("Name matched multiple tables");
+        } catch (SQLException e) {
+            IntegrationResponse error =  LogUtil.createError("Unable to get table information for "+table, e.getMessage());
+            logger.error(error.getError().getTitle(), e);
+            return error;
+        }
+
+        // Parquet is compressed inside the file, a CSV file is compressed as a whole
+        Compression compression = job.compression;
+        boolean parquet = FORMAT_PARQUET.equals(job.format);
+        String extension = parquet ? ".parquet" : ".csv" + compression.getExtension();
+        String tablePath = String.join("/", basePath, table).replaceAll("//", "/") + extension;
+
+        // An incremental export takes the rows past the last watermark, up to the highest one now in the table. Rows
+        // added while the export runs are left for the next one.
+        String watermarkColumn = job.watermarkColumn;
+        WatermarkStore watermarkStore = null;
+        WatermarkStore.Watermark fromWatermark = null, toWatermark = null;
+        String partPrefix = null;
+        long startPosition = 0;
+        if (null != watermarkColumn) {
+            try {
+                watermarkStore = new WatermarkStore(client, resourceUri, job.accountUri, basePath, table);
+                fromWatermark = watermarkStore.read();
+            } catch (URISyntaxException | IOException e) {
+                IntegrationResponse error = LogUtil.createError("Unable to read the watermark for " + table, e.getMessage());
+                logger.error(error.getError().getTitle(), e);
+                return error;
+            }
+            if (null != fromWatermark && !fromWatermark.getColumn().equalsIgnoreCase(watermarkColumn)) {
+                return LogUtil.createError("Watermark column changed for " + table, "The table was exported with the watermark column " + fromWatermark.getColumn() + ". Remove the watermark state to change it.");
+            }
+
+            try (Statement statement = conn.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select max(" + watermarkColumn + ") from " + table)
+            ) {
+                if (resultSet.next()) toWatermark = WatermarkStore.Watermark.fromResultSet(watermarkColumn, resultSet, 1);
             } catch (SQLException e) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                IntegrationResponse error =  LogUtil.createError("Unable to get table information for "+table, e.getMessage());
+                IntegrationResponse error = LogUtil.createError("Unable to get the watermark for " + table, e.getMessage());
                 logger.error(error.getError().getTitle(), e);
                 return error;
             }
 
-            String tablePath = String.join("/", basePath, table).replaceAll("//", "/")+".csv";
-            // Create the file
-            subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathCreate, connectedSystemConfiguration, executionContext);
-            configurationValues = new HashMap<>();
-            configurationValues.put(Constants.SC_ATTR_PATH, tablePath);
-            configurationValues.put(Constants.SC_ATTR_FILE, true);
-            configurationValues.put(Constants.SC_ATTR_OVERWRITE, true);
-            configurationValues.put(Constants.SC_ATTR_MIME_TYPE, CSV_CONTENT_TYPE.toString());
-            configurationValues.forEach(subIntegrationConfiguration::setValue);
-            subIntegrationResponse = pathCreate.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
-            if (!subIntegrationResponse.isSuccess()) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                return subIntegrationResponse;
+            if (null == toWatermark || toWatermark.isSame(fromWatermark)) {
+                logger.info("No rows past the watermark for {}", table);
+                return IntegrationResponse.forSuccess(LogUtil.getIntegrationDataMap("table", table, "path", null, "format", job.format, "rows", 0L, "length", 0L, "rawLength", 0L, "compression", compression.getName(), "watermark", null == fromWatermark ? null : fromWatermark.getValue(), "previousWatermark", null == fromWatermark ? null : fromWatermark.getValue())).build();
             }
 
-            // The pipe
-            final PipedInputStream pipeIn;
-            final PipedOutputStream pipeOut;
-            final int bufSize = 1048576; // 1MB buffer/post size.
+            if (!job.appendToFile) {
+                partPrefix = "part-" + PART_TIMESTAMP.format(Instant.now());
+            } else if (null != fromWatermark) {
+                // Carry on from the end of the file. Without a watermark, the file is started again.
+                PathGetProperties pathGetProperties = new PathGetProperties();
+                subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathGetProperties, connectedSystemConfiguration, executionContext);
+                subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, tablePath);
+                subIntegrationResponse = pathGetProperties.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+                if (!subIntegrationResponse.isSuccess()) {
+                    return subIntegrationResponse;
+                }
+                Object length = subIntegrationResponse.getResult().get("length");
+                if (Boolean.TRUE.equals(subIntegrationResponse.getResult().get("exists")) && length instanceof Number) {
+                    startPosition = ((Number) length).longValue();
+                }
+            }
+        }
+
+        // The rows between the watermarks
+        List<String> conditions = new ArrayList<>();
+        List<Object> parameters = new ArrayList<>();
+        if (null != toWatermark) {
+            conditions.add(watermarkColumn + " <= ?");
+            parameters.add(toWatermark);
+        }
+        if (null != fromWatermark) {
+            conditions.add(watermarkColumn + " > ?");
+            parameters.add(fromWatermark);
+        }
+
+        IntegrationResponse exportResponse;
+        long exportStart = System.nanoTime();
+        if (job.partitions > 1) {
+            exportResponse = exportPartitions(job, table, lease, partPrefix, extension, conditions, parameters);
+        } else {
+            if (null != partPrefix) tablePath = String.join("/", basePath, table, partPrefix).replaceAll("//", "/") + extension;
+            exportResponse = exportPart(job, conn, table, tablePath, conditions, parameters, startPosition);
+        }
+        if (!exportResponse.isSuccess()) {
+            return exportResponse;
+        }
+        if (null != job.accountName) DatalakeMetrics.recordExport(job.accountName, (Long) exportResponse.getResult().get("rows"), System.nanoTime() - exportStart);
+
+        // Only move the watermark once the rows are committed. If this fails they are exported again next time.
+        if (null != watermarkStore) {
             try {
-                pipeIn = new PipedInputStream(bufSize);
-                pipeOut = new PipedOutputStream(pipeIn);
+                watermarkStore.write(toWatermark);
             } catch (IOException e) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                IntegrationResponse error =  LogUtil.createError("Unable to create pipes", e.getMessage());
+                IntegrationResponse error = LogUtil.createError("Unable to save the watermark for " + table, "The rows were exported to " + exportResponse.getResult().get("path") + " but will be exported again: " + e.getMessage());
                 logger.error(error.getError().getTitle(), e);
                 return error;
             }
+        }
 
-            // Runnable 1 to export the data and write to a CSV printer
-            Callable<IntegrationResponse> exporterTask = new Callable<IntegrationResponse>() {
-                @Override
-                public IntegrationResponse call() throws Exception {
-                    IntegrationResponse integrationResponse;
-
-                    // Create and configure the statement
-                    Statement statement;
-                    try {
-                        statement = conn.createStatement();
-                        statement.setFetchDirection(ResultSet.FETCH_FORWARD);
-                        statement.setFetchSize(FETCH_ROWS);
-                    } catch (SQLException e) {
-                        integrationResponse = LogUtil.createError("Unable to create connection to the database", e.getMessage());
-                        logger.error(integrationResponse.getError().getTitle(), e);
-                        return integrationResponse;
-                    }
+        Map<String, Object> result = new HashMap<>(exportResponse.getResult());
+        result.put("table", table);
+        result.put("format", job.format);
+        result.put("compression", compression.getName());
+        if (null != toWatermark) {
+            result.put("watermark", toWatermark.getValue());
+            result.put("previousWatermark", null == fromWatermark ? null : fromWatermark.getValue());
+        }
+        return IntegrationResponse.forSuccess(result).build();
+    }
 
-                    // Export and upload
-                    try (ResultSet resultSet = statement.executeQuery("select * from " + table);
-                         CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(pipeOut), CSVFormat.RFC4180.withQuoteMode(QuoteMode.ALL_NON_NULL).withHeader(resultSet))
-                    ) {
-                        printer.printRecords(resultSet);
-                        pipeOut.flush();
-                        return null;
-                    } catch (IOException | SQLException e) {
-                        integrationResponse = LogUtil.createError("Database exporter thread threw an exception", e.getMessage());
-                        logger.error(integrationResponse.getError().getTitle(), e);
-                        return integrationResponse;
-                    } finally {
-                        try {
-                            statement.close();
-                        } catch (SQLException ignored) {
-                        }
-                    }
+    /**
+     * Export a table as a set of part files, one for each range of a numeric column. The ranges are split evenly between
+     * the lowest and highest values, and each one is read on its own connection, within the maximum connections of the
+     * export.
+     * @param job The settings shared by all the tables
+     * @param table The table to export
+     * @param lease The connection to find the ranges on, which is returned before the parts are exported
+     * @param partPrefix The start of each part file name, or null for a full export that replaces any earlier parts
+     * @param extension The part file extension
+     * @param conditions Any conditions on the rows to export
+     * @param parameters The parameters of the conditions
+     * @return An error, or a success with the directory, the parts, the total rows, stored and raw lengths and the upload
+     * sizes
+     */
+    private IntegrationResponse exportPartitions(ExportJob job, String table, LeasedConnection lease, String partPrefix, String extension, List<String> conditions, List<Object> parameters) {
+        Connection conn = lease.connection;
+        String tableDirectory = String.join("/", job.basePath, table).replaceAll("//", "/");
+
+        // The partition column, which defaults to a single column primary key
+        String partitionColumn = job.partitionColumn;
+        if (null == partitionColumn) {
+            List<String> keyColumns = new ArrayList<>();
+            try (ResultSet resultSet = conn.getMetaData().getPrimaryKeys(null, null, table)) {
+                while (resultSet.next()) keyColumns.add(resultSet.getString("COLUMN_NAME"));
+            } catch (SQLException e) {
+                IntegrationResponse error = LogUtil.createError("Unable to get the primary key for " + table, e.getMessage());
+                logger.error(error.getError().getTitle(), e);
+                return error;
+            }
+            if (1 != keyColumns.size()) {
+                return LogUtil.createError("No partition column for " + table, "The table does not have a single column primary key, so a partition column must be given");
+            }
+            partitionColumn = keyColumns.get(0);
+        }
+
+        // Split the values evenly. Rows with no value go in the first part, and the first and last parts are left open so
+        // that every row is in exactly one part.
+        List<BigDecimal> boundaries = new ArrayList<>();
+        try (PreparedStatement statement = conn.prepareStatement("select min(" + partitionColumn + "), max(" + partitionColumn + ") from " + table + where(conditions))) {
+            bindParameters(statement, parameters);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!NUMERIC_TYPES.contains(resultSet.getMetaData().getColumnType(1))) {
+                    return LogUtil.createError("Invalid partition column for " + table, "The partition column " + partitionColumn + " is not numeric");
                 }
-            };
-
-            // Runnable 2 to upload the data. This is very ugly because ADLS does not support a streaming API. Therefore. we need to set
-            // each call to be one that is specific in length.
-            Callable<IntegrationResponse> uploaderTask = new Callable<IntegrationResponse>() {
-                @Override
-                public IntegrationResponse call() throws Exception {
-                    byte[] buf = new byte[bufSize];
-                    int bufLen;
-                    long offset = 0;
-                    IntegrationResponse integrationResponse;
-                    URI uploadUri = resourceUri;
-
-                    try {
-                        for (offset = 0; (bufLen = pipeIn.read(buf, 0, bufSize)) > 0; offset += bufLen) {
-                            // Update the URL for the data package
-                            try {
-                                URIBuilder uriBuilder = new URIBuilder(resourceUri);
-                                uploadUri = uriBuilder
-                                        .setPath(uriBuilder.getPath() + tablePath)
-                                        .addParameter("action", "append")
-                                        .addParameter("position", Long.toString(offset))
-                                        .build();
-                            } catch (URISyntaxException e) {
-                                try {
-                                    conn.close();
-                                } catch (SQLException ignored) {
-                                }
-                                return LogUtil.createError("Invalid URI", e.getMessage());
-                            }
-
-                            HttpPatch request = new HttpPatch(uploadUri);
-                            ByteArrayEntity entity = new ByteArrayEntity(buf, 0, bufLen, CSV_CONTENT_TYPE, false);
-                            request.setEntity(entity);
-                            BasicResponseHandler brh = new BasicResponseHandler();
-                            integrationResponse = client.execute(request, brh);
-                            if (!integrationResponse.isSuccess()) return integrationResponse;
-                        }
-
-                        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("length", offset);
-                        integrationResponse = IntegrationResponse.forSuccess(responseData).build();
-                    } catch (IOException e) {
-                        integrationResponse = LogUtil.createError("Unable to execute request to " + uploadUri.toString(), e.getMessage());
-                        logger.error(integrationResponse.getError().getDetail());
-                        return integrationResponse;
-                    } finally {
-                        try {
-                            pipeIn.close();
-                        } catch (IOException ignored) {
-                        }
+                BigDecimal min = resultSet.next() ? resultSet.getBigDecimal(1) : null;
+                BigDecimal max = null == min ? null : resultSet.getBigDecimal(2);
+                boolean integral = INTEGRAL_TYPES.contains(resultSet.getMetaData().getColumnType(1));
+                if (null != min && null != max) {
+                    BigDecimal step = max.subtract(min).divide(BigDecimal.valueOf(job.partitions), MathContext.DECIMAL64);
+                    for (int i = 1; i < job.partitions; i++) {
+                        BigDecimal boundary = min.add(step.multiply(BigDecimal.valueOf(i)));
+                        if (integral) boundary = boundary.setScale(0, RoundingMode.CEILING);
+                        if (boundary.compareTo(min) > 0 && (boundaries.isEmpty() || boundary.compareTo(boundaries.get(boundaries.size() - 1)) > 0)) boundaries.add(boundary);
                     }
+                }
+            }
+        } catch (SQLException e) {
+            IntegrationResponse error = LogUtil.createError("Unable to get the partition ranges for " + table, e.getMessage());
+            logger.error(error.getError().getTitle(), e);
+            return error;
+        }
+
+        // The table connection is not needed by the parts, so give it back rather than hold it while they wait for theirs
+        lease.close();
+
+        // A full export replaces any earlier parts
+        if (null == partPrefix) {
+            partPrefix = "part";
+            PathDelete pathDelete = new PathDelete();
+            SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathDelete, job.connectedSystemConfiguration, job.executionContext);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, tableDirectory);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_RECURSIVE, true);
+            IntegrationResponse subIntegrationResponse = pathDelete.execute(subIntegrationConfiguration.toConfiguration(), job.connectedSystemConfiguration.toConfiguration(), job.executionContext);
+            if (!subIntegrationResponse.isSuccess()) {
+                return subIntegrationResponse;
+            }
+        }
 
-                    return integrationResponse;
+        // Export each range on its own connection, with no more running than there are connections
+        int partCount = boundaries.size() + 1;
+        ExecutorService partExecutorService = Executors.newFixedThreadPool(Math.min(partCount, job.maxConnections));
+        List<Future<IntegrationResponse>> partFutures = new ArrayList<>();
+        for (int i = 0; i < partCount; i++) {
+            List<String> partConditions = new ArrayList<>(conditions);
+            List<Object> partParameters = new ArrayList<>(parameters);
+            if (i > 0) {
+                partConditions.add(partitionColumn + " >= ?");
+                partParameters.add(boundaries.get(i - 1));
+            }
+            if (i < partCount - 1) {
+                partConditions.add(0 == i ? "(" + partitionColumn + " < ? or " + partitionColumn + " is null)" : partitionColumn + " < ?");
+                partParameters.add(boundaries.get(i));
+            }
+            String partPath = tableDirectory + "/" + partPrefix + String.format("-%05d", i) + extension;
+            partFutures.add(partExecutorService.submit(() -> {
+                LeasedConnection partLease;
+                try {
+                    partLease = openConnection(job);
+                } catch (SQLException e) {
+                    IntegrationResponse error =  LogUtil.createError("Unable to get database connection", e.getMessage());
+                    logger.error(error.getError().getTitle(), e);
+                    return error;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return LogUtil.createError("Export interrupted for " + table, "Interrupted while waiting for a database connection");
                 }
-            };
-
-            // Run each thread and check the responses.
-            ExecutorService executorService = Executors.newFixedThreadPool(2);
-            CompletionService<IntegrationResponse> completionService = new ExecutorCompletionService<>(executorService);
-            completionService.submit(exporterTask);
-            completionService.submit(uploaderTask);
-
-            // Wait for any of the threads to complete
-            int remaining = 2;
-            IntegrationResponse uploaderResponse = null;
-            while (remaining > 0) {
-                Future<IntegrationResponse> taskFuture;
-                IntegrationResponse taskResult;
                 try {
-                    taskFuture = completionService.take();
-                    if (null == taskFuture) continue;
-                    taskResult = taskFuture.get();
-                } catch (InterruptedException | ExecutionException ignored) {
-                    continue;
+                    return exportPart(job, partLease.connection, table, partPath, partConditions, partParameters, 0);
+                } finally {
+                    partLease.close();
                 }
+            }));
+        }
+        partExecutorService.shutdown();
+
+        // Collect the parts in order
+        List<Map<String, Object>> parts = new ArrayList<>();
+        List<Integer> chunkSizes = new ArrayList<>();
+        long rows = 0, length = 0, rawLength = 0;
+        IntegrationResponse firstError = null;
+        for (Future<IntegrationResponse> partFuture: partFutures) {
+            IntegrationResponse partResponse;
+            try {
+                partResponse = partFuture.get();
+            } catch (InterruptedException | ExecutionException e) {
+                partResponse = LogUtil.createError("Partition export task threw an exception", e.getMessage());
+                logger.error(partResponse.getError().getTitle(), e);
+            }
+            if (!partResponse.isSuccess()) {
+                if (null == firstError) firstError = partResponse;
+                continue;
+            }
 
-                remaining--;
-                // Check for an error
-                if (null == taskResult || taskResult.isSuccess()) { // Usual case
-                    uploaderResponse = taskResult;
-                    continue;
-                }
-                if (null == uploaderResponse) { // Only take the first result, which is likely the one that caused the error.
-                    uploaderResponse = taskResult;
-                }
+            Map<String, Object> partResult = partResponse.getResult();
+            parts.add(LogUtil.getIntegrationDataMap("path", partResult.get("path"), "rows", partResult.get("rows"), "length", partResult.get("length"), "rawLength", partResult.get("rawLength")));
+            rows += (Long) partResult.get("rows");
+            length += (Long) partResult.get("length");
+            rawLength += (Long) partResult.get("rawLength");
+            @SuppressWarnings("unchecked")
+            List<Integer> partChunkSizes = (List<Integer>) partResult.get("chunkSizes");
+            chunkSizes.addAll(partChunkSizes);
+        }
+        if (null != firstError) {
+            return firstError;
+        }
+
+        return IntegrationResponse.forSuccess(LogUtil.getIntegrationDataMap("path", tableDirectory, "partitionColumn", partitionColumn, "parts", parts, "rows", rows, "length", length, "rawLength", rawLength, "chunkSizes", chunkSizes)).build();
+    }
 
-                // If we've already shutdown, just loop
-                if (executorService.isShutdown()) continue;
-                // Catch an error
-                logger.error("Exporter task threw an error");
-                // Close the pipes so that that processes terminate
-                try { pipeIn.close(); } catch (IOException ignored) { }
-                try { pipeOut.close(); } catch (IOException ignored) { }
-                // Shutdown the executor
-                executorService.shutdownNow();
-                // Loop through and wait for the others
+    /**
+     * Export the rows of a table that match a set of conditions into a file
+     * @param job The settings shared by all the tables
+     * @param conn The connection to read the table from
+     * @param table The table to export
+     * @param path The file to write
+     * @param conditions Any conditions on the rows to export
+     * @param parameters The parameters of the conditions
+     * @param startPosition The length of the file being appended to, or 0 to create the file
+     * @return An error, or a success with the path, the rows, the stored and raw lengths written and the upload sizes used
+     */
+    private IntegrationResponse exportPart(ExportJob job, Connection conn, String table, String path, List<String> conditions, List<Object> parameters, long startPosition) {
+        IntegrationResponse executeResponse;
+        Compression compression = job.compression;
+        boolean parquet = FORMAT_PARQUET.equals(job.format);
+        ContentType contentType = parquet ? PARQUET_CONTENT_TYPE : CSV_CONTENT_TYPE;
+
+        // Create the file, unless appending to one
+        if (0 == startPosition) {
+            PathCreate pathCreate = new PathCreate();
+            SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathCreate, job.connectedSystemConfiguration, job.executionContext);
+            Map<String, Object> configurationValues = new HashMap<>();
+            configurationValues.put(Constants.SC_ATTR_PATH, path);
+            configurationValues.put(Constants.SC_ATTR_FILE, true);
+            configurationValues.put(Constants.SC_ATTR_OVERWRITE, true);
+            configurationValues.put(Constants.SC_ATTR_MIME_TYPE, contentType.toString());
+            configurationValues.put(Constants.SC_ATTR_CONTENT_ENCODING, parquet ? null : compression.getContentEncoding());
+            configurationValues.forEach(subIntegrationConfiguration::setValue);
+            IntegrationResponse subIntegrationResponse = pathCreate.execute(subIntegrationConfiguration.toConfiguration(), job.connectedSystemConfiguration.toConfiguration(), job.executionContext);
+            if (!subIntegrationResponse.isSuccess()) {
+                return subIntegrationResponse;
             }
+        }
+
+        // The appender for the file
+        URI fileUri;
+        try {
+            URIBuilder uriBuilder = new URIBuilder(job.resourceUri);
+            fileUri = uriBuilder
+                    .setPath(uriBuilder.getPath() + (path.startsWith("/") ? "" : "/") + path)
+                    .build();
+        } catch (URISyntaxException e) {
+            return LogUtil.createError("Invalid URI", e.getMessage());
+        }
+        int maxInFlight = job.maxInFlight;
+        final AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer(AdaptiveChunkSizer.MIN_CHUNK_SIZE, job.maxChunkSize, maxInFlight + 1);
+        final ParallelAppender appender = new ParallelAppender(job.client, fileUri, contentType, chunkSizer, maxInFlight, startPosition);
+
+        // ADLS does not support a streaming API, so each call must be specific in length. The file is written straight
+        // into the appender's buffers, and each one is appended as soon as it is full while the export carries on. Any
+        // CSV compression runs on its own thread between the two. Parquet is written a row group at a time.
+        PreparedStatement statement;
+        try {
+            statement = conn.prepareStatement("select * from " + table + where(conditions));
+            statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+            statement.setFetchSize(FETCH_ROWS);
+            bindParameters(statement, parameters);
+        } catch (SQLException e) {
+            appender.close();
+            IntegrationResponse error = LogUtil.createError("Unable to create connection to the database", e.getMessage());
+            logger.error(error.getError().getTitle(), e);
+            return error;
+        }
 
-            // Check the response data
-            if (null != uploaderResponse && !uploaderResponse.isSuccess()) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                return uploaderResponse;
+        IntegrationResponse uploaderResponse;
+        PipelinedCompressor compressor = null;
+        ParquetWriter parquetWriter = null;
+        CsvWriter csvWriter = null;
+        try {
+            OutputStream exportOut = new AppendingOutputStream(appender);
+            if (!parquet && Compression.NONE != compression) exportOut = compressor = new PipelinedCompressor(exportOut, compression);
+
+            // The stream is first so that it is always closed, and the compressor stopped
+            try (OutputStream out = exportOut;
+                 ResultSet resultSet = statement.executeQuery()
+            ) {
+                if (parquet) {
+                    try (ParquetWriter writer = parquetWriter = new ParquetWriter(out, resultSet.getMetaData(), compression, job.rowGroupSize)) {
+                        writer.writeAll(resultSet);
+                    }
+                } else {
+                    try (CsvWriter writer = csvWriter = new CsvWriter(out, resultSet.getMetaData())) {
+                        if (0 == startPosition) writer.writeHeader();
+                        writer.writeAll(resultSet);
+                    }
+                }
             }
+            uploaderResponse = appender.await();
+        } catch (IOException | SQLException e) {
+            // A failed append stops the export, so report the append rather than the export
+            uploaderResponse = appender.getError();
             if (null == uploaderResponse) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                uploaderResponse =  LogUtil.createError("Uploader task failed", "No upload response specified");
-                logger.error(uploaderResponse.getError().getDetail());
-                return uploaderResponse;
+                uploaderResponse = LogUtil.createError("Database exporter threw an exception", e.getMessage());
+                logger.error(uploaderResponse.getError().getTitle(), e);
             }
-            Long flushLength = (Long)uploaderResponse.getResult().get("length");
-            if (null == flushLength) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                uploaderResponse =  LogUtil.createError("Uploader task failed", "No upload data length specified");
-                logger.error(uploaderResponse.getError().getDetail());
-                return uploaderResponse;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            uploaderResponse = LogUtil.createError("Upload interrupted for " + path, e.getMessage());
+            logger.error(uploaderResponse.getError().getDetail());
+        } finally {
+            appender.close();
+            try {
+                statement.close();
+            } catch (SQLException ignored) {
             }
+        }
 
-            // Finally flush the data
-            URI flushUri;
-            try {
-                URIBuilder uriBuilder = new URIBuilder(resourceUri);
-                flushUri = uriBuilder
-                        .setPath(uriBuilder.getPath() + tablePath)
-                        .addParameter("action", "flush")
-                        .addParameter("close", "true")
-                        .addParameter("position", flushLength.toString())
-                        .build();
-            } catch (URISyntaxException e) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                return LogUtil.createError("Invalid URI", e.getMessage());
+        if (!uploaderResponse.isSuccess()) {
+            return uploaderResponse;
+        }
+
+        // Finally flush the data
+        executeResponse = appender.flush();
+        if (!executeResponse.isSuccess()) {
+            return executeResponse;
+        }
+
+        long length = appender.getPosition() - startPosition;
+        long rawLength = length;
+        if (null != compressor) rawLength = compressor.getRawLength();
+        if (null != parquetWriter) rawLength = parquetWriter.getUncompressedLength();
+        long rows = null != parquetWriter ? parquetWriter.getRowCount() : csvWriter.getRowCount();
+        return IntegrationResponse.forSuccess(LogUtil.getIntegrationDataMap("path", path, "rows", rows, "length", length, "rawLength", rawLength, "chunkSizes", appender.getChunkSizes())).build();
+    }
+
+    /**
+     * @param conditions The conditions on the rows
+     * @return The where clause for the conditions, or an empty string
+     */
+    private static String where(List<String> conditions) {
+        return conditions.isEmpty() ? "" : " where " + String.join(" and ", conditions);
+    }
+
+    /**
+     * Bind the parameters of a query in order
+     * @param statement The statement
+     * @param parameters The watermarks and values to bind
+     * @throws SQLException If a parameter cannot be bound
+     */
+    private static void bindParameters(PreparedStatement statement, List<Object> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            Object parameter = parameters.get(i);
+            if (parameter instanceof WatermarkStore.Watermark) {
+                ((WatermarkStore.Watermark) parameter).bind(statement, i + 1);
+            } else {
+                statement.setObject(i + 1, parameter);
             }
+        }
+    }
+
+    /**
+     * The settings shared by the table exports of a single execution
+     */
+    /**
+     * A connection and the permit it holds. The permit is given back exactly once when the lease is closed, whether or
+     * not the driver or pool has already closed the connection itself.
+     */
+    static final class LeasedConnection {
+        final Connection connection;
+        private final Semaphore connections;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        LeasedConnection(Connection connection, Semaphore connections) {
+            this.connection = connection;
+            this.connections = connections;
+        }
 
-            HttpPatch request = new HttpPatch(flushUri);
-            request.setEntity(new StringEntity("", CSV_CONTENT_TYPE, false));
+        void close() {
+            if (!released.compareAndSet(false, true)) return;
             try {
-                BasicResponseHandler brh = new BasicResponseHandler();
-                executeResponse = client.execute(request, brh);
-            } catch (IOException e) {
-                try { conn.close(); } catch (SQLException ignored) {}
-                executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
-                logger.error(executeResponse.getError().getDetail());
-                return executeResponse;
+                connection.close();
+            } catch (SQLException | RuntimeException e) {
+                logger.debug("Unable to close a database connection: {}", e.getMessage());
+            } finally {
+                connections.release();
             }
         }
-        endTime = System.currentTimeMillis();
-
-        // Cleanup
-        try { conn.close(); } catch (SQLException ignored) {}
-        try { client.close(); } catch (IOException ignored) {}
+    }
 
-        // Create the response
-        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName());
-        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
-                .addRequestDiagnostic(requestDiagnostic)
-                .addExecutionTimeDiagnostic(endTime - startTime)
-                .build();
-        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("tables", tables);
-        return IntegrationResponse.forSuccess(responseData).withDiagnostic(integrationDesignerDiagnostic).build();
+    private static final class ExportJob {
+        CloseableHttpClient client;
+        URI resourceUri;
+        DataSource dataSource;
+        String basePath;
+        int maxInFlight;
+        int maxChunkSize;
+        Compression compression;
+        String format;
+        long rowGroupSize;
+        URI accountUri;
+        String accountName;
+        String watermarkColumn;
+        boolean appendToFile;
+        int partitions;
+        String partitionColumn;
+        int maxConnections;
+        Semaphore connections;
+        SimpleConfiguration connectedSystemConfiguration;
+        ExecutionContext executionContext;
     }
 }
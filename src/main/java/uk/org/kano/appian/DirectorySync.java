@@ -0,0 +1,473 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.simplified.sdk.SimpleIntegrationTemplate;
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import com.appian.connectedsystems.templateframework.sdk.TemplateId;
+import com.appian.connectedsystems.templateframework.sdk.configuration.PropertyPath;
+import com.appian.connectedsystems.templateframework.sdk.diagnostics.IntegrationDesignerDiagnostic;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateRequestPolicy;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
+import org.apache.hc.core5.net.URIBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.path.PathCreate;
+import uk.org.kano.appian.path.PathDelete;
+import uk.org.kano.appian.path.PathGetProperties;
+import uk.org.kano.appian.path.PathList;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Mirror a directory on the Appian server into the datalake. The local files are compared with a recursive listing of
+ * the destination, and only new or changed files are uploaded, a number at a time. A file is changed if its size
+ * differs, or if its SHA-256 differs from the content hash stored in the properties of the remote file when it was
+ * uploaded. Remote files with no local file can optionally be deleted. The directory must be within the local root of
+ * the connected system, and links in it are not followed.
+ */
+@TemplateId(name="DirectorySync")
+@IntegrationTemplateType(IntegrationTemplateRequestPolicy.WRITE)
+public class DirectorySync extends SimpleIntegrationTemplate {
+    private static final Logger logger = LoggerFactory.getLogger(DirectorySync.class);
+    static final String CONTENT_HASH_PROPERTY = "contentHash";
+    private static final String COMPARE_HASH = "hash";
+    private static final String COMPARE_MODIFIED = "modified";
+    private static final int DEFAULT_MAX_PARALLEL = 4;
+    private static final int MAX_PARALLEL = 32;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    @Override
+    protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
+        return integrationConfiguration.setProperties(
+                textProperty(Constants.SC_ATTR_SOURCE_DIRECTORY)
+                        .label("Source directory")
+                        .description("The directory on the Appian server to mirror. It must be within the local root of the connected system, and links in it are skipped.")
+                        .isRequired(true)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_PATH)
+                        .label("Path")
+                        .description("The directory in the datalake to mirror into.")
+                        .isRequired(true)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_COMPARE)
+                        .label("Compare")
+                        .description("How to find changed files of the same size: hash (default) compares the SHA-256 stored with each upload, modified only uploads files changed locally since the remote file was written.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                booleanProperty(Constants.SC_ATTR_DELETE_ORPHANS)
+                        .label("Delete orphans")
+                        .description("Delete remote paths that have no local file or directory (default false).")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_PARALLEL)
+                        .label("Parallel files")
+                        .description("The maximum number of files uploaded or deleted at once (default " + DEFAULT_MAX_PARALLEL + ", at most " + MAX_PARALLEL + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_IN_FLIGHT)
+                        .label("Parallel uploads")
+                        .description("The maximum number of uploads in flight at once for each file (default " + DEFAULT_MAX_IN_FLIGHT + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build()
+        );
+    }
+
+    @Override
+    protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        long startTime, endTime;
+
+        URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
+        if (null == resourceUri) {
+            return LogUtil.createError("Invalid base URI", "The base URI is invalid");
+        }
+
+        String sourceDirectory = integrationConfiguration.getValue(Constants.SC_ATTR_SOURCE_DIRECTORY);
+        if (null == sourceDirectory || sourceDirectory.trim().isEmpty()) {
+            return LogUtil.createError("Invalid source directory", "The source directory does not exist");
+        }
+        Path source;
+        try {
+            source = AppianUtils.getLocalPath(connectedSystemConfiguration, sourceDirectory);
+        } catch (IOException e) {
+            return LogUtil.createError("Invalid source directory", e.getMessage());
+        }
+        if (!Files.isDirectory(source)) {
+            return LogUtil.createError("Invalid source directory", "The source directory does not exist");
+        }
+        String path = integrationConfiguration.getValue(Constants.SC_ATTR_PATH);
+        if (null == path) path = "";
+        path = path.replaceAll("^/+", "").replaceAll("/+$", "");
+        String compare = integrationConfiguration.getValue(Constants.SC_ATTR_COMPARE);
+        compare = null == compare || compare.trim().isEmpty() ? COMPARE_HASH : compare.trim().toLowerCase();
+        if (!COMPARE_HASH.equals(compare) && !COMPARE_MODIFIED.equals(compare)) {
+            return LogUtil.createError("Invalid compare", "Compare must be one of hash or modified");
+        }
+        boolean deleteOrphans = Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_DELETE_ORPHANS));
+        Integer maxParallel = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_PARALLEL);
+        int threads = Math.max(1, Math.min(MAX_PARALLEL, null == maxParallel || maxParallel < 1 ? DEFAULT_MAX_PARALLEL : maxParallel));
+        Integer maxInFlight = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_IN_FLIGHT);
+        if (null == maxInFlight || maxInFlight < 1) maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        startTime = System.currentTimeMillis();
+
+        // The local manifest and the remote state, both keyed by the path relative to the directories. Links are
+        // skipped, as they could lead out of the local root.
+        Map<String, Path> localFiles = new TreeMap<>();
+        List<String> localDirectories = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(source)) {
+            for (Path file: walk.collect(Collectors.toList())) {
+                if (file.equals(source)) continue;
+                String relative = source.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                    localDirectories.add(relative);
+                } else if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                    localFiles.put(relative, file);
+                } else if (Files.isSymbolicLink(file)) {
+                    logger.warn("Skipping the link {} in {}", relative, source);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            IntegrationResponse error = LogUtil.createError("Unable to read " + source, e.getMessage());
+            logger.error(error.getError().getTitle(), e);
+            return error;
+        }
+
+        // Make sure the destination exists, so that it can be listed
+        if (!path.isEmpty()) {
+            PathCreate pathCreate = new PathCreate();
+            SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathCreate, connectedSystemConfiguration, executionContext);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_FILE, false);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_OVERWRITE, true);
+            IntegrationResponse subIntegrationResponse = pathCreate.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+            if (!subIntegrationResponse.isSuccess()) {
+                return subIntegrationResponse;
+            }
+        }
+
+        Map<String, Map<String, Object>> remotePaths = new TreeMap<>();
+        IntegrationResponse listResponse = listRemote(path, connectedSystemConfiguration, executionContext, remotePaths);
+        if (!listResponse.isSuccess()) {
+            return listResponse;
+        }
+
+        // Work out what has changed. Hashes are only worked out when needed, on the worker threads.
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        Map<String, Future<IntegrationResponse>> uploads = new TreeMap<>();
+        Map<String, Future<IntegrationResponse>> deletes = new TreeMap<>();
+        int unchanged = 0;
+        final String basePath = path;
+        final String finalCompare = compare;
+        final int finalMaxInFlight = maxInFlight;
+
+        // A remote path that is now the other type locally is deleted before anything is uploaded in its place, as
+        // otherwise the upload would fail or not depending on which ran first
+        List<String> orphans = deleteOrphans ? findOrphans(remotePaths, localFiles, localDirectories) : new ArrayList<>();
+        for (String orphan: orphans) {
+            if (localFiles.containsKey(orphan) || localDirectories.contains(orphan)) {
+                deletes.put(orphan, executorService.submit(() -> deletePath(join(basePath, orphan), connectedSystemConfiguration, executionContext)));
+            }
+        }
+        deletes.values().forEach(DirectorySync::getResponse);
+
+        for (Map.Entry<String, Path> localFile: localFiles.entrySet()) {
+            Map<String, Object> remote = remotePaths.get(localFile.getKey());
+            if (null != remote && Boolean.TRUE.equals(remote.get("isDirectory"))) remote = null;
+            long localLength, localModified;
+            try {
+                localLength = Files.size(localFile.getValue());
+                localModified = Files.getLastModifiedTime(localFile.getValue()).toMillis();
+            } catch (IOException e) {
+                uploads.put(localFile.getKey(), executorService.submit(() -> LogUtil.createError("Unable to read " + localFile.getValue(), e.getMessage())));
+                continue;
+            }
+
+            // Only a file of the same size can be unchanged
+            boolean sameLength = null != remote && remote.get("contentLength") instanceof Long && localLength == (Long) remote.get("contentLength");
+            if (sameLength && COMPARE_MODIFIED.equals(finalCompare)) {
+                if (localModified <= lastModified(remote)) {
+                    unchanged++;
+                    continue;
+                }
+                sameLength = false;
+            }
+            final Map<String, Object> finalRemote = sameLength ? remote : null;
+            uploads.put(localFile.getKey(), executorService.submit(() -> syncFile(localFile.getValue(), join(basePath, localFile.getKey()), finalRemote, finalMaxInFlight, resourceUri, connectedSystemConfiguration, executionContext)));
+        }
+
+        for (String orphan: orphans) {
+            if (!deletes.containsKey(orphan)) {
+                deletes.put(orphan, executorService.submit(() -> deletePath(join(basePath, orphan), connectedSystemConfiguration, executionContext)));
+            }
+        }
+        executorService.shutdown();
+
+        // Collect the results
+        List<String> uploaded = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        List<Map<String, Object>> failures = new ArrayList<>();
+        long uploadedLength = 0;
+        for (Map.Entry<String, Future<IntegrationResponse>> upload: uploads.entrySet()) {
+            IntegrationResponse response = getResponse(upload.getValue());
+            if (!response.isSuccess()) {
+                failures.add(LogUtil.getIntegrationDataMap("path", upload.getKey(), "error", response.getError().getTitle(), "detail", response.getError().getMessage()));
+            } else if (null == response.getResult().get("length")) {
+                unchanged++;
+            } else {
+                uploaded.add(upload.getKey());
+                uploadedLength += ((Number) response.getResult().get("length")).longValue();
+            }
+        }
+        for (Map.Entry<String, Future<IntegrationResponse>> delete: deletes.entrySet()) {
+            IntegrationResponse response = getResponse(delete.getValue());
+            if (response.isSuccess()) {
+                deleted.add(delete.getKey());
+            } else {
+                failures.add(LogUtil.getIntegrationDataMap("path", delete.getKey(), "error", response.getError().getTitle(), "detail", response.getError().getMessage()));
+            }
+        }
+        endTime = System.currentTimeMillis();
+        logger.info("Synced {} to {}: {} uploaded, {} unchanged, {} deleted, {} failed", source, basePath, uploaded.size(), unchanged, deleted.size(), failures.size());
+
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName(), "files", localFiles.size(), "remotePaths", remotePaths.size(), "compare", compare, "maxParallel", threads);
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(requestDiagnostic)
+                .addExecutionTimeDiagnostic(endTime - startTime)
+                .build();
+        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("uploaded", uploaded, "length", uploadedLength, "unchanged", unchanged, "deleted", deleted, "failed", failures);
+        return IntegrationResponse.forSuccess(responseData).withDiagnostic(integrationDesignerDiagnostic).build();
+    }
+
+    /**
+     * List everything under the destination
+     * @param path The destination, relative to the filesystem
+     * @param remotePaths Receives the paths, keyed by the path relative to the destination
+     * @return The list response
+     */
+    private static IntegrationResponse listRemote(String path, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext, Map<String, Map<String, Object>> remotePaths) {
+        PathList pathList = new PathList();
+        SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathList, connectedSystemConfiguration, executionContext);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_RECURSIVE, true);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_MAX_PAGES, Integer.MAX_VALUE);
+        IntegrationResponse listResponse = pathList.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+        if (!listResponse.isSuccess() || null == listResponse.getResult().get("paths")) {
+            return listResponse;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> paths = (List<Map<String, Object>>) listResponse.getResult().get("paths");
+        String prefix = path.isEmpty() ? "" : path + "/";
+        for (Map<String, Object> remote: paths) {
+            String name = String.valueOf(remote.get("name"));
+            if (name.startsWith(prefix)) remotePaths.put(name.substring(prefix.length()), remote);
+        }
+        return listResponse;
+    }
+
+    /**
+     * Upload a file unless the remote file has the same content hash
+     * @param file The local file
+     * @param path The destination path
+     * @param remote The listing of the remote file if it is the same size, or null
+     * @return The upload response, or a success without a length if the file is unchanged
+     */
+    private static IntegrationResponse syncFile(Path file, String path, Map<String, Object> remote, int maxInFlight, URI resourceUri, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        String contentHash;
+        try {
+            contentHash = contentHash(file);
+        } catch (IOException e) {
+            return LogUtil.createError("Unable to read " + file, e.getMessage());
+        }
+
+        if (null != remote && contentHash.equals(remoteContentHash(path, String.valueOf(remote.get("etag")), resourceUri, connectedSystemConfiguration, executionContext))) {
+            return IntegrationResponse.forSuccess(LogUtil.getIntegrationDataMap("path", path)).build();
+        }
+
+        DocumentUploader documentUploader = new DocumentUploader();
+        SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(documentUploader, connectedSystemConfiguration, executionContext);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_SOURCE_FILE, file.toString());
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_OVERWRITE, true);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PROPERTIES, CONTENT_HASH_PROPERTY + "=" + Base64.getEncoder().encodeToString(contentHash.getBytes(StandardCharsets.US_ASCII)));
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_MAX_IN_FLIGHT, maxInFlight);
+        return documentUploader.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+    }
+
+    /**
+     * Get the content hash stored with a remote file. The cached properties are used if they are for the listed ETag.
+     * @return The hash, or null if the file has none
+     */
+    private static String remoteContentHash(String path, String etag, URI resourceUri, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        Map<String, Object> values = null;
+        try {
+            URIBuilder uriBuilder = new URIBuilder(resourceUri);
+            PathMetadataCache.Entry cached = PathMetadataCache.get(uriBuilder.setPath(uriBuilder.getPath() + "/" + path).build());
+            if (null != cached && cached.exists() && null != cached.getEtag() && cached.getEtag().replace("\"", "").equals(etag.replace("\"", ""))) {
+                values = cached.getValues();
+            }
+        } catch (URISyntaxException e) {
+            logger.warn("Invalid URI for {}: {}", path, e.getMessage());
+        }
+
+        if (null == values || !(values.get("properties") instanceof Map)) {
+            PathGetProperties pathGetProperties = new PathGetProperties();
+            SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathGetProperties, connectedSystemConfiguration, executionContext);
+            subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+            IntegrationResponse response = pathGetProperties.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+            if (!response.isSuccess()) return null;
+            values = response.getResult();
+        }
+
+        Object properties = values.get("properties");
+        Object hash = properties instanceof Map ? ((Map<?, ?>) properties).get(CONTENT_HASH_PROPERTY) : null;
+        if (null == hash) return null;
+        try {
+            return new String(Base64.getDecoder().decode(hash.toString()), StandardCharsets.US_ASCII);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Work out the SHA-256 of a file, reading it through a memory mapping
+     * @param file The file
+     * @return The hash, in hex
+     * @throws IOException If the file cannot be read
+     */
+    static String contentHash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long offset = 0; offset < size; offset += Integer.MAX_VALUE) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Integer.MAX_VALUE, size - offset));
+                digest.update(region);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Find the remote paths with no local file or directory. A path under an orphaned directory is left to the delete
+     * of the directory.
+     * @return The orphans, relative to the destination
+     */
+    static List<String> findOrphans(Map<String, Map<String, Object>> remotePaths, Map<String, Path> localFiles, List<String> localDirectories) {
+        List<String> orphans = new ArrayList<>();
+        String orphanedDirectory = null;
+        for (Map.Entry<String, Map<String, Object>> remote: remotePaths.entrySet()) {
+            String name = remote.getKey();
+            if (name.isEmpty() || (null != orphanedDirectory && name.startsWith(orphanedDirectory + "/"))) continue;
+
+            boolean directory = Boolean.TRUE.equals(remote.getValue().get("isDirectory"));
+            if (directory ? !localDirectories.contains(name) : !localFiles.containsKey(name)) {
+                orphans.add(name);
+                if (directory) orphanedDirectory = name;
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Delete a remote path and anything under it
+     */
+    private static IntegrationResponse deletePath(String path, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        PathDelete pathDelete = new PathDelete();
+        SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathDelete, connectedSystemConfiguration, executionContext);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_RECURSIVE, true);
+        return pathDelete.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+    }
+
+    /**
+     * Get the last modified time of a listed path
+     * @return The time in milliseconds, or 0 if it is not known
+     */
+    private static long lastModified(Map<String, Object> remote) {
+        Object lastModified = remote.get("lastModified");
+        if (null == lastModified) return 0;
+        try {
+            return ZonedDateTime.parse(lastModified.toString(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Wait for a task
+     */
+    private static IntegrationResponse getResponse(Future<IntegrationResponse> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            IntegrationResponse response = LogUtil.createError("Sync task threw an exception", e.getMessage());
+            logger.error(response.getError().getTitle(), e);
+            return response;
+        }
+    }
+
+    /**
+     * Join the destination and a relative path
+     */
+    private static String join(String basePath, String relative) {
+        return basePath.isEmpty() ? relative : basePath + "/" + relative;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.simplified.sdk.SimpleIntegrationTemplate;
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import com.appian.connectedsystems.templateframework.sdk.TemplateId;
+import com.appian.connectedsystems.templateframework.sdk.configuration.Document;
+import com.appian.connectedsystems.templateframework.sdk.configuration.PropertyPath;
+import com.appian.connectedsystems.templateframework.sdk.diagnostics.IntegrationDesignerDiagnostic;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateRequestPolicy;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.net.URIBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.path.PathCreate;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Upload an Appian document or a local file to a datalake file. The file is sent as position addressed appends in
+ * parallel, followed by a single flush. A file on disk is memory mapped a region at a time, so even a large document
+ * is never read onto the heap. A local file must be within the local root of the connected system.
+ */
+@TemplateId(name="DocumentUploader")
+@IntegrationTemplateType(IntegrationTemplateRequestPolicy.WRITE)
+public class DocumentUploader extends SimpleIntegrationTemplate {
+    private static final Logger logger = LoggerFactory.getLogger(DocumentUploader.class);
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int DEFAULT_MAX_CHUNK_SIZE_MB = 64;
+    private static final int MAX_CHUNK_SIZE_MB = 1024;
+    private static final int STREAM_BUFFER_SIZE = 65536;
+
+    @Override
+    protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
+        return integrationConfiguration.setProperties(
+                textProperty(Constants.SC_ATTR_PATH)
+                        .label("Path")
+                        .description("The file to upload to.")
+                        .isRequired(true)
+                        .isExpressionable(true)
+                        .build(),
+                documentProperty(Constants.SC_ATTR_DOCUMENT)
+                        .label("Document")
+                        .description("The document to upload. Either a document or a source file must be given.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_SOURCE_FILE)
+                        .label("Source file")
+                        .description("The path of a file on the Appian server to upload. It must be within the local root of the connected system.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                booleanProperty(Constants.SC_ATTR_OVERWRITE)
+                        .label("Overwrite")
+                        .description("Replace the file if it already exists (default false).")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_MIME_TYPE)
+                        .label("MIME type")
+                        .description("The content type of the file (default application/octet-stream).")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_PROPERTIES)
+                        .label("Properties")
+                        .description("User properties to store with the file, as name=value pairs separated by commas, with each value base64 encoded.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_IN_FLIGHT)
+                        .label("Parallel uploads")
+                        .description("The maximum number of uploads in flight at once (default " + DEFAULT_MAX_IN_FLIGHT + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_CHUNK_SIZE)
+                        .label("Maximum upload size (MB)")
+                        .description("The largest single upload request. Uploads start at 1MB and grow while the datalake keeps up (default " + DEFAULT_MAX_CHUNK_SIZE_MB + ", at most " + MAX_CHUNK_SIZE_MB + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build()
+        );
+    }
+
+    @Override
+    protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        long startTime, endTime;
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
+
+        URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
+        if (null == resourceUri) {
+            return LogUtil.createError("Invalid base URI", "The base URI is invalid");
+        }
+
+        String path = integrationConfiguration.getValue(Constants.SC_ATTR_PATH);
+        if (null == path || (path.startsWith("/") && path.length() < 2) || (!path.startsWith("/") && path.length() < 1)) {
+            return LogUtil.createError("Invalid path", "Invalid path specified");
+        }
+        if(!path.startsWith("/")) path = "/" + path;
+        Document document = integrationConfiguration.getValue(Constants.SC_ATTR_DOCUMENT);
+        String sourceFile = integrationConfiguration.getValue(Constants.SC_ATTR_SOURCE_FILE);
+        if (null != sourceFile && sourceFile.trim().isEmpty()) sourceFile = null;
+        if ((null == document) == (null == sourceFile)) {
+            return LogUtil.createError("Invalid source", "Either a document or a source file must be given");
+        }
+        Path sourcePath = null;
+        if (null != sourceFile) {
+            try {
+                sourcePath = AppianUtils.getLocalPath(connectedSystemConfiguration, sourceFile);
+            } catch (IOException e) {
+                return LogUtil.createError("Invalid source file", e.getMessage());
+            }
+        }
+        String mimeType = integrationConfiguration.getValue(Constants.SC_ATTR_MIME_TYPE);
+        ContentType contentType;
+        try {
+            contentType = null == mimeType || mimeType.trim().isEmpty() ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(mimeType);
+        } catch (RuntimeException e) {
+            return LogUtil.createError("Invalid MIME type", e.getMessage());
+        }
+        Integer maxInFlight = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_IN_FLIGHT);
+        if (null == maxInFlight || maxInFlight < 1) maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+        Integer maxChunkSizeMb = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_CHUNK_SIZE);
+        int maxChunkSize = AdaptiveChunkSizer.MIN_CHUNK_SIZE * Math.min(MAX_CHUNK_SIZE_MB, null == maxChunkSizeMb || maxChunkSizeMb < 1 ? DEFAULT_MAX_CHUNK_SIZE_MB : maxChunkSizeMb);
+
+        URI fileUri;
+        try {
+            URIBuilder uriBuilder = new URIBuilder(resourceUri);
+            fileUri = uriBuilder
+                    .setPath(uriBuilder.getPath() + path)
+                    .build();
+        } catch (URISyntaxException e) {
+            return LogUtil.createError("Invalid URI", e.getMessage());
+        }
+
+        // Create the file
+        startTime = System.currentTimeMillis();
+        PathCreate pathCreate = new PathCreate();
+        SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(pathCreate, connectedSystemConfiguration, executionContext);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PATH, path);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_FILE, true);
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_OVERWRITE, Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_OVERWRITE)));
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_MIME_TYPE, contentType.toString());
+        subIntegrationConfiguration.setValue(Constants.SC_ATTR_PROPERTIES, integrationConfiguration.getValue(Constants.SC_ATTR_PROPERTIES));
+        IntegrationResponse executeResponse = pathCreate.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+        if (!executeResponse.isSuccess()) {
+            return executeResponse;
+        }
+
+        // Upload the data, mapping it from the file where there is one
+        AdaptiveChunkSizer chunkSizer = new AdaptiveChunkSizer(AdaptiveChunkSizer.MIN_CHUNK_SIZE, maxChunkSize, maxInFlight + 1);
+        ParallelAppender appender = new ParallelAppender(client, fileUri, contentType, chunkSizer, maxInFlight);
+        boolean mapped;
+        IntegrationResponse uploaderResponse;
+        try {
+            if (null != sourcePath) {
+                try (FileChannel channel = FileChannel.open(sourcePath, StandardOpenOption.READ)) {
+                    uploaderResponse = upload(appender, channel);
+                }
+                mapped = true;
+            } else {
+                try (InputStream in = document.getInputStream()) {
+                    mapped = in instanceof FileInputStream;
+                    uploaderResponse = mapped ? upload(appender, ((FileInputStream) in).getChannel()) : upload(appender, in);
+                }
+            }
+        } catch (IOException e) {
+            // A failed append stops the upload, so report the append rather than the read
+            uploaderResponse = appender.getError();
+            if (null == uploaderResponse) {
+                uploaderResponse = LogUtil.createError("Unable to read " + (null == sourcePath ? "the document" : sourcePath), e.getMessage());
+                logger.error(uploaderResponse.getError().getTitle(), e);
+            }
+            mapped = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            uploaderResponse = LogUtil.createError("Upload interrupted for " + path, e.getMessage());
+            logger.error(uploaderResponse.getError().getDetail());
+            mapped = false;
+        } finally {
+            appender.close();
+        }
+        if (!uploaderResponse.isSuccess()) {
+            return uploaderResponse;
+        }
+
+        // Finally flush the data
+        executeResponse = appender.flush();
+        endTime = System.currentTimeMillis();
+        if (executeResponse.isSuccess()) {
+            Map<String, Object> responseMap = new HashMap<>(executeResponse.getResult());
+            responseMap.put("path", path);
+            responseMap.put("length", appender.getPosition());
+            responseMap.put("chunkSizes", appender.getChunkSizes());
+            executeResponse = IntegrationResponse.forSuccess(responseMap).withDiagnostic(executeResponse.getIntegrationDesignerDiagnostic()).build();
+        }
+
+        // Record some diagnostics
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName(), "path", path, "length", appender.getPosition(), "mapped", mapped, "maxInFlight", maxInFlight);
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(requestDiagnostic)
+                .addExecutionTimeDiagnostic(endTime - startTime)
+                .build();
+
+        LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
+        return executeResponse;
+    }
+
+    /**
+     * Append a file a region at a time, from its current position to the end
+     * @param appender The appender
+     * @param channel The file
+     * @return The result of the appends
+     * @throws IOException If the file cannot be read
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static IntegrationResponse upload(ParallelAppender appender, FileChannel channel) throws IOException, InterruptedException {
+        long size = channel.size();
+        for (long offset = channel.position(); offset < size && null == appender.getError(); ) {
+            int length = (int) Math.min(appender.getChunkSize(), size - offset);
+            appender.appendRegion(channel, offset, length);
+            offset += length;
+        }
+        return appender.await();
+    }
+
+    /**
+     * Append a stream, copying it into the appender's buffers
+     * @param appender The appender
+     * @param in The data
+     * @return The result of the appends
+     * @throws IOException If the stream cannot be read
+     * @throws InterruptedException If interrupted while waiting
+     */
+    private static IntegrationResponse upload(ParallelAppender appender, InputStream in) throws IOException, InterruptedException {
+        byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        try (OutputStream out = new AppendingOutputStream(appender)) {
+            int count;
+            while ((count = in.read(buf)) > 0) out.write(buf, 0, count);
+        }
+        return appender.await();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An entity for a region of a file. The region is memory mapped and written to the connection from the mapping, so
+ * the data is never held on the heap. The channel is owned by the caller, and is not closed with the entity.
+ */
+public class FileRegionEntity extends AbstractHttpEntity {
+    private final FileChannel channel;
+    private final long offset;
+    private final int length;
+
+    /**
+     * Create an entity
+     * @param channel The file
+     * @param offset The start of the region
+     * @param length The length of the region
+     * @param contentType The content type of the data
+     */
+    public FileRegionEntity(FileChannel channel, long offset, int length, ContentType contentType) {
+        super(contentType, null, false);
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Map the region
+     * @return A read only buffer of the region
+     * @throws IOException If the region cannot be mapped
+     */
+    private ByteBuffer map() throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        final ByteBuffer region = map();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return region.hasRemaining() ? region.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!region.hasRemaining()) return -1;
+                int count = Math.min(len, region.remaining());
+                region.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return region.remaining();
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        ByteBuffer region = map();
+        // Not closed, as that would close the connection's stream
+        WritableByteChannel target = Channels.newChannel(outStream);
+        while (region.hasRemaining()) target.write(region);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -22,17 +22,35 @@ import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
 import com.appian.connectedsystems.templateframework.sdk.ProxyConfigurationData;
 import org.apache.hc.client5.http.auth.AuthScope;
 import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
+import org.apache.hc.client5.http.impl.ChainElement;
 import org.apache.hc.client5.http.impl.auth.BasicCredentialsProvider;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactoryBuilder;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.ssl.SSLContexts;
+import org.apache.hc.core5.util.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.metrics.DatalakeMetrics;
+import uk.org.kano.appian.metrics.MetricsExecChainHandler;
 
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A set of HTTP utilities to do authentication and such
@@ -40,21 +58,146 @@ import java.net.URISyntaxException;
 public class HttpUtils {
     private static final Logger logger = LoggerFactory.getLogger(HttpUtils.class);
 
-    // The signing request interceptor
-    private static SigningHttpRequestInterceptor signingHttpRequestInterceptor = new SigningHttpRequestInterceptor();
+    // Connection pool sizing. The per route limit matters most as all requests go to a single account host.
+    private static final int MAX_CONNECTIONS_TOTAL = 64;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 32;
+    private static final TimeValue CONNECTION_KEEP_ALIVE = TimeValue.ofSeconds(60);
+    private static final TimeValue CONNECTION_IDLE_EVICTION = TimeValue.ofSeconds(30);
+    private static final TimeValue CONNECTION_VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(2);
 
+    // Retries of throttled and failed requests. The budget is counted from the first failure of a request.
+    private static final int RETRY_MAX_RETRIES = 10;
+    private static final TimeValue RETRY_BASE_DELAY = TimeValue.ofMilliseconds(200);
+    private static final TimeValue RETRY_MAX_DELAY = TimeValue.ofSeconds(30);
+    private static final TimeValue RETRY_TIME_BUDGET = TimeValue.ofSeconds(120);
+
+    // The long lived clients, keyed by the account, filesystem, a hash of the credentials and the proxy. Only the hash is
+    // kept, so the credentials themselves are not held in the key. A client that has not been used for a while, and has
+    // no connections leased, is closed, which clears out the clients of old credentials once a key has been rotated.
+    private static final ConcurrentMap<List<Object>, PooledClient> httpClients = new ConcurrentHashMap<>();
+    static final long CLIENT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final long CLIENT_EVICTION_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final AtomicLong nextEviction = new AtomicLong();
+
+    static {
+        PluginLifecycle.start();
+    }
 
     /**
-     * Create an HTTP Client that has a set of pre-configured authentication helpers. This does not
+     * Get a pooled HTTP Client that has a set of pre-configured authentication helpers. The client is shared between
+     * executions using the same account, credentials, filesystem and proxy settings, so callers must not close it. This does not
      * honour the proxy excludes, firstly due to support, but also, the ADLS Gen 2 host should be external.
-     * @return
+     * @param connectedSystemConfiguration The connected system configuration
+     * @param executionContext The execution context, which may be null
+     * @return The shared client
      */
-    public static CloseableHttpClient getHttpClient(ExecutionContext executionContext) {
-        HttpHost proxyHost = null;
-        BasicCredentialsProvider proxyCredentials = null;
+    public static CloseableHttpClient getHttpClient(SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        String accountName = null, accountKey = null, fileSystem = null;
         ProxyConfigurationData proxyConfigurationData = null;
 
+        if (null != connectedSystemConfiguration) {
+            accountName = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_NAME);
+            accountKey = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_KEY);
+            fileSystem = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_FILESYSTEM);
+        }
         if (null != executionContext) proxyConfigurationData = executionContext.getProxyConfigurationData();
+        return getHttpClient(accountName, accountKey, fileSystem, proxyConfigurationData);
+    }
+
+    /**
+     * Get the shared client for an account. Different credentials for the same account, such as both keys while they are
+     * rotated, each get their own client, so that neither closes a client the other is using.
+     * @param accountName The account name
+     * @param accountKey The base64 account key
+     * @param fileSystem The filesystem
+     * @param proxyConfigurationData The proxy configuration, or null for a direct connection
+     * @return The shared client
+     */
+    static CloseableHttpClient getHttpClient(String accountName, String accountKey, String fileSystem, ProxyConfigurationData proxyConfigurationData) {
+        List<Object> clientKey;
+        if (null != proxyConfigurationData && proxyConfigurationData.isEnabled()) {
+            String credentialsHash = hashCredentials(accountKey, proxyConfigurationData.getUsername(), proxyConfigurationData.getPassword());
+            clientKey = Arrays.asList(accountName, fileSystem, credentialsHash, proxyConfigurationData.getHost(), proxyConfigurationData.getPort());
+        } else {
+            clientKey = Arrays.asList(accountName, fileSystem, hashCredentials(accountKey));
+        }
+
+        long now = System.currentTimeMillis();
+        long eviction = nextEviction.get();
+        if (now >= eviction && nextEviction.compareAndSet(eviction, now + CLIENT_EVICTION_INTERVAL_MS)) {
+            evictIdle(now);
+        }
+
+        PooledClient pooledClient = httpClients.computeIfAbsent(clientKey, key -> createHttpClient(accountName, new SigningHttpRequestInterceptor(accountName, accountKey), proxyConfigurationData));
+        pooledClient.touch();
+        return pooledClient.client;
+    }
+
+    /**
+     * Close the clients that have not been used since the idle timeout, and have no connections leased
+     * @param now The current time
+     */
+    static void evictIdle(long now) {
+        for (Map.Entry<List<Object>, PooledClient> entry: httpClients.entrySet()) {
+            PooledClient pooledClient = entry.getValue();
+            if (!pooledClient.isIdle(now) || !httpClients.remove(entry.getKey(), pooledClient)) continue;
+
+            logger.info("Closing the idle HTTP client for account {}", pooledClient.accountName);
+            pooledClient.close();
+        }
+    }
+
+    /**
+     * Close all the shared clients, when the plugin is unloaded
+     */
+    static void closeAll() {
+        for (List<Object> clientKey: httpClients.keySet()) {
+            PooledClient pooledClient = httpClients.remove(clientKey);
+            if (null != pooledClient) pooledClient.close();
+        }
+    }
+
+    /**
+     * @return The number of shared clients
+     */
+    static int getClientCount() {
+        return httpClients.size();
+    }
+
+    /**
+     * Hash a set of credentials, so that a change can be spotted without keeping them
+     * @param credentials The credentials, any of which may be null
+     * @return The hex SHA-256 of the credentials
+     */
+    private static String hashCredentials(String... credentials) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (String credential: credentials) {
+            if (null != credential) digest.update(credential.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Create an HTTP Client with a bounded connection pool, the authentication helpers, retries of throttled requests
+     * and the metrics of each request.
+     * @param accountName The account name, or null to take it from the request host
+     * @param signingHttpRequestInterceptor The request signer for the account
+     * @param proxyConfigurationData The proxy configuration, or null for a direct connection
+     * @return The new client
+     */
+    private static PooledClient createHttpClient(String accountName, SigningHttpRequestInterceptor signingHttpRequestInterceptor, ProxyConfigurationData proxyConfigurationData) {
+        HttpHost proxyHost = null;
+        AtomicLong lastUsed = new AtomicLong(System.currentTimeMillis());
+        BasicCredentialsProvider proxyCredentials = null;
 
         if (null != proxyConfigurationData && proxyConfigurationData.isEnabled()) {
             String ph = proxyConfigurationData.getHost();
@@ -78,12 +221,73 @@ public class HttpUtils {
                 }
             }
         }
-        return HttpClients.custom()
+
+        // A single SSL context per pool so that TLS sessions are resumed when new connections are opened.
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setSSLSocketFactory(SSLConnectionSocketFactoryBuilder.create()
+                        .setSslContext(SSLContexts.createSystemDefault())
+                        .build())
+                .setMaxConnTotal(MAX_CONNECTIONS_TOTAL)
+                .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+                .setValidateAfterInactivity(CONNECTION_VALIDATE_AFTER_INACTIVITY)
+                .build();
+        if (null != accountName) DatalakeMetrics.addConnectionPool(accountName, connectionManager);
+
+        // Content compression is disabled, so a file stored with a content encoding is read as stored. Otherwise each
+        // range of a gzip file would be decompressed on its own, which fails.
+        logger.debug("Creating pooled HTTP client");
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .addRequestInterceptorFirst((request, entity, context) -> lastUsed.set(System.currentTimeMillis()))
+                .disableContentCompression()
+                .setKeepAliveStrategy((response, context) -> CONNECTION_KEEP_ALIVE)
+                .evictExpiredConnections()
+                .evictIdleConnections(CONNECTION_IDLE_EVICTION)
                 .addRequestInterceptorLast(signingHttpRequestInterceptor)
                 .setDefaultHeaders(signingHttpRequestInterceptor.getAuthenticationHeaders())
+                .setRetryStrategy(new ThrottlingRetryStrategy(RETRY_MAX_RETRIES, RETRY_BASE_DELAY, RETRY_MAX_DELAY, RETRY_TIME_BUDGET))
+                .addExecInterceptorAfter(ChainElement.RETRY.name(), "metrics", new MetricsExecChainHandler(accountName))
                 .setProxy(proxyHost)
                 .setDefaultCredentialsProvider(proxyCredentials)
                 .build();
+        return new PooledClient(accountName, client, connectionManager, lastUsed);
+    }
+
+    /**
+     * A shared client, and when it was last used
+     */
+    private static final class PooledClient {
+        private final String accountName;
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final AtomicLong lastUsed;
+
+        PooledClient(String accountName, CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager, AtomicLong lastUsed) {
+            this.accountName = accountName;
+            this.client = client;
+            this.connectionManager = connectionManager;
+            this.lastUsed = lastUsed;
+        }
+
+        void touch() {
+            lastUsed.set(System.currentTimeMillis());
+        }
+
+        /**
+         * @param now The current time
+         * @return True if the client has not been used since the idle timeout, and none of its connections are leased
+         */
+        boolean isIdle(long now) {
+            return now - lastUsed.get() > CLIENT_IDLE_TIMEOUT_MS && 0 == connectionManager.getTotalStats().getLeased();
+        }
+
+        /**
+         * Close the client, and stop counting its pool in the account metrics
+         */
+        void close() {
+            client.close(CloseMode.GRACEFUL);
+            if (null != accountName) DatalakeMetrics.removeConnectionPool(accountName, connectionManager);
+        }
     }
 
     /**
@@ -92,17 +296,41 @@ public class HttpUtils {
      * @return
      */
     public static URI getBaseUri(SimpleConfiguration configuration) {
-        URIBuilder builder = new URIBuilder();
+        URI accountUri = getAccountUri(configuration);
+        if (null == accountUri) return null;
+
+        URIBuilder builder = new URIBuilder(accountUri);
         try {
-            signingHttpRequestInterceptor.setKey(configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_KEY));
             URI location = builder
-                    .setScheme("https")
-                    .setHost(configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_NAME) + AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_DOMAINNAME)
-                    .setPath(configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_FILESYSTEM))
+                    .setPath(accountUri.getPath() + "/" + configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_FILESYSTEM))
                     .build();
             logger.debug("Using datalake at URL {}", location.toString());
             return location;
-        } catch (IOException | URISyntaxException e) {
+        } catch (URISyntaxException e) {
+            logger.error("Unable to build URL", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the URL of the account. This is the endpoint override if there is one, otherwise the account host.
+     * @param configuration
+     * @return The account URL without a trailing slash, or null if it is invalid
+     */
+    public static URI getAccountUri(SimpleConfiguration configuration) {
+        String endpoint = configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ENDPOINT);
+        try {
+            if (null == endpoint || endpoint.trim().isEmpty()) {
+                return new URIBuilder()
+                        .setScheme("https")
+                        .setHost(configuration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_NAME) + AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_DOMAINNAME)
+                        .build();
+            }
+
+            URIBuilder builder = new URIBuilder(endpoint.trim());
+            String path = null == builder.getPath() ? "" : builder.getPath().replaceAll("/+$", "");
+            return builder.setPath(path).build();
+        } catch (URISyntaxException e) {
             logger.error("Unable to build URL", e);
             return null;
         }
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.apache.hc.client5.http.classic.methods.HttpPatch;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.net.URIBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Upload data to a file as a series of position addressed appends, with a bounded number of appends in flight at once.
+ * When all the data has been appended, a single flush commits the file at the final length. The first append to fail
+ * cancels all the others. The size of the appends can be chosen as the upload progresses by an AdaptiveChunkSizer.
+ */
+public class ParallelAppender implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelAppender.class);
+
+    private final CloseableHttpClient client;
+    private final URI fileUri;
+    private final ContentType contentType;
+    private final BlockingQueue<byte[]> buffers;
+    private final AdaptiveChunkSizer chunkSizer;
+    private final ExecutorService executorService;
+    private final List<Future<?>> pendingAppends = new ArrayList<>();
+    private final Set<HttpPatch> activeRequests = ConcurrentHashMap.newKeySet();
+    private volatile IntegrationResponse error = null;
+    private long position;
+
+    /**
+     * Create an appender
+     * @param client The client to upload with
+     * @param fileUri The URI of the file, which must already exist
+     * @param contentType The content type of the data
+     * @param bufSize The size of each append
+     * @param maxInFlight The maximum number of appends in flight at once
+     */
+    public ParallelAppender(CloseableHttpClient client, URI fileUri, ContentType contentType, int bufSize, int maxInFlight) {
+        this(client, fileUri, contentType, new AdaptiveChunkSizer(bufSize, bufSize, Math.max(1, maxInFlight) + 1), maxInFlight);
+    }
+
+    /**
+     * Create an appender that sizes the appends as it goes
+     * @param client The client to upload with
+     * @param fileUri The URI of the file, which must already exist
+     * @param contentType The content type of the data
+     * @param chunkSizer Chooses the size of each append
+     * @param maxInFlight The maximum number of appends in flight at once
+     */
+    public ParallelAppender(CloseableHttpClient client, URI fileUri, ContentType contentType, AdaptiveChunkSizer chunkSizer, int maxInFlight) {
+        this(client, fileUri, contentType, chunkSizer, maxInFlight, 0);
+    }
+
+    /**
+     * Create an appender that adds to the end of an existing file
+     * @param client The client to upload with
+     * @param fileUri The URI of the file, which must already exist
+     * @param contentType The content type of the data
+     * @param chunkSizer Chooses the size of each append
+     * @param maxInFlight The maximum number of appends in flight at once
+     * @param position The current length of the file
+     */
+    public ParallelAppender(CloseableHttpClient client, URI fileUri, ContentType contentType, AdaptiveChunkSizer chunkSizer, int maxInFlight, long position) {
+        if (maxInFlight < 1) maxInFlight = 1;
+        this.position = position;
+        this.client = client;
+        this.fileUri = fileUri;
+        this.contentType = contentType;
+        this.chunkSizer = chunkSizer;
+        this.executorService = Executors.newFixedThreadPool(maxInFlight);
+
+        // One more buffer than can be in flight, so that the next one can be filled while waiting. The buffers are only
+        // allocated when first taken, so an upload of file regions never allocates them.
+        this.buffers = new ArrayBlockingQueue<>(maxInFlight + 1);
+        for (int i = 0; i <= maxInFlight; i++) buffers.add(new byte[0]);
+    }
+
+    /**
+     * Get a free buffer to fill, waiting for an in-flight append to complete if required. The buffer is the size the
+     * next append should be, so fill all of it.
+     * @return The buffer
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public byte[] takeBuffer() throws InterruptedException {
+        byte[] buf = buffers.take();
+        int chunkSize = chunkSizer.getChunkSize();
+        return buf.length == chunkSize ? buf : new byte[chunkSize];
+    }
+
+    /**
+     * Return a buffer that was not used
+     * @param buf The buffer
+     */
+    public void returnBuffer(byte[] buf) {
+        buffers.offer(buf);
+    }
+
+    /**
+     * Append the buffer at the current position. The buffer is returned to the pool when the append completes.
+     * @param buf The buffer from takeBuffer()
+     * @param bufLen The number of bytes to append
+     */
+    public void append(byte[] buf, int bufLen) {
+        final long offset = position;
+        position += bufLen;
+
+        pendingAppends.removeIf(Future::isDone);
+        pendingAppends.add(executorService.submit(() -> doAppend(new ByteArrayEntity(buf, 0, bufLen, contentType, false), bufLen, offset, buf)));
+    }
+
+    /**
+     * Append a region of a file at the current position. The region is memory mapped when sent, so the data is not
+     * copied into a buffer on the heap. Waits for an in-flight append to complete if required.
+     * @param channel The file, which must stay open until the appends complete
+     * @param regionOffset The start of the region in the file
+     * @param regionLength The length of the region, which should be the size from getChunkSize()
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void appendRegion(FileChannel channel, long regionOffset, int regionLength) throws InterruptedException {
+        // The buffer is not used, it only holds the place of the append in flight
+        byte[] buf = buffers.take();
+        final long offset = position;
+        position += regionLength;
+
+        pendingAppends.removeIf(Future::isDone);
+        pendingAppends.add(executorService.submit(() -> doAppend(new FileRegionEntity(channel, regionOffset, regionLength, contentType), regionLength, offset, buf)));
+    }
+
+    /**
+     * @return The size the next append should be
+     */
+    public int getChunkSize() {
+        return chunkSizer.getChunkSize();
+    }
+
+    /**
+     * Get the first error from an append
+     * @return The error, or null if no appends have failed
+     */
+    public IntegrationResponse getError() {
+        return error;
+    }
+
+    /**
+     * Get the sizes chosen for the appends
+     * @return Each size, in order
+     */
+    public List<Integer> getChunkSizes() {
+        return chunkSizer.getChunkSizes();
+    }
+
+    /**
+     * Get the position the next append will be made at
+     * @return The position
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Wait for all the in-flight appends to complete
+     * @return The first error, or a success with the total length appended
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public IntegrationResponse await() throws InterruptedException {
+        for (Future<?> pendingAppend: pendingAppends) {
+            try {
+                pendingAppend.get();
+            } catch (ExecutionException e) {
+                fail(LogUtil.createError("Append task threw an exception", e.getMessage()));
+            } catch (CancellationException ignored) {}
+        }
+        pendingAppends.clear();
+
+        if (null != error) return error;
+        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("length", position);
+        return IntegrationResponse.forSuccess(responseData).build();
+    }
+
+    /**
+     * Flush and close the file at the final position. Only call this after a successful await().
+     * @return The flush response
+     */
+    public IntegrationResponse flush() {
+        URI flushUri;
+        try {
+            URIBuilder uriBuilder = new URIBuilder(fileUri);
+            flushUri = uriBuilder
+                    .addParameter("action", "flush")
+                    .addParameter("close", "true")
+                    .addParameter("position", Long.toString(position))
+                    .build();
+        } catch (URISyntaxException e) {
+            return LogUtil.createError("Invalid URI", e.getMessage());
+        }
+
+        HttpPatch request = new HttpPatch(flushUri);
+        request.setEntity(new StringEntity("", contentType, false));
+        IntegrationResponse flushResponse;
+        try {
+            BasicResponseHandler brh = new BasicResponseHandler();
+            flushResponse = client.execute(request, brh);
+        } catch (IOException e) {
+            flushResponse = LogUtil.createError("Unable to execute request to " + flushUri.toString(), e.getMessage());
+            logger.error(flushResponse.getError().getDetail());
+        }
+
+        Object etag = flushResponse.isSuccess() ? flushResponse.getResult().get("etag") : null;
+        PathMetadataCache.putWrite(fileUri, null == etag ? null : etag.toString(), position);
+        return flushResponse;
+    }
+
+    /**
+     * Cancel anything still in flight and stop the append threads.
+     */
+    @Override
+    public void close() {
+        if (!pendingAppends.stream().allMatch(Future::isDone)) {
+            fail(LogUtil.createError("Upload aborted", "The upload was closed with appends in flight"));
+        }
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Send a single append
+     * @param entity The data
+     * @param bufLen The length of the data
+     * @param offset The position in the file
+     * @param buf The buffer to return to the pool when done
+     */
+    private void doAppend(HttpEntity entity, int bufLen, long offset, byte[] buf) {
+        URI uploadUri = fileUri;
+        HttpPatch request = null;
+        try {
+            if (null != error) return;
+
+            URIBuilder uriBuilder = new URIBuilder(fileUri);
+            uploadUri = uriBuilder
+                    .addParameter("action", "append")
+                    .addParameter("position", Long.toString(offset))
+                    .build();
+
+            request = new HttpPatch(uploadUri);
+            request.setEntity(entity);
+            activeRequests.add(request);
+            BasicResponseHandler brh = new BasicResponseHandler();
+            long startTime = System.nanoTime();
+            IntegrationResponse integrationResponse = client.execute(request, brh);
+            if (integrationResponse.isSuccess()) {
+                chunkSizer.record(bufLen, System.nanoTime() - startTime);
+            } else {
+                fail(integrationResponse);
+            }
+        } catch (URISyntaxException e) {
+            fail(LogUtil.createError("Invalid URI", e.getMessage()));
+        } catch (IOException e) {
+            fail(LogUtil.createError("Unable to execute request to " + uploadUri.toString(), e.getMessage()));
+        } finally {
+            if (null != request) activeRequests.remove(request);
+            buffers.offer(buf);
+        }
+    }
+
+    /**
+     * Record the first failure and cancel the other appends in flight.
+     * @param integrationResponse The error
+     */
+    private void fail(IntegrationResponse integrationResponse) {
+        synchronized (this) {
+            if (null != error) return;
+            error = integrationResponse;
+        }
+        logger.error("Append to {} failed, cancelling {} in-flight appends", fileUri, activeRequests.size());
+        activeRequests.forEach(HttpPatch::cancel);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import com.appian.connectedsystems.templateframework.sdk.diagnostics.IntegrationDesignerDiagnostic;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The response handler for a path list. The body is parsed as a stream into typed entries rather than returned as a
+ * string, and the continuation token is handed on as soon as the headers arrive so the next page can be requested
+ * while this one is parsed. A gzip body, as asked for with {@link #ACCEPT_ENCODING}, is decompressed as it is parsed.
+ */
+public class PathListResponseHandler implements HttpClientResponseHandler<IntegrationResponse> {
+    private static final Logger logger = LoggerFactory.getLogger(PathListResponseHandler.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    public static final String ACCEPT_ENCODING = "gzip";
+
+    private final Consumer<String> continuationConsumer;
+
+    /**
+     * Create a handler
+     * @param continuationConsumer Receives the continuation token, or null if this is the last page, before the body is parsed
+     */
+    public PathListResponseHandler(Consumer<String> continuationConsumer) {
+        this.continuationConsumer = continuationConsumer;
+    }
+
+    @Override
+    public IntegrationResponse handleResponse(ClassicHttpResponse classicHttpResponse) throws HttpException, IOException {
+        int status = classicHttpResponse.getCode();
+        HttpEntity entity = classicHttpResponse.getEntity();
+        if (status < HttpStatus.SC_SUCCESS || status >= HttpStatus.SC_REDIRECTION || null == entity) {
+            continuationConsumer.accept(null);
+            return new BasicResponseHandler().handleResponse(classicHttpResponse);
+        }
+
+        String continuation = getHeaderValue(classicHttpResponse.getFirstHeader("x-ms-continuation"));
+        continuationConsumer.accept(continuation);
+
+        IntegrationResponse rv;
+        try (InputStream bodyInputStream = getBody(entity)) {
+            Map<String, Object> responseMap = new HashMap<>();
+            responseMap.put("requestId", getHeaderValue(classicHttpResponse.getFirstHeader("x-ms-request-id")));
+            responseMap.put("exists", true);
+            responseMap.put("continuation", continuation);
+            responseMap.put("paths", parsePaths(bodyInputStream));
+            rv = IntegrationResponse.forSuccess(responseMap).build();
+        } catch (IOException e) {
+            logger.error("Error while parsing the response body", e);
+            rv = LogUtil.createError("Error reading the response body", e.getMessage());
+        }
+
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addResponseDiagnostic(
+                        LogUtil.getIntegrationDataMap("responseCode", Integer.toString(classicHttpResponse.getCode()), "reasonMessage", classicHttpResponse.getReasonPhrase())
+                )
+                .build();
+        return rv.toBuilder().withDiagnostic(integrationDesignerDiagnostic).build();
+    }
+
+    /**
+     * Get the body of a listing, decompressing it if it was sent with gzip
+     * @param entity The response entity
+     * @return The JSON body
+     * @throws IOException If the body cannot be read
+     */
+    static InputStream getBody(HttpEntity entity) throws IOException {
+        InputStream entityInputStream = entity.getContent();
+        if (!"gzip".equalsIgnoreCase(entity.getContentEncoding())) return entityInputStream;
+        try {
+            return new GZIPInputStream(entityInputStream);
+        } catch (IOException e) {
+            entityInputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the list of paths, eg: {"paths":[{"name":"a","isDirectory":"true","contentLength":"0",...}]}
+     * @param in The body
+     * @return The typed entries
+     * @throws IOException If the body is not a valid list
+     */
+    static List<Map<String, Object>> parsePaths(InputStream in) throws IOException {
+        List<Map<String, Object>> paths = new ArrayList<>();
+
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (JsonToken.START_OBJECT != parser.nextToken()) throw new IOException("Expected a JSON object");
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (!"paths".equals(field) || JsonToken.START_ARRAY != token) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                while (JsonToken.START_OBJECT == parser.nextToken()) {
+                    paths.add(parsePath(parser));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Parse a single path entry. The service returns numbers and booleans as strings, so both forms are accepted.
+     * @param parser The parser, positioned on the start of the entry
+     * @return The entry
+     * @throws IOException If the entry is invalid
+     */
+    private static Map<String, Object> parsePath(JsonParser parser) throws IOException {
+        Map<String, Object> path = new HashMap<>();
+        path.put("isDirectory", false);
+        path.put("contentLength", 0L);
+
+        while (JsonToken.FIELD_NAME == parser.nextToken()) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token.isStructStart()) {
+                parser.skipChildren();
+                continue;
+            }
+
+            String value = parser.getValueAsString();
+            switch (field) {
+                case "name":
+                case "lastModified":
+                case "etag":
+                case "owner":
+                case "group":
+                case "permissions":
+                    path.put(field, value);
+                    break;
+                case "isDirectory":
+                    path.put(field, JsonToken.VALUE_TRUE == token || Boolean.parseBoolean(value));
+                    break;
+                case "contentLength":
+                    path.put(field, token.isNumeric() ? parser.getLongValue() : Long.parseLong(value));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Get a header value
+     * @param header
+     */
+    private String getHeaderValue(Header header) {
+        if (null == header) return null;
+        String value = header.getValue();
+        if (null == value) return null;
+        value = value.trim();
+        return "".equals(value) ? null : value;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of path metadata, keyed by the URI of the path so that the account, filesystem and path are all
+ * part of the key. Missing paths are cached as well. Entries are served without a request while fresh, and after that
+ * must be revalidated against their ETag. Writes made through the plugin update the cache.
+ */
+public final class PathMetadataCache {
+    private PathMetadataCache() {}
+
+    private static final int MAX_ENTRIES = 10000;
+    private static final long FRESH_MILLIS = 5000;
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PathMetadataCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * A cached set of path properties
+     */
+    public static final class Entry {
+        private final Map<String, Object> values;
+        private volatile long validated;
+
+        private Entry(Map<String, Object> values) {
+            this.values = Collections.unmodifiableMap(new HashMap<>(values));
+            this.validated = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The path properties, in the same form as a properties response
+         */
+        public Map<String, Object> getValues() {
+            return values;
+        }
+
+        /**
+         * @return The ETag, or null for a missing path
+         */
+        public String getEtag() {
+            Object etag = values.get("etag");
+            return null == etag ? null : etag.toString();
+        }
+
+        /**
+         * @return True if the path exists
+         */
+        public boolean exists() {
+            return Boolean.TRUE.equals(values.get("exists"));
+        }
+
+        /**
+         * @return True if the entry can be used without revalidation
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() - validated < FRESH_MILLIS;
+        }
+
+        /**
+         * Mark the entry as revalidated by the service
+         */
+        public void revalidated() {
+            validated = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Get a cached entry
+     * @param pathUri The URI of the path
+     * @return The entry, or null if not cached
+     */
+    public static synchronized Entry get(URI pathUri) {
+        return entries.get(key(pathUri));
+    }
+
+    /**
+     * Cache the result of a properties request
+     * @param pathUri The URI of the path
+     * @param values The properties response values
+     */
+    public static synchronized void put(URI pathUri, Map<String, Object> values) {
+        entries.put(key(pathUri), new Entry(values));
+    }
+
+    /**
+     * Record a write to a file through the plugin. The other properties are kept from the cached entry, and if there
+     * is no entry to update then the write just invalidates the path.
+     * @param pathUri The URI of the file
+     * @param etag The ETag returned by the write, or null if not known
+     * @param length The length of the file after the write
+     */
+    public static synchronized void putWrite(URI pathUri, String etag, long length) {
+        String key = key(pathUri);
+        Entry previous = entries.get(key);
+        if (null == etag || null == previous || !previous.exists()) {
+            entries.remove(key);
+            return;
+        }
+
+        Map<String, Object> values = new HashMap<>(previous.getValues());
+        values.put("etag", etag);
+        values.put("length", length);
+        entries.put(key, new Entry(values));
+    }
+
+    /**
+     * Record that a path no longer exists, along with everything under it.
+     * @param pathUri The URI of the path
+     */
+    public static synchronized void putMissing(URI pathUri) {
+        invalidate(pathUri);
+        entries.put(key(pathUri), new Entry(LogUtil.getIntegrationDataMap("exists", false, "body", null)));
+    }
+
+    /**
+     * Remove a path and everything under it.
+     * @param pathUri The URI of the path
+     */
+    public static synchronized void invalidate(URI pathUri) {
+        String key = key(pathUri);
+        String childPrefix = key.endsWith("/") ? key : key + "/";
+        entries.keySet().removeIf(entryKey -> entryKey.equals(key) || entryKey.startsWith(childPrefix));
+    }
+
+    /**
+     * The cache key is the path without any query.
+     * @param pathUri The URI of the path
+     * @return The key
+     */
+    private static String key(URI pathUri) {
+        return pathUri.getScheme() + "://" + pathUri.getAuthority() + pathUri.getPath();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An output stream that compresses on its own thread, so that the writer is not held up by the compression. Data is
+ * passed to the compressor in chunks from a small pool, and writes only block when every chunk is waiting to be
+ * compressed. If compression fails, the remaining chunks are discarded and the next write fails.
+ */
+public class PipelinedCompressor extends OutputStream {
+    private static final int CHUNK_SIZE = 262144;
+    private static final int CHUNKS = 4;
+
+    /**
+     * Some of the data to compress
+     */
+    private static final class Chunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        int length = 0;
+    }
+    private static final Chunk END = new Chunk();
+
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(CHUNKS + 1);
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final Future<?> compressorFuture;
+    private volatile IOException failure = null;
+    private Chunk chunk = null;
+    private long rawLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a stream and start the compressor
+     * @param out The stream to write the compressed data to, closed when this stream is closed
+     * @param compression The compression to use
+     * @throws IOException If the compressor cannot be created
+     */
+    public PipelinedCompressor(OutputStream out, Compression compression) throws IOException {
+        OutputStream compressedOut = compression.wrap(out);
+        for (int i = 0; i < CHUNKS; i++) free.add(new Chunk());
+        compressorFuture = executorService.submit(() -> compress(compressedOut));
+        executorService.shutdown();
+    }
+
+    /**
+     * @return The number of bytes written, before compression
+     */
+    public long getRawLength() {
+        return rawLength;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        takeChunk();
+        chunk.data[chunk.length++] = (byte) b;
+        rawLength++;
+        if (CHUNK_SIZE == chunk.length) passChunk(chunk);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            takeChunk();
+            int copyLen = Math.min(len, CHUNK_SIZE - chunk.length);
+            System.arraycopy(b, off, chunk.data, chunk.length, copyLen);
+            chunk.length += copyLen;
+            rawLength += copyLen;
+            off += copyLen;
+            len -= copyLen;
+            if (CHUNK_SIZE == chunk.length) passChunk(chunk);
+        }
+    }
+
+    /**
+     * Pass the remaining data to the compressor, and wait for it to finish and close the wrapped stream.
+     * @throws IOException If the compression or the wrapped stream failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (null != chunk && chunk.length > 0) passChunk(chunk);
+            passChunk(END);
+            compressorFuture.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Compressor failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            compressorFuture.cancel(true);
+            throw new InterruptedIOException("Interrupted waiting for the compressor");
+        }
+        if (null != failure) throw failure;
+    }
+
+    /**
+     * Make sure there is a chunk to write to
+     * @throws IOException If the stream is closed, compression has failed, or the wait is interrupted
+     */
+    private void takeChunk() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (null != failure) throw failure;
+        if (null != chunk) return;
+
+        try {
+            chunk = free.take();
+            chunk.length = 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the compressor");
+        }
+    }
+
+    /**
+     * Pass a chunk to the compressor
+     * @param passed The chunk
+     * @throws InterruptedIOException If interrupted while waiting
+     */
+    private void passChunk(Chunk passed) throws InterruptedIOException {
+        try {
+            filled.put(passed);
+            chunk = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the compressor");
+        }
+    }
+
+    /**
+     * The compressor loop. Runs until the end is passed, returning each chunk to the pool once it is compressed.
+     * @param compressedOut The compressing stream
+     * @throws InterruptedException If interrupted while waiting for data
+     */
+    private Void compress(OutputStream compressedOut) throws InterruptedException {
+        try {
+            while (true) {
+                Chunk next = filled.take();
+                if (END == next) break;
+                try {
+                    if (null == failure) compressedOut.write(next.data, 0, next.length);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    free.put(next);
+                }
+            }
+        } finally {
+            try {
+                compressedOut.close();
+            } catch (IOException e) {
+                if (null == failure) failure = e;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.metrics.DatalakeMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * The lifecycle of the plugin. The connected systems SDK has no unload callback, and the platform MBean server outlives
+ * the plugin classloader, so the plugin registers itself as uk.org.kano.appian:type=Plugin when it starts. When a new
+ * copy of the plugin is loaded, it closes the copy registered before it, which releases the shared HTTP clients and
+ * unregisters the metrics. A shutdown hook does the same when the JVM stops.
+ */
+public class PluginLifecycle implements PluginLifecycleMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(PluginLifecycle.class);
+    private static final String OBJECT_NAME = "uk.org.kano.appian:type=Plugin";
+
+    private static PluginLifecycle instance;
+
+    private final Thread shutdownHook = new Thread(this::release, "appian-datalake-shutdown");
+    private boolean closed = false;
+
+    private PluginLifecycle() {
+    }
+
+    /**
+     * Start the lifecycle, closing any earlier copy of the plugin
+     */
+    static synchronized void start() {
+        if (null != instance) return;
+        instance = new PluginLifecycle();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                logger.info("Closing the previously loaded plugin");
+                try {
+                    server.invoke(name, "close", new Object[0], new String[0]);
+                } catch (JMException e) {
+                    logger.warn("Unable to close the previously loaded plugin", e);
+                }
+                if (server.isRegistered(name)) server.unregisterMBean(name);
+            }
+            server.registerMBean(instance, name);
+        } catch (JMException e) {
+            logger.warn("Unable to register the plugin lifecycle", e);
+        }
+
+        try {
+            Runtime.getRuntime().addShutdownHook(instance.shutdownHook);
+        } catch (IllegalStateException | SecurityException e) {
+            logger.debug("Unable to add the shutdown hook", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException | SecurityException e) {
+            logger.debug("Unable to remove the shutdown hook", e);
+        }
+        release();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            logger.debug("Unable to unregister the plugin lifecycle", e);
+        }
+    }
+
+    /**
+     * Release the shared resources, at most once
+     */
+    private void release() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        logger.info("Releasing the shared HTTP clients and metrics");
+        HttpUtils.closeAll();
+        DatalakeMetrics.unregisterAll();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+/**
+ * The management interface of the plugin lifecycle, so that a reloaded copy of the plugin can close the resources held
+ * by the copy it replaces.
+ */
+public interface PluginLifecycleMXBean {
+    /**
+     * Release the shared clients and metrics of the plugin
+     */
+    void close();
+}
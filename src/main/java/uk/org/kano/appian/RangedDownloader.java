@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpHead;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Download a file with a number of concurrent range requests. Each segment is written straight into a memory mapped
+ * region of a temporary file, so the heap use is bounded no matter how large the file is. A region is only mapped when
+ * its request starts, so no more are mapped at once than there are requests in flight. The file is written as stored,
+ * and any content encoding is returned in "encoding" for the caller to remove. The client must not decompress the
+ * responses, as the ranges of a compressed file cannot be decompressed on their own.
+ */
+public class RangedDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(RangedDownloader.class);
+
+    private final CloseableHttpClient client;
+    private final URI fileUri;
+    private final int segmentSize;
+    private final int maxInFlight;
+    private final Set<HttpGet> activeRequests = ConcurrentHashMap.newKeySet();
+    private volatile IntegrationResponse error = null;
+
+    /**
+     * Create a downloader
+     * @param client The client to download with
+     * @param fileUri The URI of the file
+     * @param segmentSize The size of each range request
+     * @param maxInFlight The maximum number of range requests in flight at once
+     */
+    public RangedDownloader(CloseableHttpClient client, URI fileUri, int segmentSize, int maxInFlight) {
+        this.client = client;
+        this.fileUri = fileUri;
+        this.segmentSize = segmentSize;
+        this.maxInFlight = maxInFlight < 1 ? 1 : maxInFlight;
+    }
+
+    /**
+     * Download the file to a temporary file. The properties of the file are taken from a HEAD request, and every range
+     * request is made against the ETag it returned so that a change to the file part way through fails the download.
+     * @return An error, or the HEAD response values with the temporary file in "file". The caller owns the file.
+     */
+    public IntegrationResponse download() {
+        IntegrationResponse headResponse;
+        try {
+            BasicResponseHandler brh = new BasicResponseHandler();
+            headResponse = client.execute(new HttpHead(fileUri), brh);
+        } catch (IOException e) {
+            IntegrationResponse integrationResponse = LogUtil.createError("Unable to execute request to " + fileUri.toString(), e.getMessage());
+            logger.error(integrationResponse.getError().getDetail());
+            return integrationResponse;
+        }
+        if (!headResponse.isSuccess()) return headResponse;
+
+        Object lengthValue = headResponse.getResult().get("length");
+        if (null == lengthValue) {
+            return LogUtil.createError("Unable to download " + fileUri.getPath(), "The length of the file is not known");
+        }
+        long length = Long.parseLong(lengthValue.toString());
+        Object etag = headResponse.getResult().get("etag");
+
+        Path file;
+        try {
+            file = Files.createTempFile("adls-", ".tmp");
+        } catch (IOException e) {
+            IntegrationResponse integrationResponse = LogUtil.createError("Unable to create a temporary file", e.getMessage());
+            logger.error(integrationResponse.getError().getTitle(), e);
+            return integrationResponse;
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(maxInFlight);
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Submit a request for each segment
+            List<Future<?>> segmentFutures = new ArrayList<>();
+            for (long offset = 0; offset < length; offset += segmentSize) {
+                final long segmentOffset = offset;
+                final int segmentLength = (int) Math.min(segmentSize, length - offset);
+                segmentFutures.add(executorService.submit(() -> downloadSegment(fileChannel, segmentOffset, segmentLength, null == etag ? null : etag.toString())));
+            }
+
+            for (Future<?> segmentFuture: segmentFutures) {
+                try {
+                    segmentFuture.get();
+                } catch (ExecutionException e) {
+                    fail(LogUtil.createError("Download task threw an exception", e.getMessage()));
+                } catch (CancellationException ignored) {}
+            }
+        } catch (IOException e) {
+            fail(LogUtil.createError("Unable to write to the temporary file", e.getMessage()));
+        } catch (InterruptedException e) {
+            fail(LogUtil.createError("Download interrupted for " + fileUri.getPath(), e.getMessage()));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        if (null != error) {
+            try { Files.deleteIfExists(file); } catch (IOException ignored) {}
+            return error;
+        }
+
+        Map<String, Object> responseMap = new HashMap<>(headResponse.getResult());
+        responseMap.put("file", file);
+        return IntegrationResponse.forSuccess(responseMap).withDiagnostic(headResponse.getIntegrationDesignerDiagnostic()).build();
+    }
+
+    /**
+     * Download a single range into its region of the file, which is mapped here rather than when the request is queued
+     * @param fileChannel The file
+     * @param offset The start of the range
+     * @param segmentLength The length of the range
+     * @param etag The ETag the file must match, or null
+     */
+    private void downloadSegment(FileChannel fileChannel, long offset, int segmentLength, String etag) {
+        if (null != error) return;
+
+        MappedByteBuffer segment;
+        try {
+            segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, segmentLength);
+        } catch (IOException e) {
+            fail(LogUtil.createError("Unable to write to the temporary file", e.getMessage()));
+            return;
+        }
+
+        HttpGet request = new HttpGet(fileUri);
+        request.addHeader("Range", "bytes=" + offset + "-" + (offset + segmentLength - 1));
+        if (null != etag) request.addHeader("If-Match", etag);
+        activeRequests.add(request);
+
+        try {
+            IntegrationResponse integrationResponse = client.execute(request, new SegmentResponseHandler(segment));
+            if (!integrationResponse.isSuccess()) fail(integrationResponse);
+        } catch (IOException e) {
+            fail(LogUtil.createError("Unable to execute request to " + fileUri.toString(), e.getMessage()));
+        } finally {
+            activeRequests.remove(request);
+        }
+    }
+
+    /**
+     * Record the first failure and cancel the other range requests in flight.
+     * @param integrationResponse The error
+     */
+    private void fail(IntegrationResponse integrationResponse) {
+        synchronized (this) {
+            if (null != error) return;
+            error = integrationResponse;
+        }
+        logger.error("Download of {} failed, cancelling {} in-flight requests", fileUri, activeRequests.size());
+        activeRequests.forEach(HttpGet::cancel);
+    }
+
+    /**
+     * Copy a range response straight into the mapped region. Anything other than a partial response is handled as usual.
+     */
+    private static class SegmentResponseHandler implements HttpClientResponseHandler<IntegrationResponse> {
+        private final MappedByteBuffer segment;
+
+        SegmentResponseHandler(MappedByteBuffer segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public IntegrationResponse handleResponse(ClassicHttpResponse classicHttpResponse) throws IOException {
+            HttpEntity entity = classicHttpResponse.getEntity();
+            if (HttpStatus.SC_PARTIAL_CONTENT != classicHttpResponse.getCode() || null == entity) {
+                try {
+                    IntegrationResponse integrationResponse = new BasicResponseHandler().handleResponse(classicHttpResponse);
+                    if (integrationResponse.isSuccess()) {
+                        return LogUtil.createError("Range request failed", "Expected a partial response, received " + classicHttpResponse.getCode());
+                    }
+                    return integrationResponse;
+                } catch (HttpException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            try (InputStream entityInputStream = entity.getContent();
+                 ReadableByteChannel entityChannel = Channels.newChannel(entityInputStream)) {
+                while (segment.hasRemaining() && entityChannel.read(segment) >= 0) {
+                    // Keep reading until the region is full
+                }
+            }
+
+            if (segment.hasRemaining()) {
+                Header contentRange = classicHttpResponse.getFirstHeader("Content-Range");
+                return LogUtil.createError("Range request failed", "Short read for range " + (null == contentRange ? "" : contentRange.getValue()));
+            }
+            return IntegrationResponse.forSuccess(LogUtil.getIntegrationDataMap("length", segment.capacity())).build();
+        }
+    }
+}
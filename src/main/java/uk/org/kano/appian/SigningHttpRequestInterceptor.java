@@ -37,17 +37,78 @@ import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 /**
- * An HTTP request interceptor for adding the request signing.
+ * An HTTP request interceptor for adding the request signing. An instance signs for a single account. The key is only
+ * decoded once per signer, and each thread signs with its own clone of the initialised MAC.
  */
 public class SigningHttpRequestInterceptor implements HttpRequestInterceptor {
-    private Mac sha256_HMAC = null;
+    private static final String SIGNING_ALGORITHM = "HmacSHA256";
 
-    public void setKey(String key) throws IOException {
+    private final String accountName;
+    private final String key;
+    private final ThreadLocal<Mac> threadMac = new ThreadLocal<>();
+
+    // The initialised MAC, which is never used directly, only cloned
+    private volatile Mac prototype;
+
+    /**
+     * Create a signer for an account
+     * @param accountName The account name, or null to take it from the request host
+     * @param key The base64 encoded shared key
+     */
+    public SigningHttpRequestInterceptor(String accountName, String key) {
+        this.accountName = accountName;
+        this.key = key;
+    }
+
+    /**
+     * Get the MAC for the current thread, cloning it from the prototype on first use.
+     * @return The MAC
+     * @throws IOException If the key is invalid
+     */
+    private Mac getMac() throws IOException {
+        Mac mac = threadMac.get();
+        if (null == mac) {
+            try {
+                mac = (Mac) getPrototype().clone();
+            } catch (CloneNotSupportedException e) {
+                mac = createMac();
+            }
+            threadMac.set(mac);
+        }
+        return mac;
+    }
+
+    /**
+     * Get the initialised MAC, decoding the key on first use
+     * @return The prototype MAC
+     * @throws IOException If the key is invalid
+     */
+    private Mac getPrototype() throws IOException {
+        Mac mac = prototype;
+        if (null == mac) {
+            synchronized (this) {
+                mac = prototype;
+                if (null == mac) {
+                    mac = createMac();
+                    prototype = mac;
+                }
+            }
+        }
+        return mac;
+    }
+
+    /**
+     * Decode the key and initialise a new MAC
+     * @return The MAC
+     * @throws IOException If the key is invalid
+     */
+    private Mac createMac() throws IOException {
+        if (null == key) throw new IOException("Account key not specified");
         try {
-            sha256_HMAC = Mac.getInstance("HmacSHA256");
-            SecretKeySpec secret_key = new SecretKeySpec(Base64.getDecoder().decode(key), "HmacSHA256");
-            sha256_HMAC.init(secret_key);
-        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            Mac mac = Mac.getInstance(SIGNING_ALGORITHM);
+            mac.init(new SecretKeySpec(Base64.getDecoder().decode(key), SIGNING_ALGORITHM));
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException | IllegalArgumentException e) {
             throw new IOException("Unable to create signature algorithm", e);
         }
     }
@@ -58,7 +119,7 @@ public class SigningHttpRequestInterceptor implements HttpRequestInterceptor {
         if (null != entityDetails && entityDetails.getContentLength() > 0) contentLength = Long.toString(entityDetails.getContentLength());
 
         // Add the time and date of the request
-        httpRequest.addHeader("x-ms-date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().withZoneSameInstant(ZoneId.of("GMT"))));
+        httpRequest.setHeader("x-ms-date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now().withZoneSameInstant(ZoneId.of("GMT"))));
 
         // Get the URI, we'll use it multiple times
         URI location = null;
@@ -73,32 +134,24 @@ public class SigningHttpRequestInterceptor implements HttpRequestInterceptor {
         if (null == uriPath) throw new IOException("Filesystem not specified");
 
         // Get the accountName
-        String accountName = location.getHost().replaceAll("\\..*$", "");
-
-        // Create the options string
-        StringBuilder optionsBuilder = new StringBuilder();
-        if (null != location.getQuery()) {
-            Arrays.stream(location.getQuery().split("&")).forEach(option -> {
+        String accountName = null == this.accountName ? location.getHost().replaceAll("\\..*$", "") : this.accountName;
+
+        // Create the options string. Names are lower case and sorted, and the values of a repeated name are sorted and
+        // joined with commas. The raw query is used so that each part is only decoded once.
+        Map<String, List<String>> options = new TreeMap<>();
+        if (null != location.getRawQuery()) {
+            for (String option: location.getRawQuery().split("&")) {
+                if (option.isEmpty()) continue;
                 String[] parts = option.split("=", 2);
-                String decodedPart;
-
-                decodedPart = parts[0];
-                try {
-                    decodedPart = java.net.URLDecoder.decode(decodedPart, StandardCharsets.UTF_8.name()); // Lots of warnings about 8859-1 in the Microsoft docs.
-                } catch (UnsupportedEncodingException ignored) {}
-
-                optionsBuilder.append('\n');
-                optionsBuilder.append(decodedPart);
-                optionsBuilder.append(':');
-
-                decodedPart = 2 == parts.length ? parts[1] : "";
-                if (null == decodedPart) decodedPart = "";
-                try {
-                    decodedPart = java.net.URLDecoder.decode(decodedPart, StandardCharsets.UTF_8.name()); // Lots of warnings about 8859-1 in the Microsoft docs.
-                } catch (UnsupportedEncodingException ignored) {}
-                optionsBuilder.append(decodedPart);
-            });
+                options.computeIfAbsent(decodeQueryPart(parts[0]).toLowerCase(), name -> new ArrayList<>())
+                        .add(2 == parts.length ? decodeQueryPart(parts[1]) : "");
+            }
         }
+        StringBuilder optionsBuilder = new StringBuilder();
+        options.forEach((name, values) -> {
+            Collections.sort(values);
+            optionsBuilder.append('\n').append(name).append(':').append(String.join(",", values));
+        });
 
         String contentType = "", contentEncoding = "";
         if (null != entityDetails) {
@@ -127,9 +180,21 @@ public class SigningHttpRequestInterceptor implements HttpRequestInterceptor {
                     .collect(Collectors.joining("\n")) + "\n" +
                 "/" + accountName +  location.getPath() + optionsBuilder.toString();
 
-        //sha256_HMAC.reset();
-        byte[] mac = sha256_HMAC.doFinal(headerBlock.getBytes(StandardCharsets.UTF_8));
-        httpRequest.addHeader("Authorization", "SharedKey " + accountName + ":" + Base64.getEncoder().encodeToString(mac));
+        byte[] mac = getMac().doFinal(headerBlock.getBytes(StandardCharsets.UTF_8));
+        httpRequest.setHeader("Authorization", "SharedKey " + accountName + ":" + Base64.getEncoder().encodeToString(mac));
+    }
+
+    /**
+     * Decode part of a query string
+     * @param part The encoded name or value
+     * @return The decoded part
+     */
+    private static String decodeQueryPart(String part) {
+        try {
+            return java.net.URLDecoder.decode(part, StandardCharsets.UTF_8.name()); // Lots of warnings about 8859-1 in the Microsoft docs.
+        } catch (UnsupportedEncodingException e) {
+            return part;
+        }
     }
 
     /**
@@ -153,7 +218,7 @@ public class SigningHttpRequestInterceptor implements HttpRequestInterceptor {
      */
     public Collection<? extends Header> getAuthenticationHeaders() {
         ArrayList<Header> headers = new ArrayList<>();
-        headers.add(new BasicHeader("x-ms-version", "2019-02-02"));
+        headers.add(new BasicHeader("x-ms-version", "2021-06-08"));
         return headers;
     }
 }
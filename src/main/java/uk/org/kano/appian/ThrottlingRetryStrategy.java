@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+import org.apache.hc.core5.util.TimeValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry requests that were throttled or failed in transit. The delay between attempts uses decorrelated jitter, so
+ * that many clients backing off from the same account spread out, and is never less than the Retry-After the service
+ * asks for. Retries stop once the next attempt would be past the time budget for the request.
+ * <p>
+ * Throttled responses are always retried, as the service did not act on the request. Other failures are only retried
+ * if the request can safely be repeated. All the datalake operations used are, including appends as they are made at
+ * a fixed position, except for a rename.
+ */
+public class ThrottlingRetryStrategy implements HttpRequestRetryStrategy {
+    private static final Logger logger = LoggerFactory.getLogger(ThrottlingRetryStrategy.class);
+    private static final String ATTR_FIRST_FAILURE = ThrottlingRetryStrategy.class.getName() + ".firstFailure";
+    private static final String ATTR_LAST_DELAY = ThrottlingRetryStrategy.class.getName() + ".lastDelay";
+    private static final String ATTR_NEXT_DELAY = ThrottlingRetryStrategy.class.getName() + ".nextDelay";
+
+    // The x-ms-error-code values that mean the account or partition is over its limits
+    private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<>(Arrays.asList(
+            "ServerBusy", "IngressOverAccountLimit", "EgressOverAccountLimit", "TpsOverAccountLimit", "OperationTimedOut"
+    ));
+    private static final Set<Integer> RETRIABLE_STATUSES = new HashSet<>(Arrays.asList(
+            HttpStatus.SC_REQUEST_TIMEOUT, HttpStatus.SC_TOO_MANY_REQUESTS, HttpStatus.SC_INTERNAL_SERVER_ERROR,
+            HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_GATEWAY_TIMEOUT
+    ));
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final long timeBudget;
+
+    /**
+     * Create a retry strategy
+     * @param maxRetries The maximum number of retries of a request
+     * @param baseDelay The smallest delay between attempts
+     * @param maxDelay The largest delay between attempts, unless the service asks for longer
+     * @param timeBudget The time from the first failure after which no more attempts are made
+     */
+    public ThrottlingRetryStrategy(int maxRetries, TimeValue baseDelay, TimeValue maxDelay, TimeValue timeBudget) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = Math.max(1, baseDelay.toMilliseconds());
+        this.maxDelay = Math.max(this.baseDelay, maxDelay.toMilliseconds());
+        this.timeBudget = timeBudget.toMilliseconds();
+    }
+
+    @Override
+    public boolean retryRequest(HttpRequest request, IOException exception, int execCount, HttpContext context) {
+        if (execCount > maxRetries) return false;
+        if (exception instanceof UnknownHostException || exception instanceof NoRouteToHostException || exception instanceof SSLException) return false;
+        if (request instanceof HttpUriRequestBase && ((HttpUriRequestBase) request).isCancelled()) return false;
+        if (!isRepeatable(request)) return false;
+
+        TimeValue delay = nextDelay(null, context);
+        if (null == delay) return false;
+
+        logger.warn("Retrying {} {} in {}ms after attempt {} failed: {}", request.getMethod(), request.getPath(), delay.toMilliseconds(), execCount, exception.getMessage());
+        try {
+            delay.sleep();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+        if (execCount > maxRetries) return false;
+
+        int status = response.getCode();
+        Header errorCodeHeader = response.getFirstHeader("x-ms-error-code");
+        String errorCode = null == errorCodeHeader ? null : errorCodeHeader.getValue();
+        boolean throttled = HttpStatus.SC_TOO_MANY_REQUESTS == status || HttpStatus.SC_SERVICE_UNAVAILABLE == status || THROTTLING_ERROR_CODES.contains(errorCode);
+        if (!throttled) {
+            if (!RETRIABLE_STATUSES.contains(status)) return false;
+            HttpRequest request = null == context ? null : (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+            if (null == request || !isRepeatable(request)) return false;
+        }
+
+        TimeValue delay = nextDelay(response, context);
+        if (null == delay) return false;
+
+        logger.warn("Retrying in {}ms after attempt {} returned {} {}", delay.toMilliseconds(), execCount, status, null == errorCode ? "" : errorCode);
+        context.setAttribute(ATTR_NEXT_DELAY, delay);
+        return true;
+    }
+
+    @Override
+    public TimeValue getRetryInterval(HttpResponse response, int execCount, HttpContext context) {
+        Object delay = context.getAttribute(ATTR_NEXT_DELAY);
+        return delay instanceof TimeValue ? (TimeValue) delay : TimeValue.ofMilliseconds(baseDelay);
+    }
+
+    /**
+     * Work out the delay before the next attempt, as a random value between the base delay and three times the last
+     * delay, but no less than any Retry-After.
+     * @param response The failed response, or null if there was no response
+     * @param context The context of the request, which holds the state between attempts
+     * @return The delay, or null if the next attempt would be past the time budget
+     */
+    TimeValue nextDelay(HttpResponse response, HttpContext context) {
+        long now = System.currentTimeMillis();
+        Object firstFailure = context.getAttribute(ATTR_FIRST_FAILURE);
+        if (!(firstFailure instanceof Long)) {
+            firstFailure = now;
+            context.setAttribute(ATTR_FIRST_FAILURE, firstFailure);
+        }
+        Object lastDelay = context.getAttribute(ATTR_LAST_DELAY);
+        long previous = lastDelay instanceof Long ? (Long) lastDelay : baseDelay;
+
+        long delay = Math.min(maxDelay, ThreadLocalRandom.current().nextLong(baseDelay, Math.max(baseDelay, previous * 3) + 1));
+        delay = Math.max(delay, getRetryAfter(response, now));
+        if (now - (Long) firstFailure + delay > timeBudget) {
+            logger.warn("Not retrying, the retry time budget of {}ms has been used", timeBudget);
+            return null;
+        }
+
+        context.setAttribute(ATTR_LAST_DELAY, delay);
+        return TimeValue.ofMilliseconds(delay);
+    }
+
+    /**
+     * Get the delay asked for by the service
+     * @param response The response, or null
+     * @param now The current time
+     * @return The delay in milliseconds, or 0 if there is none
+     */
+    private static long getRetryAfter(HttpResponse response, long now) {
+        Header retryAfter = null == response ? null : response.getFirstHeader("Retry-After");
+        if (null == retryAfter || null == retryAfter.getValue()) return 0;
+
+        String value = retryAfter.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return null == date ? 0 : Math.max(0, date.getTime() - now);
+        }
+    }
+
+    /**
+     * A request is safe to repeat after an unknown outcome unless it is a rename, as the source will have gone.
+     * @param request The request
+     * @return True if it can be repeated
+     */
+    private static boolean isRepeatable(HttpRequest request) {
+        return null == request.getFirstHeader("x-ms-rename-source");
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPatch;
+import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.net.URIBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * The last exported watermark of each table in an incremental export, kept as a small JSON object in the lake under
+ * _watermarks in the export path. The underscore keeps it out of the way of Spark and Synapse. A new watermark is
+ * written to a temporary file and renamed over the old one, so the state is never left half written.
+ */
+public class WatermarkStore {
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final String STATE_DIRECTORY = "_watermarks";
+
+    /**
+     * A watermark value, kept as a string along with how to bind it. Timestamps are kept in ISO-8601, so they do not
+     * depend on the time zone of the JVM. A timestamp without a time zone is read and bound as UTC and kept as an
+     * instant, and one with a time zone is kept with its offset.
+     */
+    public static final class Watermark {
+        static final String TYPE_NUMBER = "number";
+        static final String TYPE_DATE = "date";
+        static final String TYPE_TIMESTAMP = "timestamp";
+        static final String TYPE_TIMESTAMP_WITH_TIMEZONE = "timestampWithTimeZone";
+        static final String TYPE_STRING = "string";
+
+        private final String column;
+        private final String type;
+        private final String value;
+
+        Watermark(String column, String type, String value) {
+            this.column = column;
+            this.type = type;
+            this.value = value;
+        }
+
+        /**
+         * Read the watermark from a result set column
+         * @param column The watermark column name
+         * @param resultSet The result set, positioned on a row
+         * @param index The column index
+         * @return The watermark, or null if the value is null
+         * @throws SQLException If the value cannot be read
+         */
+        public static Watermark fromResultSet(String column, ResultSet resultSet, int index) throws SQLException {
+            switch (resultSet.getMetaData().getColumnType(index)) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    BigDecimal number = resultSet.getBigDecimal(index);
+                    return null == number ? null : new Watermark(column, TYPE_NUMBER, number.toPlainString());
+                case Types.DATE:
+                    Date date = resultSet.getDate(index);
+                    return null == date ? null : new Watermark(column, TYPE_DATE, date.toString());
+                case Types.TIMESTAMP:
+                    Timestamp timestamp = resultSet.getTimestamp(index, utcCalendar());
+                    return null == timestamp ? null : new Watermark(column, TYPE_TIMESTAMP, timestamp.toInstant().toString());
+                case Types.TIMESTAMP_WITH_TIMEZONE:
+                    OffsetDateTime offsetDateTime = resultSet.getObject(index, OffsetDateTime.class);
+                    return null == offsetDateTime ? null : new Watermark(column, TYPE_TIMESTAMP_WITH_TIMEZONE, offsetDateTime.toString());
+                default:
+                    String string = resultSet.getString(index);
+                    return null == string ? null : new Watermark(column, TYPE_STRING, string);
+            }
+        }
+
+        /**
+         * Bind the watermark to a statement parameter
+         * @param statement The statement
+         * @param index The parameter index
+         * @throws SQLException If the value cannot be bound
+         */
+        public void bind(PreparedStatement statement, int index) throws SQLException {
+            try {
+                switch (type) {
+                    case TYPE_NUMBER:
+                        statement.setBigDecimal(index, new BigDecimal(value));
+                        break;
+                    case TYPE_DATE:
+                        statement.setDate(index, Date.valueOf(value));
+                        break;
+                    case TYPE_TIMESTAMP:
+                        statement.setTimestamp(index, Timestamp.from(Instant.parse(value)), utcCalendar());
+                        break;
+                    case TYPE_TIMESTAMP_WITH_TIMEZONE:
+                        statement.setObject(index, OffsetDateTime.parse(value));
+                        break;
+                    default:
+                        statement.setString(index, value);
+                        break;
+                }
+            } catch (IllegalArgumentException | DateTimeParseException e) {
+                throw new SQLException("Invalid " + type + " watermark " + value, e);
+            }
+        }
+
+        /**
+         * @return A new calendar in UTC, as a calendar is not thread safe
+         */
+        private static Calendar utcCalendar() {
+            return Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        }
+
+        /**
+         * @return The watermark column
+         */
+        public String getColumn() {
+            return column;
+        }
+
+        /**
+         * @return The watermark value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @param other Another watermark, or null
+         * @return True if they are for the same column and value
+         */
+        public boolean isSame(Watermark other) {
+            return null != other && column.equalsIgnoreCase(other.column) && type.equals(other.type) && value.equals(other.value);
+        }
+    }
+
+    private final CloseableHttpClient client;
+    private final URI stateUri;
+    private final URI tempUri;
+    private final String renameSource;
+
+    /**
+     * Create a store for a table
+     * @param client The client to use
+     * @param resourceUri The filesystem URI
+     * @param accountUri The account URI, which rename sources are relative to
+     * @param basePath The export path
+     * @param table The table
+     * @throws URISyntaxException If the path is invalid
+     */
+    public WatermarkStore(CloseableHttpClient client, URI resourceUri, URI accountUri, String basePath, String table) throws URISyntaxException {
+        this.client = client;
+        String statePath = String.join("/", basePath, STATE_DIRECTORY, table).replaceAll("//", "/") + ".json";
+        if (!statePath.startsWith("/")) statePath = "/" + statePath;
+
+        URIBuilder uriBuilder = new URIBuilder(resourceUri);
+        this.stateUri = uriBuilder.setPath(resourceUri.getPath() + statePath).build();
+        this.tempUri = new URIBuilder(resourceUri).setPath(resourceUri.getPath() + statePath + ".tmp").build();
+        this.renameSource = tempUri.getPath().substring(accountUri.getPath().length());
+    }
+
+    /**
+     * Read the last exported watermark
+     * @return The watermark, or null if the table has not been exported
+     * @throws IOException If the state cannot be read or is invalid
+     */
+    public Watermark read() throws IOException {
+        BasicResponseHandler brh = new BasicResponseHandler();
+        brh.setHandleMissingResourceAsError(false);
+        IntegrationResponse response = client.execute(new HttpGet(stateUri), brh);
+        if (!response.isSuccess()) throw new IOException(response.getError().getTitle() + ": " + response.getError().getDetail());
+        if (!Boolean.TRUE.equals(response.getResult().get("exists"))) return null;
+
+        Object body = response.getResult().get("body");
+        if (null == body) throw new IOException("The watermark state " + stateUri.getPath() + " is empty");
+        return parse(body.toString());
+    }
+
+    /**
+     * Replace the watermark
+     * @param watermark The new watermark
+     * @throws IOException If the state cannot be written
+     */
+    public void write(Watermark watermark) throws IOException {
+        byte[] content = toJson(watermark).getBytes(StandardCharsets.UTF_8);
+
+        try {
+            HttpPut create = new HttpPut(new URIBuilder(tempUri).addParameter("resource", "file").build());
+            create.addHeader("x-ms-content-type", ContentType.APPLICATION_JSON.toString());
+            execute(create);
+
+            HttpPatch append = new HttpPatch(new URIBuilder(tempUri)
+                    .addParameter("action", "append")
+                    .addParameter("position", "0")
+                    .addParameter("flush", "true")
+                    .build());
+            append.setEntity(new ByteArrayEntity(content, ContentType.APPLICATION_JSON, false));
+            execute(append);
+
+            HttpPut rename = new HttpPut(stateUri);
+            rename.addHeader("x-ms-rename-source", renameSource);
+            execute(rename);
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid URI", e);
+        } finally {
+            PathMetadataCache.invalidate(tempUri);
+            PathMetadataCache.invalidate(stateUri);
+        }
+    }
+
+    private void execute(ClassicHttpRequest request) throws IOException {
+        IntegrationResponse response = client.execute(request, new BasicResponseHandler());
+        if (!response.isSuccess()) throw new IOException(response.getError().getTitle() + ": " + response.getError().getDetail());
+    }
+
+    /**
+     * @param watermark The watermark
+     * @return The JSON state
+     * @throws IOException If the JSON cannot be written
+     */
+    static String toJson(Watermark watermark) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeStringField("column", watermark.column);
+            generator.writeStringField("type", watermark.type);
+            generator.writeStringField("watermark", watermark.value);
+            generator.writeStringField("updated", Instant.now().toString());
+            generator.writeEndObject();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param json The JSON state
+     * @return The watermark
+     * @throws IOException If the state is invalid
+     */
+    static Watermark parse(String json) throws IOException {
+        String column = null, type = null, value = null;
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (JsonToken.START_OBJECT != parser.nextToken()) throw new IOException("Expected a JSON object");
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (token.isStructStart()) {
+                    parser.skipChildren();
+                    continue;
+                }
+                switch (field) {
+                    case "column": column = parser.getValueAsString(); break;
+                    case "type": type = parser.getValueAsString(); break;
+                    case "watermark": value = parser.getValueAsString(); break;
+                    default: break;
+                }
+            }
+        }
+        if (null == column || null == type || null == value) throw new IOException("The watermark state is missing the column, type or watermark");
+        return new Watermark(column, type, value);
+    }
+}
@@ -53,7 +53,7 @@ public class FileSystemGetProperties extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -76,10 +76,6 @@ public class FileSystemGetProperties extends SimpleIntegrationTemplate {
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
         endTime = System.currentTimeMillis();
 
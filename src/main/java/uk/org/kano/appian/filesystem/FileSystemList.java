@@ -60,9 +60,9 @@ public class FileSystemList extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
-        URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
+        URI resourceUri = HttpUtils.getAccountUri(connectedSystemConfiguration);
         if (null == resourceUri) {
             return LogUtil.createError("Invalid base URI", "The base URI is invalid");
         }
@@ -70,7 +70,7 @@ public class FileSystemList extends SimpleIntegrationTemplate {
         URIBuilder uriBuilder = new URIBuilder(resourceUri);
         try {
             resourceUri = uriBuilder
-                    .setPath("/")
+                    .setPath(resourceUri.getPath() + "/")
                     .addParameter("resource", "account").build();
         } catch (URISyntaxException ignored) {} // Should never happen
 
@@ -86,10 +86,6 @@ public class FileSystemList extends SimpleIntegrationTemplate {
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
         endTime = System.currentTimeMillis();
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import org.apache.hc.core5.pool.ConnPoolControl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a datalake account that are not specific to an operation. The connections are summed over the pools
+ * of all the clients for the account.
+ */
+public class AccountMetrics implements AccountMetricsMXBean {
+    private final List<ConnPoolControl<?>> pools = new CopyOnWriteArrayList<>();
+    private final LongAdder exportedRows = new LongAdder();
+    private final LongAdder exportNanos = new LongAdder();
+    private volatile double lastExportRowsPerSecond = 0;
+
+    void addPool(ConnPoolControl<?> pool) {
+        pools.add(pool);
+    }
+
+    void removePool(ConnPoolControl<?> pool) {
+        pools.remove(pool);
+    }
+
+    void clearPools() {
+        pools.clear();
+    }
+
+    int getPoolCount() {
+        return pools.size();
+    }
+
+    void recordExport(long rows, long nanos) {
+        exportedRows.add(rows);
+        exportNanos.add(nanos);
+        lastExportRowsPerSecond = rowsPerSecond(rows, nanos);
+    }
+
+    private static double rowsPerSecond(long rows, long nanos) {
+        return nanos > 0 ? rows * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        int leased = 0;
+        for (ConnPoolControl<?> pool: pools) leased += pool.getTotalStats().getLeased();
+        return leased;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        int available = 0;
+        for (ConnPoolControl<?> pool: pools) available += pool.getTotalStats().getAvailable();
+        return available;
+    }
+
+    @Override
+    public int getPendingConnections() {
+        int pending = 0;
+        for (ConnPoolControl<?> pool: pools) pending += pool.getTotalStats().getPending();
+        return pending;
+    }
+
+    @Override
+    public long getExportedRows() {
+        return exportedRows.sum();
+    }
+
+    @Override
+    public double getExportRowsPerSecond() {
+        return rowsPerSecond(exportedRows.sum(), exportNanos.sum());
+    }
+
+    @Override
+    public double getLastExportRowsPerSecond() {
+        return lastExportRowsPerSecond;
+    }
+
+    @Override
+    public void reset() {
+        exportedRows.reset();
+        exportNanos.reset();
+        lastExportRowsPerSecond = 0;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+/**
+ * The metrics of a datalake account that are not specific to an operation
+ */
+public interface AccountMetricsMXBean {
+    /**
+     * @return The connections to the account in use
+     */
+    int getActiveConnections();
+
+    /**
+     * @return The open connections to the account waiting to be reused
+     */
+    int getIdleConnections();
+
+    /**
+     * @return The requests waiting for a connection
+     */
+    int getPendingConnections();
+
+    /**
+     * @return The rows exported by the database uploader
+     */
+    long getExportedRows();
+
+    /**
+     * @return The rows per second over all the table exports
+     */
+    double getExportRowsPerSecond();
+
+    /**
+     * @return The rows per second of the last table export
+     */
+    double getLastExportRowsPerSecond();
+
+    /**
+     * Reset the export metrics to zero
+     */
+    void reset();
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import org.apache.hc.core5.pool.ConnPoolControl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of the datalake metrics. Each account and operation gets an MBean on the platform MBean server, named
+ * uk.org.kano.appian:type=Datalake,account=&lt;account&gt;,operation=&lt;operation&gt;, and each account gets one for
+ * its connections and exports, named uk.org.kano.appian:type=Datalake,account=&lt;account&gt;. The metrics are still
+ * kept if they cannot be registered. They are unregistered when the plugin is unloaded, as the platform MBean server
+ * would otherwise keep them, and the plugin classloader, alive.
+ */
+public class DatalakeMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(DatalakeMetrics.class);
+    private static final String DOMAIN = "uk.org.kano.appian";
+
+    private static final ConcurrentMap<List<String>, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, AccountMetrics> accounts = new ConcurrentHashMap<>();
+
+    private DatalakeMetrics() {
+    }
+
+    /**
+     * Get the metrics of an operation on an account, registering them on first use
+     * @param account The account name
+     * @param operation The operation name
+     * @return The metrics
+     */
+    public static OperationMetrics getOperation(String account, String operation) {
+        return operations.computeIfAbsent(Arrays.asList(account, operation), key -> {
+            OperationMetrics metrics = new OperationMetrics();
+            register(operationProperties(account, operation), metrics);
+            return metrics;
+        });
+    }
+
+    /**
+     * Get the metrics of an account, registering them on first use
+     * @param account The account name
+     * @return The metrics
+     */
+    public static AccountMetrics getAccount(String account) {
+        return accounts.computeIfAbsent(account, key -> {
+            AccountMetrics metrics = new AccountMetrics();
+            register(accountProperties(account), metrics);
+            return metrics;
+        });
+    }
+
+    /**
+     * Add a connection pool to the connections of an account
+     * @param account The account name
+     * @param pool The pool of a client for the account
+     */
+    public static void addConnectionPool(String account, ConnPoolControl<?> pool) {
+        getAccount(account).addPool(pool);
+    }
+
+    /**
+     * Remove the connection pool of a closed client from the connections of an account
+     * @param account The account name
+     * @param pool The pool of the client
+     */
+    public static void removeConnectionPool(String account, ConnPoolControl<?> pool) {
+        AccountMetrics metrics = accounts.get(account);
+        if (null != metrics) metrics.removePool(pool);
+    }
+
+    /**
+     * Unregister all the metrics and drop the connection pools, when the plugin is unloaded
+     */
+    public static void unregisterAll() {
+        for (List<String> key: operations.keySet()) {
+            if (null != operations.remove(key)) unregister(operationProperties(key.get(0), key.get(1)));
+        }
+        for (String account: accounts.keySet()) {
+            AccountMetrics metrics = accounts.remove(account);
+            if (null == metrics) continue;
+            metrics.clearPools();
+            unregister(accountProperties(account));
+        }
+    }
+
+    /**
+     * Record a table export
+     * @param account The account name
+     * @param rows The rows exported
+     * @param nanos The time taken in nanoseconds
+     */
+    public static void recordExport(String account, long rows, long nanos) {
+        getAccount(account).recordExport(rows, nanos);
+    }
+
+    private static String operationProperties(String account, String operation) {
+        return "type=Datalake,account=" + ObjectName.quote(account) + ",operation=" + ObjectName.quote(operation);
+    }
+
+    private static String accountProperties(String account) {
+        return "type=Datalake,account=" + ObjectName.quote(account);
+    }
+
+    /**
+     * Unregister an MBean, if it is registered
+     */
+    private static void unregister(String properties) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to unregister the metrics {}: {}", properties, e.getMessage());
+        }
+    }
+
+    /**
+     * Register an MBean, replacing any left by an earlier load of the plugin
+     */
+    private static void register(String properties, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(mbean, name);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Unable to register the metrics {}: {}", properties, e.getMessage());
+        }
+    }
+}
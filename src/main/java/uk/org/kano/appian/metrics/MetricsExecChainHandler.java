@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import org.apache.hc.client5.http.classic.ExecChain;
+import org.apache.hc.client5.http.classic.ExecChainHandler;
+import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+import org.apache.hc.core5.net.URIAuthority;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Record the metrics of each attempt of a request. This goes after the retry handler in the execution chain, so it sees
+ * every attempt, and counts the bytes of the response body as it is read.
+ */
+public class MetricsExecChainHandler implements ExecChainHandler {
+    private static final String ATTEMPT_ATTRIBUTE = MetricsExecChainHandler.class.getName() + ".attempt";
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final String accountName;
+
+    /**
+     * @param accountName The account name, or null to take it from the request host
+     */
+    public MetricsExecChainHandler(String accountName) {
+        this.accountName = accountName;
+    }
+
+    @Override
+    public ClassicHttpResponse execute(ClassicHttpRequest request, ExecChain.Scope scope, ExecChain chain) throws IOException, HttpException {
+        String account = accountName;
+        if (null == account) {
+            URIAuthority authority = request.getAuthority();
+            account = null == authority ? "unknown" : authority.getHostName().replaceAll("\\..*$", "");
+        }
+        OperationMetrics metrics = DatalakeMetrics.getOperation(account, operationOf(request));
+
+        // The context is shared by the attempts of a request
+        Object attempt = scope.clientContext.getAttribute(ATTEMPT_ATTRIBUTE);
+        if (attempt instanceof Integer) metrics.recordRetry();
+        scope.clientContext.setAttribute(ATTEMPT_ATTRIBUTE, attempt instanceof Integer ? (Integer) attempt + 1 : 1);
+
+        HttpEntity requestEntity = request.getEntity();
+        long bytesOut = null == requestEntity ? 0 : requestEntity.getContentLength();
+        long start = System.nanoTime();
+        ClassicHttpResponse response;
+        try {
+            response = chain.proceed(request, scope);
+        } catch (IOException | HttpException | RuntimeException e) {
+            metrics.recordFailure((System.nanoTime() - start) / 1000, bytesOut);
+            throw e;
+        }
+        metrics.recordResponse(response.getCode(), (System.nanoTime() - start) / 1000, bytesOut);
+
+        HttpEntity responseEntity = response.getEntity();
+        if (null != responseEntity) response.setEntity(new CountingEntity(responseEntity, metrics));
+        return response;
+    }
+
+    /**
+     * Name the datalake operation of a request
+     * @param request The request
+     * @return The operation, such as createFile, append, flush, read or list
+     */
+    static String operationOf(HttpRequest request) {
+        String method = request.getMethod();
+        String resource = null, action = null;
+        String path = request.getPath();
+        int query = null == path ? -1 : path.indexOf('?');
+        if (query >= 0) {
+            for (String parameter: path.substring(query + 1).split("&")) {
+                if (parameter.startsWith("resource=")) resource = parameter.substring(9);
+                else if (parameter.startsWith("action=")) action = parameter.substring(7);
+            }
+        }
+
+        switch (method) {
+            case "PUT":
+                if (request.containsHeader("x-ms-rename-source")) return "rename";
+                if ("file".equals(resource)) return "createFile";
+                if ("directory".equals(resource)) return "createDirectory";
+                if ("filesystem".equals(resource)) return "createFilesystem";
+                return "put";
+            case "PATCH":
+                return null == action ? "update" : action;
+            case "GET":
+                if ("filesystem".equals(resource)) return "list";
+                return null == action ? "read" : action;
+            case "HEAD":
+                if ("filesystem".equals(resource)) return "getFilesystemProperties";
+                return null == action ? "getProperties" : action;
+            case "DELETE":
+                if ("filesystem".equals(resource)) return "deleteFilesystem";
+                return "delete";
+            case "POST":
+                return request.containsHeader("x-ms-lease-action") ? "lease" : "post";
+            default:
+                return method.toLowerCase();
+        }
+    }
+
+    /**
+     * Count the bytes of a response body as they are read
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+        private final OperationMetrics metrics;
+
+        CountingEntity(HttpEntity entity, OperationMetrics metrics) {
+            super(entity);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new FilterInputStream(super.getContent()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) metrics.recordBytesIn(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) metrics.recordBytesIn(read);
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while (-1 != (read = in.read(buffer))) out.write(buffer, 0, read);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a single datalake operation on an account
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+    static final String NO_RESPONSE = "IOException";
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> statusCounts = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * Record a request that got a response
+     * @param status The HTTP status
+     * @param micros The time to the response in microseconds
+     * @param bytesOut The length of the request body
+     */
+    void recordResponse(int status, long micros, long bytesOut) {
+        record(Integer.toString(status), status >= 400, micros, bytesOut);
+    }
+
+    /**
+     * Record a request that failed without a response
+     * @param micros The time to the failure in microseconds
+     * @param bytesOut The length of the request body
+     */
+    void recordFailure(long micros, long bytesOut) {
+        record(NO_RESPONSE, true, micros, bytesOut);
+    }
+
+    private void record(String status, boolean error, long micros, long bytesOut) {
+        requests.increment();
+        if (error) errors.increment();
+        statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+        latency.record(micros);
+        if (bytesOut > 0) this.bytesOut.add(bytesOut);
+    }
+
+    void recordBytesIn(long length) {
+        bytesIn.add(length);
+    }
+
+    void recordRetry() {
+        retries.increment();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+        return counts;
+    }
+
+    @Override
+    public double getLatencyP50() {
+        return latency.getPercentile(0.50);
+    }
+
+    @Override
+    public double getLatencyP95() {
+        return latency.getPercentile(0.95);
+    }
+
+    @Override
+    public double getLatencyP99() {
+        return latency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    @Override
+    public void reset() {
+        requests.reset();
+        errors.reset();
+        statusCounts.clear();
+        latency.reset();
+        bytesOut.reset();
+        bytesIn.reset();
+        retries.reset();
+    }
+}
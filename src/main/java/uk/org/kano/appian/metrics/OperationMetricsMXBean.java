@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import java.util.Map;
+
+/**
+ * The metrics of a single datalake operation on an account. Every attempt of a request is counted, including retries.
+ */
+public interface OperationMetricsMXBean {
+    /**
+     * @return The number of requests sent
+     */
+    long getRequestCount();
+
+    /**
+     * @return The number of requests that failed, with an error status or without a response
+     */
+    long getErrorCount();
+
+    /**
+     * @return The number of responses by HTTP status, with requests that got no response under "IOException"
+     */
+    Map<String, Long> getStatusCounts();
+
+    /**
+     * @return The median latency in milliseconds
+     */
+    double getLatencyP50();
+
+    /**
+     * @return The 95th percentile latency in milliseconds
+     */
+    double getLatencyP95();
+
+    /**
+     * @return The 99th percentile latency in milliseconds
+     */
+    double getLatencyP99();
+
+    /**
+     * @return The bytes of the request bodies sent
+     */
+    long getBytesOut();
+
+    /**
+     * @return The bytes of the response bodies read
+     */
+    long getBytesIn();
+
+    /**
+     * @return The number of retries
+     */
+    long getRetries();
+
+    /**
+     * Reset the metrics to zero
+     */
+    void reset();
+}
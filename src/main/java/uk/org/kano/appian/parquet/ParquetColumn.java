@@ -0,0 +1,425 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.parquet;
+
+import uk.org.kano.appian.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * A single optional column of a Parquet file. Values are PLAIN encoded into pages, and each page is compressed as soon
+ * as it is full, so that only the compressed pages of the current row group are held.
+ */
+class ParquetColumn {
+    // Parquet physical types
+    static final int TYPE_BOOLEAN = 0;
+    static final int TYPE_INT32 = 1;
+    static final int TYPE_INT64 = 2;
+    static final int TYPE_FLOAT = 4;
+    static final int TYPE_DOUBLE = 5;
+    static final int TYPE_BYTE_ARRAY = 6;
+
+    // Parquet converted types
+    private static final int CONVERTED_NONE = -1;
+    private static final int CONVERTED_UTF8 = 0;
+    private static final int CONVERTED_DECIMAL = 5;
+    private static final int CONVERTED_DATE = 6;
+    private static final int CONVERTED_TIME_MILLIS = 7;
+    private static final int CONVERTED_TIMESTAMP_MICROS = 10;
+    private static final int CONVERTED_INT_8 = 15;
+    private static final int CONVERTED_INT_16 = 16;
+
+    // Encodings and page types
+    private static final int ENCODING_PLAIN = 0;
+    private static final int ENCODING_RLE = 3;
+    private static final int PAGE_DATA = 0;
+    private static final int REPETITION_OPTIONAL = 1;
+
+    private static final int PAGE_SIZE = 1048576;
+    private static final int MAX_LONG_DECIMAL_PRECISION = 18;
+    private static final int MAX_DECIMAL_PRECISION = 38;
+
+    private final String name;
+    private final int index;
+    private final int type;
+    private final int convertedType;
+    private final int precision;
+    private final int scale;
+    private final Compression compression;
+
+    // The current page
+    private final ByteArrayOutputStream values = new ByteArrayOutputStream(PAGE_SIZE / 4);
+    private final ByteArrayOutputStream definitionLevels = new ByteArrayOutputStream(256);
+    private final byte[] scratch = new byte[8];
+    private int pageValues = 0;
+    private int runLevel = -1;
+    private int runLength = 0;
+    private int booleanBits = 0;
+    private int booleanCount = 0;
+
+    // The pages of the current row group
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(PAGE_SIZE / 4);
+    private long chunkValues = 0;
+    private long chunkUncompressedSize = 0;
+
+    private ParquetColumn(String name, int index, int type, int convertedType, int precision, int scale, Compression compression) {
+        this.name = name;
+        this.index = index;
+        this.type = type;
+        this.convertedType = convertedType;
+        this.precision = precision;
+        this.scale = scale;
+        this.compression = compression;
+    }
+
+    /**
+     * Map a result set column to a Parquet column. Types without a Parquet equivalent are written as strings.
+     * @param metaData The result set metadata
+     * @param index The column index, from 1
+     * @param compression The compression of the pages
+     * @return The column
+     * @throws SQLException If the metadata cannot be read
+     */
+    static ParquetColumn forColumn(ResultSetMetaData metaData, int index, Compression compression) throws SQLException {
+        String name = metaData.getColumnLabel(index);
+        switch (metaData.getColumnType(index)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new ParquetColumn(name, index, TYPE_BOOLEAN, CONVERTED_NONE, 0, 0, compression);
+            case Types.TINYINT:
+                return new ParquetColumn(name, index, TYPE_INT32, CONVERTED_INT_8, 0, 0, compression);
+            case Types.SMALLINT:
+                return new ParquetColumn(name, index, TYPE_INT32, CONVERTED_INT_16, 0, 0, compression);
+            case Types.INTEGER:
+                return new ParquetColumn(name, index, TYPE_INT32, CONVERTED_NONE, 0, 0, compression);
+            case Types.BIGINT:
+                return new ParquetColumn(name, index, TYPE_INT64, CONVERTED_NONE, 0, 0, compression);
+            case Types.REAL:
+                return new ParquetColumn(name, index, TYPE_FLOAT, CONVERTED_NONE, 0, 0, compression);
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return new ParquetColumn(name, index, TYPE_DOUBLE, CONVERTED_NONE, 0, 0, compression);
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                int precision = metaData.getPrecision(index), scale = metaData.getScale(index);
+                if (precision < 1 || precision > MAX_DECIMAL_PRECISION || scale < 0 || scale > precision) break;
+                return new ParquetColumn(name, index, precision <= MAX_LONG_DECIMAL_PRECISION ? TYPE_INT64 : TYPE_BYTE_ARRAY, CONVERTED_DECIMAL, precision, scale, compression);
+            case Types.DATE:
+                return new ParquetColumn(name, index, TYPE_INT32, CONVERTED_DATE, 0, 0, compression);
+            case Types.TIME:
+                return new ParquetColumn(name, index, TYPE_INT32, CONVERTED_TIME_MILLIS, 0, 0, compression);
+            case Types.TIMESTAMP:
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return new ParquetColumn(name, index, TYPE_INT64, CONVERTED_TIMESTAMP_MICROS, 0, 0, compression);
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return new ParquetColumn(name, index, TYPE_BYTE_ARRAY, CONVERTED_NONE, 0, 0, compression);
+            default:
+                break;
+        }
+        return new ParquetColumn(name, index, TYPE_BYTE_ARRAY, CONVERTED_UTF8, 0, 0, compression);
+    }
+
+    /**
+     * Read the column from the current row and add it to the page, closing the page if it is full.
+     * @param resultSet The result set, positioned on a row
+     * @throws SQLException If the value cannot be read
+     * @throws IOException If a page cannot be compressed
+     */
+    void read(ResultSet resultSet) throws SQLException, IOException {
+        boolean present = readValue(resultSet);
+        addDefinitionLevel(present ? 1 : 0);
+        pageValues++;
+        if (values.size() >= PAGE_SIZE) closePage();
+    }
+
+    /**
+     * @return The bytes held for the row group
+     */
+    long getBufferedSize() {
+        return chunk.size() + values.size() + definitionLevels.size();
+    }
+
+    /**
+     * Write the pages of the row group, and reset for the next one.
+     * @param out The file
+     * @param offset The offset in the file the pages are written at
+     * @param metadata Receives the column chunk metadata
+     * @return The uncompressed size of the pages
+     * @throws IOException If the pages cannot be written
+     */
+    long writeChunk(OutputStream out, long offset, ThriftCompactWriter metadata) throws IOException {
+        if (pageValues > 0) closePage();
+        long compressedSize = chunk.size();
+        long uncompressedSize = chunkUncompressedSize;
+        chunk.writeTo(out);
+
+        // ColumnChunk
+        metadata.structBegin();
+        metadata.writeI64(2, offset);
+        metadata.writeStructField(3);
+        metadata.writeI32(1, type);
+        metadata.writeListField(2, ThriftCompactWriter.TYPE_I32, 2);
+        metadata.writeI32Element(ENCODING_PLAIN);
+        metadata.writeI32Element(ENCODING_RLE);
+        metadata.writeListField(3, ThriftCompactWriter.TYPE_BINARY, 1);
+        metadata.writeStringElement(name);
+        metadata.writeI32(4, getCodec(compression));
+        metadata.writeI64(5, chunkValues);
+        metadata.writeI64(6, uncompressedSize);
+        metadata.writeI64(7, compressedSize);
+        metadata.writeI64(9, offset);
+        metadata.structEnd();
+        metadata.structEnd();
+
+        chunk.reset();
+        chunkValues = 0;
+        chunkUncompressedSize = 0;
+        return uncompressedSize;
+    }
+
+    /**
+     * Write the schema element of the column
+     * @param schema The footer
+     */
+    void writeSchema(ThriftCompactWriter schema) {
+        schema.structBegin();
+        schema.writeI32(1, type);
+        schema.writeI32(3, REPETITION_OPTIONAL);
+        schema.writeString(4, name);
+        if (CONVERTED_NONE != convertedType) schema.writeI32(6, convertedType);
+        if (CONVERTED_DECIMAL == convertedType) {
+            schema.writeI32(7, scale);
+            schema.writeI32(8, precision);
+        }
+        schema.structEnd();
+    }
+
+    /**
+     * Get the Parquet codec for a compression
+     * @param compression The compression
+     * @return The codec
+     */
+    static int getCodec(Compression compression) {
+        switch (compression) {
+            case GZIP: return 2;
+            case ZSTD: return 6;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Read and encode the value
+     * @param resultSet The row
+     * @return False if the value is null
+     * @throws SQLException If the value cannot be read
+     * @throws IOException If a decimal does not fit the column
+     */
+    private boolean readValue(ResultSet resultSet) throws SQLException, IOException {
+        switch (type) {
+            case TYPE_BOOLEAN: {
+                boolean value = resultSet.getBoolean(index);
+                if (resultSet.wasNull()) return false;
+                if (value) booleanBits |= 1 << booleanCount;
+                if (8 == ++booleanCount) flushBooleans();
+                return true;
+            }
+            case TYPE_INT32: {
+                int value;
+                if (CONVERTED_DATE == convertedType) {
+                    Date date = resultSet.getDate(index);
+                    if (null == date) return false;
+                    value = (int) date.toLocalDate().toEpochDay();
+                } else if (CONVERTED_TIME_MILLIS == convertedType) {
+                    Time time = resultSet.getTime(index);
+                    if (null == time) return false;
+                    value = (int) (time.toLocalTime().toNanoOfDay() / 1000000);
+                } else {
+                    value = resultSet.getInt(index);
+                    if (resultSet.wasNull()) return false;
+                }
+                writeLittleEndian(value, 4);
+                return true;
+            }
+            case TYPE_INT64: {
+                long value;
+                if (CONVERTED_TIMESTAMP_MICROS == convertedType) {
+                    Timestamp timestamp = resultSet.getTimestamp(index);
+                    if (null == timestamp) return false;
+                    value = Math.floorDiv(timestamp.getTime(), 1000L) * 1000000L + timestamp.getNanos() / 1000;
+                } else if (CONVERTED_DECIMAL == convertedType) {
+                    BigDecimal decimal = resultSet.getBigDecimal(index);
+                    if (null == decimal) return false;
+                    value = getUnscaled(decimal).longValueExact();
+                } else {
+                    value = resultSet.getLong(index);
+                    if (resultSet.wasNull()) return false;
+                }
+                writeLittleEndian(value, 8);
+                return true;
+            }
+            case TYPE_FLOAT: {
+                float value = resultSet.getFloat(index);
+                if (resultSet.wasNull()) return false;
+                writeLittleEndian(Float.floatToIntBits(value), 4);
+                return true;
+            }
+            case TYPE_DOUBLE: {
+                double value = resultSet.getDouble(index);
+                if (resultSet.wasNull()) return false;
+                writeLittleEndian(Double.doubleToLongBits(value), 8);
+                return true;
+            }
+            default: {
+                byte[] value;
+                if (CONVERTED_DECIMAL == convertedType) {
+                    BigDecimal decimal = resultSet.getBigDecimal(index);
+                    value = null == decimal ? null : getUnscaled(decimal).toByteArray();
+                } else if (CONVERTED_UTF8 == convertedType) {
+                    String string = resultSet.getString(index);
+                    value = null == string ? null : string.getBytes(StandardCharsets.UTF_8);
+                } else {
+                    value = resultSet.getBytes(index);
+                }
+                if (null == value) return false;
+                writeLittleEndian(value.length, 4);
+                values.write(value, 0, value.length);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get the unscaled value of a decimal at the column scale
+     * @param decimal The value
+     * @return The unscaled value
+     * @throws IOException If the value has more decimal places than the column
+     */
+    private java.math.BigInteger getUnscaled(BigDecimal decimal) throws IOException {
+        try {
+            return decimal.setScale(scale, RoundingMode.UNNECESSARY).unscaledValue();
+        } catch (ArithmeticException e) {
+            throw new IOException("Value " + decimal + " does not fit column " + name, e);
+        }
+    }
+
+    /**
+     * Add a definition level, as runs of the RLE/bit-packing hybrid encoding with a bit width of 1
+     * @param level 1 for a value, 0 for a null
+     */
+    private void addDefinitionLevel(int level) {
+        if (level != runLevel) {
+            flushRun();
+            runLevel = level;
+        }
+        runLength++;
+    }
+
+    private void flushRun() {
+        if (0 == runLength) return;
+        int header = runLength << 1;
+        while ((header & ~0x7f) != 0) {
+            definitionLevels.write((header & 0x7f) | 0x80);
+            header >>>= 7;
+        }
+        definitionLevels.write(header);
+        definitionLevels.write(runLevel);
+        runLength = 0;
+    }
+
+    private void flushBooleans() {
+        if (0 == booleanCount) return;
+        values.write(booleanBits);
+        booleanBits = 0;
+        booleanCount = 0;
+    }
+
+    private void writeLittleEndian(long value, int length) {
+        for (int i = 0; i < length; i++) {
+            scratch[i] = (byte) (value >>> (8 * i));
+        }
+        values.write(scratch, 0, length);
+    }
+
+    /**
+     * Compress the current page and add it to the row group
+     * @throws IOException If the page cannot be compressed
+     */
+    private void closePage() throws IOException {
+        flushBooleans();
+        flushRun();
+        runLevel = -1;
+
+        // The definition levels are prefixed with their length, and there are no repetition levels
+        int levelsLength = definitionLevels.size();
+        ByteArrayOutputStream page = new ByteArrayOutputStream(4 + levelsLength + values.size());
+        for (int i = 0; i < 4; i++) page.write(levelsLength >>> (8 * i));
+        definitionLevels.writeTo(page);
+        values.writeTo(page);
+        int uncompressedSize = page.size();
+
+        byte[] compressed;
+        if (Compression.NONE == compression) {
+            compressed = page.toByteArray();
+        } else {
+            ByteArrayOutputStream compressedPage = new ByteArrayOutputStream(uncompressedSize / 4);
+            try (OutputStream compressingOut = compression.wrap(compressedPage)) {
+                page.writeTo(compressingOut);
+            }
+            compressed = compressedPage.toByteArray();
+        }
+
+        // PageHeader with a DataPageHeader
+        ThriftCompactWriter header = new ThriftCompactWriter();
+        header.structBegin();
+        header.writeI32(1, PAGE_DATA);
+        header.writeI32(2, uncompressedSize);
+        header.writeI32(3, compressed.length);
+        header.writeStructField(5);
+        header.writeI32(1, pageValues);
+        header.writeI32(2, ENCODING_PLAIN);
+        header.writeI32(3, ENCODING_RLE);
+        header.writeI32(4, ENCODING_RLE);
+        header.structEnd();
+        header.structEnd();
+        byte[] headerBytes = header.toByteArray();
+
+        chunk.write(headerBytes, 0, headerBytes.length);
+        chunk.write(compressed, 0, compressed.length);
+        chunkValues += pageValues;
+        chunkUncompressedSize += headerBytes.length + uncompressedSize;
+
+        values.reset();
+        definitionLevels.reset();
+        pageValues = 0;
+    }
+}
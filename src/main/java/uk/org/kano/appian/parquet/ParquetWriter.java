@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.parquet;
+
+import uk.org.kano.appian.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write a result set as a Parquet file. Rows are buffered into a row group, and each row group is written to the
+ * stream as soon as it reaches the row group size, so the memory used is bounded by the row group size rather than
+ * the table. The footer is written on close.
+ * <p>
+ * All columns are optional and PLAIN encoded, with each page compressed with the chosen compression. The mapping of
+ * the JDBC types is in ParquetColumn.
+ */
+public class ParquetWriter implements Closeable {
+    private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+    private static final String CREATED_BY = "appian-datalake-connected-system";
+
+    private final CountingOutputStream out;
+    private final long rowGroupSize;
+    private final List<ParquetColumn> columns = new ArrayList<>();
+    private final ByteArrayOutputStream rowGroups = new ByteArrayOutputStream();
+    private int rowGroupCount = 0;
+    private long rows = 0;
+    private long rowGroupRows = 0;
+    private long uncompressedLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a writer, and write the file header
+     * @param out The stream to write the file to, closed when the writer is closed
+     * @param metaData The columns of the result set to be written
+     * @param compression The compression of the pages
+     * @param rowGroupSize The size of each row group, before it is written
+     * @throws IOException If the header cannot be written
+     * @throws SQLException If the result set metadata cannot be read
+     */
+    public ParquetWriter(OutputStream out, ResultSetMetaData metaData, Compression compression, long rowGroupSize) throws IOException, SQLException {
+        this.out = new CountingOutputStream(out);
+        this.rowGroupSize = rowGroupSize;
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            columns.add(ParquetColumn.forColumn(metaData, i, compression));
+        }
+
+        this.out.write(MAGIC);
+    }
+
+    /**
+     * Add the current row of a result set, writing the row group if it is full
+     * @param resultSet The result set, positioned on a row
+     * @throws IOException If a row group cannot be written
+     * @throws SQLException If a value cannot be read
+     */
+    public void write(ResultSet resultSet) throws IOException, SQLException {
+        long bufferedSize = 0;
+        for (ParquetColumn column: columns) {
+            column.read(resultSet);
+            bufferedSize += column.getBufferedSize();
+        }
+        rows++;
+        rowGroupRows++;
+        if (bufferedSize >= rowGroupSize) writeRowGroup();
+    }
+
+    /**
+     * Add all the remaining rows of a result set
+     * @param resultSet The result set
+     * @throws IOException If a row group cannot be written
+     * @throws SQLException If a value cannot be read
+     */
+    public void writeAll(ResultSet resultSet) throws IOException, SQLException {
+        while (resultSet.next()) write(resultSet);
+    }
+
+    /**
+     * @return The number of rows written
+     */
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @return The size of the pages written, before compression
+     */
+    public long getUncompressedLength() {
+        return uncompressedLength;
+    }
+
+    /**
+     * Write the last row group and the footer, and close the stream
+     * @throws IOException If the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (rowGroupRows > 0) writeRowGroup();
+
+            // FileMetaData. The row groups were serialised as they were written.
+            ThriftCompactWriter footer = new ThriftCompactWriter();
+            footer.structBegin();
+            footer.writeI32(1, 1);
+            footer.writeListField(2, ThriftCompactWriter.TYPE_STRUCT, columns.size() + 1);
+            footer.structBegin();
+            footer.writeString(4, "schema");
+            footer.writeI32(5, columns.size());
+            footer.structEnd();
+            for (ParquetColumn column: columns) column.writeSchema(footer);
+            footer.writeI64(3, rows);
+            footer.writeListField(4, ThriftCompactWriter.TYPE_STRUCT, rowGroupCount);
+            footer.writeRaw(rowGroups.toByteArray());
+            footer.writeString(6, CREATED_BY);
+            footer.structEnd();
+            byte[] footerBytes = footer.toByteArray();
+
+            out.write(footerBytes);
+            for (int i = 0; i < 4; i++) out.write(footerBytes.length >>> (8 * i));
+            out.write(MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the buffered row group, and add its metadata to the footer
+     * @throws IOException If the row group cannot be written
+     */
+    private void writeRowGroup() throws IOException {
+        ThriftCompactWriter metadata = new ThriftCompactWriter();
+        metadata.structBegin();
+        metadata.writeListField(1, ThriftCompactWriter.TYPE_STRUCT, columns.size());
+
+        long totalByteSize = 0;
+        for (ParquetColumn column: columns) {
+            totalByteSize += column.writeChunk(out, out.getCount(), metadata);
+        }
+
+        metadata.writeI64(2, totalByteSize);
+        metadata.writeI64(3, rowGroupRows);
+        metadata.structEnd();
+        byte[] metadataBytes = metadata.toByteArray();
+        rowGroups.write(metadataBytes, 0, metadataBytes.length);
+
+        rowGroupCount++;
+        uncompressedLength += totalByteSize;
+        rowGroupRows = 0;
+    }
+
+    /**
+     * Keeps the position in the file, for the offsets in the footer
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.parquet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Just enough of the Thrift compact protocol to write the Parquet page headers and file footer.
+ */
+class ThriftCompactWriter {
+    static final byte TYPE_I32 = 5;
+    static final byte TYPE_I64 = 6;
+    static final byte TYPE_BINARY = 8;
+    static final byte TYPE_LIST = 9;
+    static final byte TYPE_STRUCT = 12;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    private final Deque<Integer> fieldIds = new ArrayDeque<>();
+    private int lastFieldId = 0;
+
+    /**
+     * @return The bytes written so far
+     */
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    void writeI32(int id, int value) {
+        writeFieldHeader(id, TYPE_I32);
+        writeVarint(zigzag(value));
+    }
+
+    void writeI64(int id, long value) {
+        writeFieldHeader(id, TYPE_I64);
+        writeVarint(zigzag(value));
+    }
+
+    void writeString(int id, String value) {
+        writeFieldHeader(id, TYPE_BINARY);
+        writeStringValue(value);
+    }
+
+    /**
+     * Start a struct field. End it with structEnd().
+     * @param id The field id
+     */
+    void writeStructField(int id) {
+        writeFieldHeader(id, TYPE_STRUCT);
+        structBegin();
+    }
+
+    /**
+     * Start a list field. The elements follow, with each struct element started with structBegin().
+     * @param id The field id
+     * @param elementType The element type
+     * @param size The number of elements
+     */
+    void writeListField(int id, byte elementType, int size) {
+        writeFieldHeader(id, TYPE_LIST);
+        if (size < 15) {
+            out.write(size << 4 | elementType);
+        } else {
+            out.write(0xf0 | elementType);
+            writeVarint(size);
+        }
+    }
+
+    void writeI32Element(int value) {
+        writeVarint(zigzag(value));
+    }
+
+    void writeStringElement(String value) {
+        writeStringValue(value);
+    }
+
+    /**
+     * Write bytes that were serialised by another writer, such as list elements
+     * @param bytes The serialised bytes
+     */
+    void writeRaw(byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    void structBegin() {
+        fieldIds.push(lastFieldId);
+        lastFieldId = 0;
+    }
+
+    void structEnd() {
+        out.write(0);
+        lastFieldId = fieldIds.pop();
+    }
+
+    private void writeFieldHeader(int id, byte type) {
+        int delta = id - lastFieldId;
+        if (delta > 0 && delta <= 15) {
+            out.write(delta << 4 | type);
+        } else {
+            out.write(type);
+            writeVarint(zigzag(id));
+        }
+        lastFieldId = id;
+    }
+
+    private void writeStringValue(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
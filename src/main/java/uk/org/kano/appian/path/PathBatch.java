@@ -0,0 +1,215 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.path;
+
+import com.appian.connectedsystems.simplified.sdk.SimpleIntegrationTemplate;
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.ExecutionContext;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import com.appian.connectedsystems.templateframework.sdk.TemplateId;
+import com.appian.connectedsystems.templateframework.sdk.configuration.PropertyPath;
+import com.appian.connectedsystems.templateframework.sdk.diagnostics.IntegrationDesignerDiagnostic;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateRequestPolicy;
+import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.AppianUtils;
+import uk.org.kano.appian.Constants;
+import uk.org.kano.appian.LogUtil;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Run a list of create, delete and rename operations concurrently. Each operation is run by its own template, so it
+ * behaves exactly as a single call would, and they all share the connection pool of the connected system.
+ */
+@TemplateId(name="PathBatch")
+@IntegrationTemplateType(IntegrationTemplateRequestPolicy.WRITE)
+public class PathBatch extends SimpleIntegrationTemplate {
+    private static final Logger logger = LoggerFactory.getLogger(PathBatch.class);
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final int DEFAULT_MAX_PARALLEL = 8;
+    private static final int MAX_PARALLEL = 32;
+    private static final String OPERATION = "operation";
+    private static final String OPERATION_CREATE = "create";
+    private static final String OPERATION_DELETE = "delete";
+    private static final String OPERATION_RENAME = "rename";
+
+    // The settings each operation takes, which are the properties of its template
+    private static final Map<String, Set<String>> OPERATION_SETTINGS = new HashMap<>();
+    static {
+        OPERATION_SETTINGS.put(OPERATION_CREATE, new HashSet<>(Arrays.asList(Constants.SC_ATTR_PATH, Constants.SC_ATTR_FILE, Constants.SC_ATTR_OVERWRITE, Constants.SC_ATTR_MIME_TYPE, Constants.SC_ATTR_CONTENT_ENCODING, Constants.SC_ATTR_PROPERTIES)));
+        OPERATION_SETTINGS.put(OPERATION_DELETE, new HashSet<>(Arrays.asList(Constants.SC_ATTR_PATH, Constants.SC_ATTR_RECURSIVE)));
+        OPERATION_SETTINGS.put(OPERATION_RENAME, new HashSet<>(Arrays.asList(Constants.SC_ATTR_SOURCE_PATH, Constants.SC_ATTR_DESTINATION_PATH)));
+    }
+
+    @Override
+    protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
+        return integrationConfiguration.setProperties(
+                textProperty(Constants.SC_ATTR_OPERATIONS)
+                        .label("Operations")
+                        .description("A JSON array of the operations to run. Each has an operation of create, delete or rename, and the settings of that integration, e.g. {\"operation\": \"delete\", \"path\": \"/a\", \"recursive\": true}.")
+                        .instructionText("Build the list with a!toJson(). Create takes path, file, overwrite, mimeType, contentEncoding and properties, delete takes path and recursive, and rename takes sourcePath and destinationPath.")
+                        .isRequired(true)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_PARALLEL)
+                        .label("Maximum parallel operations")
+                        .description("The maximum number of operations running at once (default " + DEFAULT_MAX_PARALLEL + ", at most " + MAX_PARALLEL + "). Operations on the same path should not be in the same batch, as their order is not fixed.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build()
+        );
+    }
+
+    @Override
+    protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        long startTime, endTime;
+
+        List<Map<String, Object>> operations;
+        try {
+            operations = parseOperations(integrationConfiguration.getValue(Constants.SC_ATTR_OPERATIONS));
+        } catch (IOException e) {
+            return LogUtil.createError("Invalid operations", e.getMessage());
+        }
+        Integer maxParallel = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_PARALLEL);
+        int threads = Math.max(1, Math.min(operations.size(), Math.min(MAX_PARALLEL, null == maxParallel || maxParallel < 1 ? DEFAULT_MAX_PARALLEL : maxParallel)));
+
+        startTime = System.currentTimeMillis();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Future<IntegrationResponse>> futures = new ArrayList<>();
+        for (Map<String, Object> operation: operations) {
+            futures.add(executorService.submit(() -> executeOperation(operation, connectedSystemConfiguration, executionContext)));
+        }
+        executorService.shutdown();
+
+        // Collect the results in order
+        List<Map<String, Object>> results = new ArrayList<>();
+        int failed = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            IntegrationResponse response;
+            try {
+                response = futures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                response = LogUtil.createError("Batch operation threw an exception", e.getMessage());
+                logger.error(response.getError().getTitle(), e);
+            }
+
+            Map<String, Object> result = LogUtil.getIntegrationDataMap("index", i, OPERATION, operations.get(i).get(OPERATION), "success", response.isSuccess());
+            if (response.isSuccess()) {
+                result.put("result", response.getResult());
+            } else {
+                failed++;
+                result.put("error", response.getError().getTitle());
+                result.put("detail", response.getError().getMessage());
+            }
+            results.add(result);
+        }
+        endTime = System.currentTimeMillis();
+
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName(), "operations", operations.size(), "maxParallel", threads);
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(requestDiagnostic)
+                .addExecutionTimeDiagnostic(endTime - startTime)
+                .build();
+        Map<String, Object> responseData = LogUtil.getIntegrationDataMap("results", results, "succeeded", operations.size() - failed, "failed", failed);
+        return IntegrationResponse.forSuccess(responseData).withDiagnostic(integrationDesignerDiagnostic).build();
+    }
+
+    /**
+     * Run a single operation with its template
+     * @param operation The operation and its settings
+     * @param connectedSystemConfiguration The connected system configuration
+     * @param executionContext The execution context
+     * @return The response of the template
+     */
+    private static IntegrationResponse executeOperation(Map<String, Object> operation, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
+        SimpleIntegrationTemplate template;
+        Map<String, Object> configurationValues = new HashMap<>(operation);
+        configurationValues.remove(OPERATION);
+        switch (operation.get(OPERATION).toString()) {
+            case OPERATION_CREATE:
+                template = new PathCreate();
+                configurationValues.putIfAbsent(Constants.SC_ATTR_FILE, true);
+                configurationValues.putIfAbsent(Constants.SC_ATTR_OVERWRITE, true);
+                break;
+            case OPERATION_DELETE:
+                template = new PathDelete();
+                configurationValues.putIfAbsent(Constants.SC_ATTR_RECURSIVE, false);
+                break;
+            default:
+                template = new PathRename();
+                break;
+        }
+
+        SimpleConfiguration subIntegrationConfiguration = AppianUtils.getIntegrationConfiguration(template, connectedSystemConfiguration, executionContext);
+        configurationValues.forEach(subIntegrationConfiguration::setValue);
+        return template.execute(subIntegrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), executionContext);
+    }
+
+    /**
+     * Parse and check the operations
+     * @param json The JSON array of operations
+     * @return The operations, each with its settings
+     * @throws IOException If the operations are not valid
+     */
+    static List<Map<String, Object>> parseOperations(String json) throws IOException {
+        if (null == json || json.trim().isEmpty()) throw new IOException("No operations specified");
+
+        List<Map<String, Object>> operations = new ArrayList<>();
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (JsonToken.START_ARRAY != parser.nextToken()) throw new IOException("Expected a JSON array of operations");
+            while (JsonToken.START_OBJECT == parser.nextToken()) {
+                Map<String, Object> operation = new HashMap<>();
+                while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                    String field = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+                    switch (token) {
+                        case VALUE_TRUE:
+                        case VALUE_FALSE:
+                            operation.put(field, parser.getBooleanValue());
+                            break;
+                        case VALUE_STRING:
+                            operation.put(field, parser.getText());
+                            break;
+                        case VALUE_NULL:
+                            break;
+                        default:
+                            throw new IOException("Operation " + operations.size() + " has an invalid value for " + field);
+                    }
+                }
+
+                Object name = operation.get(OPERATION);
+                Set<String> settings = null == name ? null : OPERATION_SETTINGS.get(name.toString());
+                if (null == settings) throw new IOException("Operation " + operations.size() + " must be one of create, delete or rename");
+                for (String field: operation.keySet()) {
+                    if (!OPERATION.equals(field) && !settings.contains(field)) throw new IOException("Operation " + operations.size() + " does not take " + field);
+                }
+                operations.add(operation);
+            }
+            if (JsonToken.END_ARRAY != parser.currentToken()) throw new IOException("Expected a JSON array of operations");
+        }
+        if (operations.isEmpty()) throw new IOException("No operations specified");
+        return operations;
+    }
+}
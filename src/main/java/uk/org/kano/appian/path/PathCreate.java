@@ -38,6 +38,7 @@ import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathMetadataCache;
 
 import java.io.IOException;
 import java.net.URI;
@@ -68,6 +69,18 @@ public class PathCreate extends SimpleIntegrationTemplate {
                         .isRequired(false)
                         .isExpressionable(true)
                         .build(),
+                textProperty(Constants.SC_ATTR_CONTENT_ENCODING)
+                        .label("Content encoding")
+                        .description("The content encoding of a compressed file, e.g. gzip.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_PROPERTIES)
+                        .label("Properties")
+                        .description("User properties to store with the path, as name=value pairs separated by commas, with each value base64 encoded.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
                 booleanProperty(Constants.SC_ATTR_FILE)
                         .label("Resource is a file")
                         .description("If the resource a file, or a directory. Default is file.")
@@ -86,7 +99,7 @@ public class PathCreate extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -132,17 +145,19 @@ public class PathCreate extends SimpleIntegrationTemplate {
         HttpEntity entity = new StringEntity("", contentType, false);
         request.setEntity(entity);
 
+        String contentEncoding = integrationConfiguration.getValue(Constants.SC_ATTR_CONTENT_ENCODING);
+        if (null != contentEncoding && !contentEncoding.trim().isEmpty()) request.addHeader("x-ms-content-encoding", contentEncoding.trim());
+        String properties = integrationConfiguration.getValue(Constants.SC_ATTR_PROPERTIES);
+        if (null != properties && !properties.trim().isEmpty()) request.addHeader("x-ms-properties", properties.trim());
+
         try {
             BasicResponseHandler brh = new BasicResponseHandler();
             executeResponse = client.execute(request, brh);
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
+        PathMetadataCache.invalidate(resourceUri);
         endTime = System.currentTimeMillis();
 
         // Record some diagnostics
@@ -27,7 +27,10 @@ import com.appian.connectedsystems.templateframework.sdk.diagnostics.Integration
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateRequestPolicy;
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
 import org.apache.hc.client5.http.classic.methods.HttpDelete;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,19 +38,32 @@ import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathListResponseHandler;
+import uk.org.kano.appian.PathMetadataCache;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * TODO: allow renames.
+ * Delete a path. A recursive delete of a large directory may be done by the service in several requests, so the
+ * continuation token of each response is followed until the whole tree has gone. With more than one worker, the
+ * subdirectories of the directory are deleted concurrently as they are listed, and the files left are deleted with the
+ * directory itself.
  */
 @TemplateId(name="PathDelete")
 @IntegrationTemplateType(IntegrationTemplateRequestPolicy.WRITE)
 public class PathDelete extends SimpleIntegrationTemplate {
     private static final Logger logger = LoggerFactory.getLogger(PathDelete.class);
+    private static final int MAX_PARALLEL = 32;
 
     @Override
     protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
@@ -63,6 +79,12 @@ public class PathDelete extends SimpleIntegrationTemplate {
                         .description("Delete all paths/files under the path. Default false.")
                         .isRequired(false)
                         .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_PARALLEL)
+                        .label("Maximum parallel deletes")
+                        .description("For a recursive delete, the number of subdirectories deleted at once (default 1, at most " + MAX_PARALLEL + "). More than one lists the directory and deletes each subdirectory as its own subtree.")
+                        .isRequired(false)
+                        .isExpressionable(true)
                         .build()
         );
     }
@@ -70,15 +92,16 @@ public class PathDelete extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
-        URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
-        if (null == resourceUri) {
+        URI baseUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
+        if (null == baseUri) {
             return LogUtil.createError("Invalid base URI", "The base URI is invalid");
         }
 
-        URIBuilder uriBuilder = new URIBuilder(resourceUri);
-        boolean recursive = integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_RECURSIVE);
+        boolean recursive = Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_RECURSIVE));
+        Integer maxParallel = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_PARALLEL);
+        int threads = recursive && null != maxParallel ? Math.max(1, Math.min(MAX_PARALLEL, maxParallel)) : 1;
         String path = integrationConfiguration.getValue(Constants.SC_ATTR_PATH);
         if (null == path || (path.startsWith("/") && path.length() < 2) || (!path.startsWith("/") && path.length() < 1)) {
             return LogUtil.createError("Invalid path", "Invalid path specified");
@@ -86,36 +109,38 @@ public class PathDelete extends SimpleIntegrationTemplate {
         if(!path.startsWith("/")) path = "/" + path;
 
         // Create the URI
+        URI resourceUri;
         try {
-            resourceUri = uriBuilder
-                    .setPath(uriBuilder.getPath() + path)
-                    .addParameter("recursive", Boolean.toString(recursive))
-                    .build();
+            resourceUri = pathUri(baseUri, path, recursive);
         } catch (URISyntaxException e) {
             return LogUtil.createError("Invalid URI", e.getMessage());
         }
 
-        // Do the request
-        HttpDelete request = new HttpDelete(resourceUri);
+        // Delete the subdirectories first, when asked to, then the path itself along with any files
+        AtomicInteger requests = new AtomicInteger();
+        AtomicInteger continuations = new AtomicInteger();
+        AtomicInteger subtrees = new AtomicInteger();
         IntegrationResponse executeResponse = null;
         startTime = System.currentTimeMillis();
 
-        try {
-            BasicResponseHandler brh = new BasicResponseHandler();
-            brh.setHandleMissingResourceAsError(false); // Allow for blind deletes
-            executeResponse = client.execute(request, brh);
-        } catch (IOException e) {
-            executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
-            logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
+        if (threads > 1) {
+            executeResponse = deleteSubdirectories(client, baseUri, path, threads, requests, continuations, subtrees);
+        }
+        if (null == executeResponse || executeResponse.isSuccess()) {
+            executeResponse = deletePath(client, resourceUri, requests, continuations);
         }
         endTime = System.currentTimeMillis();
 
+        if (executeResponse.isSuccess()) {
+            Map<String, Object> responseMap = new HashMap<>(executeResponse.getResult());
+            responseMap.put("requests", requests.get());
+            responseMap.put("continuations", continuations.get());
+            responseMap.put("subtrees", subtrees.get());
+            executeResponse = IntegrationResponse.forSuccess(responseMap).withDiagnostic(executeResponse.getIntegrationDesignerDiagnostic()).build();
+        }
+
         // Record some diagnostics
-        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName());
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", "DELETE " + resourceUri.toString(), "operation", this.getClass().getSimpleName(), "requests", requests.get(), "maxParallel", threads);
         IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
                 .addRequestDiagnostic(requestDiagnostic)
                 .addExecutionTimeDiagnostic(endTime - startTime)
@@ -124,4 +149,127 @@ public class PathDelete extends SimpleIntegrationTemplate {
         LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
         return executeResponse;
     }
+
+    /**
+     * Delete a path, following the continuation tokens until the service has deleted everything
+     * @param client The client
+     * @param resourceUri The path URI, with the recursive parameter
+     * @param requests Counts the requests made
+     * @param continuations Counts the continuations followed
+     * @return The response of the last request
+     */
+    private static IntegrationResponse deletePath(CloseableHttpClient client, URI resourceUri, AtomicInteger requests, AtomicInteger continuations) {
+        IntegrationResponse executeResponse;
+        String[] continuation = new String[1];
+        BasicResponseHandler brh = new BasicResponseHandler();
+        brh.setHandleMissingResourceAsError(false); // Allow for blind deletes
+
+        do {
+            URI requestUri = resourceUri;
+            try {
+                if (null != continuation[0]) {
+                    requestUri = new URIBuilder(resourceUri).addParameter("continuation", continuation[0]).build();
+                    continuations.incrementAndGet();
+                }
+                requests.incrementAndGet();
+                executeResponse = client.execute(new HttpDelete(requestUri), classicHttpResponse -> {
+                    Header header = classicHttpResponse.getFirstHeader("x-ms-continuation");
+                    continuation[0] = null == header ? null : header.getValue();
+                    return brh.handleResponse(classicHttpResponse);
+                });
+            } catch (IOException | URISyntaxException e) {
+                executeResponse = LogUtil.createError("Unable to execute request to " + requestUri.toString(), e.getMessage());
+                logger.error(executeResponse.getError().getDetail());
+            }
+        } while (executeResponse.isSuccess() && null != continuation[0] && !continuation[0].isEmpty());
+
+        if (executeResponse.isSuccess()) {
+            PathMetadataCache.putMissing(resourceUri);
+        } else {
+            PathMetadataCache.invalidate(resourceUri);
+        }
+        return executeResponse;
+    }
+
+    /**
+     * Delete each subdirectory as its own subtree while the directory is listed. The work queue is bounded, and when it
+     * is full the lister deletes a subtree itself, so the listing never runs far ahead of the deletes. Files are left
+     * for the delete of the directory.
+     * @return The first failure, or null if all the subdirectories were deleted or the directory could not be listed
+     */
+    private static IntegrationResponse deleteSubdirectories(CloseableHttpClient client, URI baseUri, String path, int threads, AtomicInteger requests, AtomicInteger continuations, AtomicInteger subtrees) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        AtomicReference<IntegrationResponse> failure = new AtomicReference<>();
+        AtomicInteger deleted = new AtomicInteger();
+        String directory = path.substring(1);
+        String[] continuation = new String[1];
+
+        try {
+            do {
+                IntegrationResponse listResponse;
+                try {
+                    URIBuilder uriBuilder = new URIBuilder(baseUri)
+                            .addParameter("directory", directory)
+                            .addParameter("recursive", "false")
+                            .addParameter("resource", "filesystem");
+                    if (null != continuation[0]) uriBuilder.addParameter("continuation", continuation[0]);
+                    HttpGet request = new HttpGet(uriBuilder.build());
+                    request.setHeader(HttpHeaders.ACCEPT_ENCODING, PathListResponseHandler.ACCEPT_ENCODING);
+                    listResponse = client.execute(request, new PathListResponseHandler(value -> continuation[0] = value));
+                } catch (IOException | URISyntaxException e) {
+                    logger.warn("Unable to list {}, deleting the rest of it in one request: {}", path, e.getMessage());
+                    break;
+                }
+                if (!listResponse.isSuccess()) break;
+
+                @SuppressWarnings("unchecked")
+                List<Map<String, Object>> paths = (List<Map<String, Object>>) listResponse.getResult().get("paths");
+                for (Map<String, Object> child: paths) {
+                    // A file, including the path itself if it is one, is left for the delete of the path
+                    String name = String.valueOf(child.get("name"));
+                    if (!Boolean.TRUE.equals(child.get("isDirectory")) || name.equals(directory)) continue;
+                    if (null != failure.get()) break;
+
+                    subtrees.incrementAndGet();
+                    executor.execute(() -> {
+                        if (null != failure.get()) return;
+                        IntegrationResponse response;
+                        try {
+                            response = deletePath(client, pathUri(baseUri, "/" + name, true), requests, continuations);
+                        } catch (URISyntaxException e) {
+                            response = LogUtil.createError("Invalid URI", e.getMessage());
+                        }
+                        if (response.isSuccess()) {
+                            logger.debug("Deleted {} subdirectories under {}", deleted.incrementAndGet(), path);
+                        } else {
+                            failure.compareAndSet(null, response);
+                        }
+                    });
+                }
+            } while (null == failure.get() && null != continuation[0] && !continuation[0].isEmpty());
+
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Waiting for the subdirectories of {} to be deleted", path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            IntegrationResponse error = LogUtil.createError("Unable to delete the subdirectories of " + path, "Interrupted while deleting");
+            logger.error(error.getError().getDetail());
+            return error;
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Deleted {} of {} subdirectories under {} with {} requests", deleted.get(), subtrees.get(), path, requests.get());
+        return failure.get();
+    }
+
+    /**
+     * Build the URI of a path
+     */
+    private static URI pathUri(URI baseUri, String path, boolean recursive) throws URISyntaxException {
+        URIBuilder uriBuilder = new URIBuilder(baseUri);
+        uriBuilder.setPath(uriBuilder.getPath() + path).addParameter("recursive", Boolean.toString(recursive));
+        return uriBuilder.build();
+    }
 }
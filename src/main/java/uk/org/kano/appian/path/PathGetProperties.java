@@ -28,6 +28,7 @@ import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTem
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
 import org.apache.hc.client5.http.classic.methods.HttpHead;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.HttpStatus;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,14 +36,16 @@ import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathMetadataCache;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Get the properties of a path
+ * Get the properties of a path. Properties are cached, see {@link PathMetadataCache}.
  */
 @TemplateId(name="PathGetProperties")
 @IntegrationTemplateType(IntegrationTemplateRequestPolicy.READ)
@@ -64,7 +67,7 @@ public class PathGetProperties extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -87,27 +90,40 @@ public class PathGetProperties extends SimpleIntegrationTemplate {
             return LogUtil.createError("Invalid URI", e.getMessage());
         }
 
+        // Use the cached properties while fresh, and otherwise revalidate them against the ETag
+        PathMetadataCache.Entry cached = PathMetadataCache.get(resourceUri);
+        if (null != cached && cached.isFresh()) {
+            return getCachedResponse(cached, "hit", "Cached");
+        }
+
         // Do the request
         HttpHead request = new HttpHead(resourceUri);
+        String cachedEtag = null == cached ? null : cached.getEtag();
+        if (null != cachedEtag) request.addHeader("If-None-Match", cachedEtag);
         IntegrationResponse executeResponse = null;
         startTime = System.currentTimeMillis();
 
         try {
             BasicResponseHandler brh = new BasicResponseHandler();
             brh.setHandleMissingResourceAsError(false);
-            executeResponse = client.execute(request, brh);
+            executeResponse = client.execute(request, response -> HttpStatus.SC_NOT_MODIFIED == response.getCode() ? null : brh.handleResponse(response));
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
+        }
+
+        String cacheResult = "miss";
+        if (null == executeResponse) {
+            cached.revalidated();
+            executeResponse = getCachedResponse(cached, "revalidated", "Not Modified");
+            cacheResult = "revalidated";
+        } else if (executeResponse.isSuccess()) {
+            PathMetadataCache.put(resourceUri, executeResponse.getResult());
         }
         endTime = System.currentTimeMillis();
 
         // Record some diagnostics
-        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName());
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName(), "cache", cacheResult);
         IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
                 .addRequestDiagnostic(requestDiagnostic)
                 .addExecutionTimeDiagnostic(endTime - startTime)
@@ -116,4 +132,20 @@ public class PathGetProperties extends SimpleIntegrationTemplate {
         LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
         return executeResponse;
     }
+
+    /**
+     * Create a response from a cache entry
+     * @param cached The cache entry
+     * @param cacheResult How the entry was used, for the diagnostics
+     * @param reasonMessage The reason to report
+     * @return The response
+     */
+    private IntegrationResponse getCachedResponse(PathMetadataCache.Entry cached, String cacheResult, String reasonMessage) {
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(LogUtil.getIntegrationDataMap("operation", this.getClass().getSimpleName(), "cache", cacheResult))
+                .addResponseDiagnostic(LogUtil.getIntegrationDataMap("responseCode", cached.exists() ? "200" : "404", "reasonMessage", reasonMessage))
+                .addExecutionTimeDiagnostic(0)
+                .build();
+        return IntegrationResponse.forSuccess(new HashMap<>(cached.getValues())).withDiagnostic(integrationDesignerDiagnostic).build();
+    }
 }
@@ -28,18 +28,23 @@ import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTem
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.HttpHeaders;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathListResponseHandler;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * Get the properties of a path
@@ -64,9 +69,21 @@ public class PathList extends SimpleIntegrationTemplate {
                         .isRequired(false)
                         .isExpressionable(true)
                         .build(),
-                booleanProperty(Constants.SC_ATTR_BASE64_BODY)
-                        .label("Base64 body")
-                        .description("Return the body as a base64 encoded value.")
+                integerProperty(Constants.SC_ATTR_MAX_RESULTS)
+                        .label("Page size")
+                        .description("The maximum number of entries in each page (default set by the service, 5000).")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_PAGES)
+                        .label("Pages")
+                        .description("The maximum number of pages to return from this call (default 1). The next page is requested while the current one is read.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_CONTINUATION)
+                        .label("Continuation")
+                        .description("The continuation token returned by a previous call, to carry on from where it stopped.")
                         .isRequired(false)
                         .isExpressionable(true)
                         .build()
@@ -76,7 +93,7 @@ public class PathList extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -87,39 +104,67 @@ public class PathList extends SimpleIntegrationTemplate {
         String path = integrationConfiguration.getValue(Constants.SC_ATTR_PATH);
         if (null == path) path = "";
         if(path.startsWith("/")) path = path.substring(1);
+        Integer maxResults = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_RESULTS);
+        Integer maxPages = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_PAGES);
+        if (null == maxPages || maxPages < 1) maxPages = 1;
+        String continuation = integrationConfiguration.getValue(Constants.SC_ATTR_CONTINUATION);
+        if (null != continuation && continuation.isEmpty()) continuation = null;
 
         // Create the URI
         try {
             if (!"".equals(path)) uriBuilder.addParameter("directory", path);
+            if (null != maxResults && maxResults > 0) uriBuilder.addParameter("maxResults", maxResults.toString());
             resourceUri = uriBuilder
-                    .addParameter("recursive", Boolean.toString(integrationConfiguration.getValue(Constants.SC_ATTR_RECURSIVE)))
+                    .addParameter("recursive", Boolean.toString(Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_RECURSIVE))))
                     .addParameter("resource", "filesystem")
                     .build();
         } catch (URISyntaxException e) {
             return LogUtil.createError("Invalid URI", e.getMessage());
         }
 
-        // Do the request
-        HttpGet request = new HttpGet(resourceUri);
+        // Do the requests. The next page is requested as soon as the continuation of the current page is known.
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        List<Map<String, Object>> paths = new ArrayList<>();
         IntegrationResponse executeResponse = null;
+        int pageCount = 0;
         startTime = System.currentTimeMillis();
 
         try {
-            BasicResponseHandler brh = new BasicResponseHandler();
-            brh.setEncodeBodyAsBase64(integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_BASE64_BODY));
-            executeResponse = client.execute(request, brh);
-        } catch (IOException e) {
+            Page page = new Page(executorService, client, resourceUri, continuation);
+            while (null != page) {
+                String nextContinuation = page.continuation.get();
+                Page nextPage = null;
+                if (null != nextContinuation && pageCount + 1 < maxPages) {
+                    nextPage = new Page(executorService, client, resourceUri, nextContinuation);
+                }
+
+                executeResponse = page.response.get();
+                pageCount++;
+                if (!executeResponse.isSuccess()) break;
+
+                @SuppressWarnings("unchecked")
+                List<Map<String, Object>> pagePaths = (List<Map<String, Object>>) executeResponse.getResult().get("paths");
+                paths.addAll(pagePaths);
+                continuation = nextContinuation;
+                page = nextPage;
+            }
+        } catch (InterruptedException | ExecutionException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
         } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
+            executorService.shutdownNow();
         }
         endTime = System.currentTimeMillis();
 
+        if (executeResponse.isSuccess()) {
+            Map<String, Object> responseMap = new HashMap<>(executeResponse.getResult());
+            responseMap.put("paths", paths);
+            responseMap.put("continuation", continuation);
+            executeResponse = IntegrationResponse.forSuccess(responseMap).withDiagnostic(executeResponse.getIntegrationDesignerDiagnostic()).build();
+        }
+
         // Record some diagnostics
-        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName());
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", "GET " + resourceUri.toString(), "operation", this.getClass().getSimpleName(), "pages", pageCount);
         IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
                 .addRequestDiagnostic(requestDiagnostic)
                 .addExecutionTimeDiagnostic(endTime - startTime)
@@ -128,4 +173,39 @@ public class PathList extends SimpleIntegrationTemplate {
         LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
         return executeResponse;
     }
+
+    /**
+     * A page request in flight. The continuation completes as soon as the response headers arrive.
+     */
+    private static class Page {
+        private final CompletableFuture<String> continuation = new CompletableFuture<>();
+        private final Future<IntegrationResponse> response;
+
+        Page(ExecutorService executorService, CloseableHttpClient client, URI listUri, String pageContinuation) throws ExecutionException {
+            URI pageUri;
+            try {
+                URIBuilder uriBuilder = new URIBuilder(listUri);
+                if (null != pageContinuation) uriBuilder.addParameter("continuation", pageContinuation);
+                pageUri = uriBuilder.build();
+            } catch (URISyntaxException e) {
+                throw new ExecutionException("Invalid URI", e);
+            }
+
+            response = executorService.submit(() -> {
+                try {
+                    // Listings are large and repetitive, so ask for them compressed
+                    HttpGet request = new HttpGet(pageUri);
+                    request.setHeader(HttpHeaders.ACCEPT_ENCODING, PathListResponseHandler.ACCEPT_ENCODING);
+                    PathListResponseHandler handler = new PathListResponseHandler(continuation::complete);
+                    return client.execute(request, handler);
+                } catch (IOException e) {
+                    IntegrationResponse integrationResponse = LogUtil.createError("Unable to execute request to " + pageUri.toString(), e.getMessage());
+                    logger.error(integrationResponse.getError().getDetail());
+                    return integrationResponse;
+                } finally {
+                    continuation.complete(null);
+                }
+            });
+        }
+    }
 }
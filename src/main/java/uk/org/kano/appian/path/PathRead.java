@@ -28,6 +28,7 @@ import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTem
 import com.appian.connectedsystems.templateframework.sdk.metadata.IntegrationTemplateType;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,10 +36,15 @@ import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.RangedDownloader;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -48,6 +54,8 @@ import java.util.Map;
 @IntegrationTemplateType(IntegrationTemplateRequestPolicy.READ)
 public class PathRead extends SimpleIntegrationTemplate {
     private static final Logger logger = LoggerFactory.getLogger(PathRead.class);
+    private static final int SEGMENT_SIZE = 8388608; // 8MB range requests
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
 
     @Override
     protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
@@ -63,6 +71,18 @@ public class PathRead extends SimpleIntegrationTemplate {
                         .description("Return the body as a base64 encoded value.")
                         .isRequired(false)
                         .isExpressionable(true)
+                        .build(),
+                booleanProperty(Constants.SC_ATTR_PARALLEL_DOWNLOAD)
+                        .label("Parallel download")
+                        .description("Download large files with concurrent range requests into a temporary file (default false).")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                integerProperty(Constants.SC_ATTR_MAX_IN_FLIGHT)
+                        .label("Parallel requests")
+                        .description("The maximum number of range requests in flight at once for a parallel download (default " + DEFAULT_MAX_IN_FLIGHT + ").")
+                        .isRequired(false)
+                        .isExpressionable(true)
                         .build()
         );
     }
@@ -70,7 +90,7 @@ public class PathRead extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -93,6 +113,11 @@ public class PathRead extends SimpleIntegrationTemplate {
             return LogUtil.createError("Invalid URI", e.getMessage());
         }
 
+        // Large files are downloaded in parallel
+        if (Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_PARALLEL_DOWNLOAD))) {
+            return executeParallel(integrationConfiguration, client, resourceUri);
+        }
+
         // Do the request
         HttpGet request = new HttpGet(resourceUri);
         IntegrationResponse executeResponse = null;
@@ -105,10 +130,6 @@ public class PathRead extends SimpleIntegrationTemplate {
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
         endTime = System.currentTimeMillis();
 
@@ -122,4 +143,67 @@ public class PathRead extends SimpleIntegrationTemplate {
         LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
         return executeResponse;
     }
+
+    /**
+     * Download the file with concurrent range requests into a memory mapped temporary file, and only then create the body.
+     * @param integrationConfiguration The integration configuration
+     * @param client The client
+     * @param resourceUri The URI of the file
+     * @return The response
+     */
+    private IntegrationResponse executeParallel(SimpleConfiguration integrationConfiguration, CloseableHttpClient client, URI resourceUri) {
+        long startTime, endTime;
+        Integer maxInFlight = integrationConfiguration.getValue(Constants.SC_ATTR_MAX_IN_FLIGHT);
+        RangedDownloader rangedDownloader = new RangedDownloader(client, resourceUri, SEGMENT_SIZE, null == maxInFlight ? DEFAULT_MAX_IN_FLIGHT : maxInFlight);
+
+        startTime = System.currentTimeMillis();
+        IntegrationResponse downloadResponse = rangedDownloader.download();
+        if (!downloadResponse.isSuccess()) return downloadResponse;
+
+        // The temporary file is always removed once the body has been read from it
+        Map<String, Object> responseMap = new HashMap<>(downloadResponse.getResult());
+        Path file = (Path) responseMap.remove("file");
+        try {
+            responseMap.put("body", readBody(file, responseMap.get("type"), responseMap.get("encoding"), Boolean.TRUE.equals(integrationConfiguration.getValue(Constants.SC_ATTR_BASE64_BODY))));
+        } catch (IOException e) {
+            IntegrationResponse integrationResponse = LogUtil.createError("Error reading the response body", e.getMessage());
+            logger.error(integrationResponse.getError().getTitle(), e);
+            return integrationResponse;
+        } finally {
+            try { Files.deleteIfExists(file); } catch (IOException ignored) {}
+        }
+        endTime = System.currentTimeMillis();
+
+        // Record some diagnostics
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", "GET " + resourceUri.toString(), "operation", this.getClass().getSimpleName(), "segmentSize", SEGMENT_SIZE);
+        IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
+                .addRequestDiagnostic(requestDiagnostic)
+                .addExecutionTimeDiagnostic(endTime - startTime)
+                .build();
+
+        IntegrationResponse executeResponse = IntegrationResponse.forSuccess(responseMap).withDiagnostic(downloadResponse.getIntegrationDesignerDiagnostic()).build();
+        LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
+        return executeResponse;
+    }
+
+    /**
+     * Create the body from the downloaded file, in the same way as the response handler does for a single request. The
+     * file is streamed into the body, so only the body itself is held on the heap.
+     * @param file The downloaded file
+     * @param type The content type of the file
+     * @param encoding The stored content encoding of the file
+     * @param encodeBodyAsBase64 Return the body as a base64 encoded value
+     * @return The body
+     * @throws IOException If the file cannot be read
+     */
+    private String readBody(Path file, Object type, Object encoding, boolean encodeBodyAsBase64) throws IOException {
+        // Any type can be returned as base64
+        ContentType contentType = null == type || encodeBodyAsBase64 ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(type.toString());
+        BasicResponseHandler brh = new BasicResponseHandler();
+        brh.setEncodeBodyAsBase64(encodeBodyAsBase64);
+
+        try (InputStream fileInputStream = Files.newInputStream(file)) {
+            return brh.readBody(fileInputStream, contentType, null == encoding ? null : encoding.toString(), Files.size(file));
+        }
+    }
 }
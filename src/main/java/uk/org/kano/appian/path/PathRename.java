@@ -38,6 +38,7 @@ import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathMetadataCache;
 
 import java.io.IOException;
 import java.net.URI;
@@ -73,7 +74,7 @@ public class PathRename extends SimpleIntegrationTemplate {
     @Override
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -93,11 +94,13 @@ public class PathRename extends SimpleIntegrationTemplate {
         if(!destinationPath.startsWith("/")) destinationPath = "/" + destinationPath;
 
         // Create the URI
+        URI sourceUri;
         try {
             URIBuilder uriBuilder = new URIBuilder(resourceUri);
-            sourcePath = uriBuilder
+            sourceUri = uriBuilder
                     .setPath(uriBuilder.getPath() + sourcePath)
-                    .build().getPath();
+                    .build();
+            sourcePath = sourceUri.getPath().substring(HttpUtils.getAccountUri(connectedSystemConfiguration).getPath().length()); // Relative to the account
 
             uriBuilder = new URIBuilder(resourceUri);
             resourceUri = uriBuilder
@@ -123,11 +126,13 @@ public class PathRename extends SimpleIntegrationTemplate {
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + resourceUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
+        if (executeResponse.isSuccess()) {
+            PathMetadataCache.putMissing(sourceUri);
+        } else {
+            PathMetadataCache.invalidate(sourceUri);
+        }
+        PathMetadataCache.invalidate(resourceUri);
         endTime = System.currentTimeMillis();
 
         // Record some diagnostics
@@ -35,24 +35,32 @@ import org.apache.hc.core5.http.io.entity.StringEntity;
 import org.apache.hc.core5.net.URIBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.org.kano.appian.Base64Entity;
 import uk.org.kano.appian.BasicResponseHandler;
 import uk.org.kano.appian.Constants;
 import uk.org.kano.appian.HttpUtils;
 import uk.org.kano.appian.LogUtil;
+import uk.org.kano.appian.PathMetadataCache;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Update the contents of a file
+ * Update the contents of a file. Small writes can be sent as a single append that also flushes the file; when the
+ * position is known, or the ETag given matches the cached properties, this is made without looking up the file first.
+ * Base64 content is decoded as it is sent, in appends of at most BASE64_APPEND_SIZE bytes.
  */
 @TemplateId(name="PathUpdate")
 @IntegrationTemplateType(IntegrationTemplateRequestPolicy.WRITE)
 public class PathUpdate extends SimpleIntegrationTemplate {
     private static final Logger logger = LoggerFactory.getLogger(PathUpdate.class);
+    private static final int BASE64_APPEND_SIZE = 4 * 1048576;
 
     @Override
     protected SimpleConfiguration getConfiguration(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, PropertyPath updatedProperty, ExecutionContext executionContext) {
@@ -69,11 +77,35 @@ public class PathUpdate extends SimpleIntegrationTemplate {
                         .isRequired(true)
                         .isExpressionable(true)
                         .build(),
+                booleanProperty(Constants.SC_ATTR_BASE64_BODY)
+                        .label("Base64 content")
+                        .description("The content is base64, such as from a read that encoded the body as base64, and is decoded into the file. Default false.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
                 booleanProperty(Constants.SC_ATTR_OVERWRITE)
                         .label("Overwrite")
                         .description("Overwrite the file (true), or append (false - default).")
                         .isRequired(false)
                         .isExpressionable(true)
+                        .build(),
+                booleanProperty(Constants.SC_ATTR_SINGLE_REQUEST)
+                        .label("Single request")
+                        .description("Append and flush the content in one request. Default false.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_POSITION)
+                        .label("Position")
+                        .description("The current length of the file in bytes, if known. Saves looking up the file before appending. Given as text, as it may be past the largest integer.")
+                        .isRequired(false)
+                        .isExpressionable(true)
+                        .build(),
+                textProperty(Constants.SC_ATTR_ETAG)
+                        .label("ETag")
+                        .description("Only update the file if it still has this ETag.")
+                        .isRequired(false)
+                        .isExpressionable(true)
                         .build()
         );
     }
@@ -82,7 +114,7 @@ public class PathUpdate extends SimpleIntegrationTemplate {
     protected IntegrationResponse execute(SimpleConfiguration integrationConfiguration, SimpleConfiguration connectedSystemConfiguration, ExecutionContext executionContext) {
         IntegrationResponse executeResponse = null;
         long startTime, endTime;
-        CloseableHttpClient client = HttpUtils.getHttpClient(executionContext);
+        CloseableHttpClient client = HttpUtils.getHttpClient(connectedSystemConfiguration, executionContext);
 
         URI resourceUri = HttpUtils.getBaseUri(connectedSystemConfiguration);
         if (null == resourceUri) {
@@ -95,47 +127,100 @@ public class PathUpdate extends SimpleIntegrationTemplate {
         }
         if(!path.startsWith("/")) path = "/" + path;
 
-        // Get the file properties
-        PathGetProperties pathGetProperties = new PathGetProperties();
-        IntegrationResponse propertiesResponse = pathGetProperties.execute(integrationConfiguration, connectedSystemConfiguration, executionContext);
-        if (!propertiesResponse.isSuccess()) {
-            return propertiesResponse;
+        URI fileUri;
+        try {
+            URIBuilder uriBuilder = new URIBuilder(resourceUri);
+            fileUri = uriBuilder
+                    .setPath(uriBuilder.getPath() + path)
+                    .build();
+        } catch (URISyntaxException e) {
+            return LogUtil.createError("Invalid URI", e.getMessage());
+        }
+
+        boolean overwrite = Boolean.TRUE.equals(integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_OVERWRITE));
+        boolean base64 = Boolean.TRUE.equals(integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_BASE64_BODY));
+        boolean singleRequest = Boolean.TRUE.equals(integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_SINGLE_REQUEST));
+        String positionValue = integrationConfiguration.getValue(Constants.SC_ATTR_POSITION);
+        String etag = integrationConfiguration.getValue(Constants.SC_ATTR_ETAG);
+        if (null != etag && etag.trim().isEmpty()) etag = null;
+        Long knownPosition = null;
+        if (null != positionValue && !positionValue.trim().isEmpty()) {
+            try {
+                knownPosition = Long.parseLong(positionValue.trim());
+            } catch (NumberFormatException e) {
+                return LogUtil.createError("Invalid position", "The position " + positionValue + " is not a whole number");
+            }
+            if (knownPosition < 0) {
+                return LogUtil.createError("Invalid position", "The position cannot be negative");
+            }
+        }
+        String content = integrationConfiguration.getValue(Constants.SC_ATTR_CONTENT);
+        if (null == content) content = "";
+        if (base64 && Base64Entity.decodedLength(content) < 0) {
+            return LogUtil.createError("Invalid content", "The content is not valid base64");
         }
-        if (!Boolean.TRUE.equals(propertiesResponse.getResult().get("exists"))) {
-            return LogUtil.createError("Invalid Path", "Path does not exist, create first");
+
+        // Work out where to write without looking up the file if possible.
+        PathMetadataCache.Entry cached = PathMetadataCache.get(fileUri);
+        Map<String, Object> cachedValues = null != cached && cached.exists() ? cached.getValues() : null;
+        Long position = null;
+        if (overwrite) {
+            position = 0L;
+        } else if (null != knownPosition) {
+            position = knownPosition;
+        } else if (null != etag && null != cachedValues && etag.equals(cached.getEtag()) && null != cachedValues.get("length")) {
+            position = Long.parseLong(cachedValues.get("length").toString());
         }
 
-        // If appending data, then get the length of the file and set the file to the end of the stream.
-        boolean overwrite = integrationConfiguration.<Boolean>getValue(Constants.SC_ATTR_OVERWRITE);
-        long position = 0;
-        if (!overwrite) {
-            position = Long.parseLong(propertiesResponse.getResult().get("length").toString());
+        Object type = null == cachedValues ? null : cachedValues.get("type");
+        if (!singleRequest || null == position) {
+            // Get the file properties
+            PathGetProperties pathGetProperties = new PathGetProperties();
+            IntegrationResponse propertiesResponse = pathGetProperties.execute(integrationConfiguration, connectedSystemConfiguration, executionContext);
+            if (!propertiesResponse.isSuccess()) {
+                return propertiesResponse;
+            }
+            if (!Boolean.TRUE.equals(propertiesResponse.getResult().get("exists"))) {
+                return LogUtil.createError("Invalid Path", "Path does not exist, create first");
+            }
+
+            // If appending data, then get the length of the file and set the file to the end of the stream.
+            if (null == position) {
+                position = Long.parseLong(propertiesResponse.getResult().get("length").toString());
+            }
+            type = propertiesResponse.getResult().get("type");
         }
 
         // Copy the mime type so that it doesn't get erased.
-        ContentType contentType = ContentType.parse(propertiesResponse.getResult().get("type").toString());
+        ContentType contentType = null == type ? null : ContentType.parse(type.toString());
         if (null == contentType) contentType = ContentType.APPLICATION_OCTET_STREAM;
         if (null == contentType.getCharset()) contentType = contentType.withCharset(StandardCharsets.UTF_8);
 
-        // Create the body
-        String content = integrationConfiguration.getValue(Constants.SC_ATTR_CONTENT);
-        if (null == content) content = "";
-        HttpEntity entity = new ByteArrayEntity(content.getBytes(contentType.getCharset()), contentType, false);
-        long flushLength = position + entity.getContentLength();
+        // Create the body. Base64 is decoded as it is sent, rather than into an array.
+        List<? extends HttpEntity> entities;
+        if (base64) {
+            entities = Base64Entity.split(content, BASE64_APPEND_SIZE, contentType);
+        } else {
+            entities = Collections.singletonList(new ByteArrayEntity(content.getBytes(contentType.getCharset()), contentType, false));
+        }
+        long flushLength = position;
+        for (HttpEntity entity: entities) flushLength += entity.getContentLength();
 
-        // Create the URI
-        URI uploadUri, flushUri;
+        // Create the URIs
+        List<URI> uploadUris = new ArrayList<>();
+        URI flushUri;
         try {
-            URIBuilder uriBuilder = new URIBuilder(resourceUri);
-            uploadUri = uriBuilder
-                    .setPath(uriBuilder.getPath() + path)
-                    .addParameter("action", "append")
-                    .addParameter("position", Long.toString(position))
-                    .build();
+            long appendPosition = position;
+            for (int i = 0; i < entities.size(); i++) {
+                URIBuilder uriBuilder = new URIBuilder(fileUri)
+                        .addParameter("action", "append")
+                        .addParameter("position", Long.toString(appendPosition));
+                if (singleRequest && i == entities.size() - 1) uriBuilder.addParameter("flush", "true");
+                uploadUris.add(uriBuilder.build());
+                appendPosition += entities.get(i).getContentLength();
+            }
 
-            uriBuilder = new URIBuilder(resourceUri);
-            flushUri = uriBuilder
-                    .setPath(uriBuilder.getPath() + path)
+            flushUri = new URIBuilder(fileUri)
                     .addParameter("action", "flush")
                     .addParameter("close", "true")
                     .addParameter("position", Long.toString(flushLength))
@@ -144,27 +229,28 @@ public class PathUpdate extends SimpleIntegrationTemplate {
             return LogUtil.createError("Invalid URI", e.getMessage());
         }
 
-        // Do the request
-        HttpPatch request = new HttpPatch(uploadUri);
-        request.setEntity(entity);
+        // Do the requests, in order
+        HttpPatch request = null;
         BasicResponseHandler brh = new BasicResponseHandler();
         startTime = System.currentTimeMillis();
 
-        try {
-            executeResponse = client.execute(request, brh);
-        } catch (IOException e) {
-            executeResponse = LogUtil.createError("Unable to execute request to " + uploadUri.toString(), e.getMessage());
-            logger.error(executeResponse.getError().getDetail());
-        }
-        // Fail if the upload was not a success
-        if (!executeResponse.isSuccess()) {
+        for (int i = 0; i < entities.size() && (null == executeResponse || executeResponse.isSuccess()); i++) {
+            request = new HttpPatch(uploadUris.get(i));
+            request.setEntity(entities.get(i));
+            if (singleRequest && null != etag) request.addHeader("If-Match", etag);
             try {
-                client.close();
-            } catch (IOException ignored) {}
-
+                executeResponse = client.execute(request, brh);
+            } catch (IOException e) {
+                executeResponse = LogUtil.createError("Unable to execute request to " + uploadUris.get(i).toString(), e.getMessage());
+                logger.error(executeResponse.getError().getDetail());
+            }
+        }
+        // Fail if the upload was not a success, or finish if it has already been flushed
+        if (!executeResponse.isSuccess() || singleRequest) {
+            updateCache(fileUri, executeResponse, flushLength);
             endTime = System.currentTimeMillis();
             // Record some diagnostics
-            Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName());
+            Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName(), "singleRequest", singleRequest, "appends", entities.size());
             IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
                     .addRequestDiagnostic(requestDiagnostic)
                     .addExecutionTimeDiagnostic(endTime - startTime)
@@ -176,20 +262,18 @@ public class PathUpdate extends SimpleIntegrationTemplate {
         // Finalise and flush the data
         request = new HttpPatch(flushUri);
         request.setEntity(new StringEntity("", contentType, false));
+        if (null != etag) request.addHeader("If-Match", etag);
         try {
             executeResponse = client.execute(request, brh);
         } catch (IOException e) {
             executeResponse = LogUtil.createError("Unable to execute request to " + flushUri.toString(), e.getMessage());
             logger.error(executeResponse.getError().getDetail());
-        } finally {
-            try {
-                client.close();
-            } catch (IOException ignored) {}
         }
+        updateCache(fileUri, executeResponse, flushLength);
         endTime = System.currentTimeMillis();
 
         // Record some diagnostics
-        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName());
+        Map<String, Object> requestDiagnostic = LogUtil.getIntegrationDataMap("request", request.toString(), "operation", this.getClass().getSimpleName(), "singleRequest", singleRequest, "appends", entities.size());
         IntegrationDesignerDiagnostic integrationDesignerDiagnostic = IntegrationDesignerDiagnostic.builder()
                 .addRequestDiagnostic(requestDiagnostic)
                 .addExecutionTimeDiagnostic(endTime - startTime)
@@ -198,4 +282,19 @@ public class PathUpdate extends SimpleIntegrationTemplate {
         LogUtil.mergeDiagnostic(executeResponse.getIntegrationDesignerDiagnostic(), integrationDesignerDiagnostic);
         return executeResponse;
     }
+
+    /**
+     * Record the result of a write in the metadata cache
+     * @param fileUri The URI of the file
+     * @param executeResponse The response to the write
+     * @param length The length of the file if the write succeeded
+     */
+    private static void updateCache(URI fileUri, IntegrationResponse executeResponse, long length) {
+        if (executeResponse.isSuccess()) {
+            Object etag = executeResponse.getResult().get("etag");
+            PathMetadataCache.putWrite(fileUri, null == etag ? null : etag.toString(), length);
+        } else {
+            PathMetadataCache.invalidate(fileUri);
+        }
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Append sizing that does not need a datalake.
+ */
+public class AdaptiveChunkSizerTest {
+    private static final int MB = 1048576;
+    private static final long FAST = 100_000_000L;
+    private static final long SLOW = 5_000_000_000L;
+
+    @Test
+    public void whenAppendsFast_thenGrowsToCeiling() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(MB, 4 * MB, 2);
+        for (int i = 0; i < 10; i++) {
+            int size = sizer.getChunkSize();
+            sizer.record(size, FAST * size / MB);
+        }
+        assertThat(sizer.getChunkSize(), equalTo(4 * MB));
+        assertThat(sizer.getChunkSizes(), contains(MB, 2 * MB, 4 * MB));
+    }
+
+    @Test
+    public void whenAppendsSlow_thenShrinks() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(MB, 8 * MB, 2);
+        for (int i = 0; i < 4; i++) sizer.record(sizer.getChunkSize(), FAST);
+        assertThat(sizer.getChunkSize(), equalTo(4 * MB));
+
+        sizer.record(4 * MB, SLOW);
+        assertThat(sizer.getChunkSize(), equalTo(2 * MB));
+        sizer.record(MB, SLOW); // An earlier size, ignored
+        assertThat(sizer.getChunkSize(), equalTo(2 * MB));
+    }
+
+    @Test
+    public void whenLargerAppendsNoFaster_thenStepsBack() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(MB, 8 * MB, 2);
+        sizer.record(MB, FAST);
+        sizer.record(MB, FAST);
+        assertThat(sizer.getChunkSize(), equalTo(2 * MB));
+
+        // Twice the data in four times the time
+        sizer.record(2 * MB, 4 * FAST);
+        sizer.record(2 * MB, 4 * FAST);
+        assertThat(sizer.getChunkSize(), equalTo(MB));
+        sizer.record(MB, FAST);
+        sizer.record(MB, FAST);
+        assertThat(sizer.getChunkSize(), equalTo(MB));
+    }
+}
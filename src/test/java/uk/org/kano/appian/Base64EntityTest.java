@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Decoding base64 content as it is sent
+ */
+public class Base64EntityTest {
+    @Test
+    public void whenSplit_thenPartsDecodeToContent() throws Exception {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i * 7);
+        String content = Base64.getEncoder().encodeToString(data);
+
+        List<Base64Entity> entities = Base64Entity.split(content, 32, ContentType.APPLICATION_OCTET_STREAM);
+        assertThat(entities.size(), equalTo(4));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long length = 0;
+        for (Base64Entity entity: entities) {
+            entity.writeTo(out);
+            length += entity.getContentLength();
+        }
+        assertThat(length, equalTo((long) data.length));
+        assertThat(out.toByteArray(), equalTo(data));
+    }
+
+    @Test
+    public void whenInvalid_thenRejected() {
+        assertThat(Base64Entity.decodedLength("aGk="), equalTo(2L));
+        assertThat(Base64Entity.decodedLength(""), equalTo(0L));
+        assertThat(Base64Entity.decodedLength("aGk"), equalTo(-1L));
+        assertThat(Base64Entity.decodedLength("a=Gk"), equalTo(-1L));
+        assertThat(Base64Entity.decodedLength("aG\nk"), equalTo(-1L));
+    }
+}
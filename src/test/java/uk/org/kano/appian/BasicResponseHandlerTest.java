@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Response handling that does not need a datalake.
+ */
+public class BasicResponseHandlerTest {
+    private static final String TEXT = "\"Column 1\"\n\"テストデータ\"\n";
+
+    @Test
+    public void whenTextBody_thenDecodedWithCharset() throws Exception {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        BasicClassicHttpResponse classicHttpResponse = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+        classicHttpResponse.setEntity(new ByteArrayEntity(data, ContentType.parse("text/csv;charset=utf-8")));
+
+        IntegrationResponse response = new BasicResponseHandler().handleResponse(classicHttpResponse);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("body"), equalTo(TEXT));
+    }
+
+    @Test
+    public void whenBase64Requested_thenBodyEncoded() throws Exception {
+        byte[] data = new byte[200001];
+        new Random(1).nextBytes(data);
+        BasicClassicHttpResponse classicHttpResponse = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+        classicHttpResponse.setEntity(new ByteArrayEntity(data, ContentType.TEXT_PLAIN));
+
+        BasicResponseHandler brh = new BasicResponseHandler();
+        brh.setEncodeBodyAsBase64(true);
+        IntegrationResponse response = brh.handleResponse(classicHttpResponse);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("body"), equalTo(Base64.getEncoder().encodeToString(data)));
+    }
+
+    @Test
+    public void whenLengthUnknown_thenBodyRead() throws Exception {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        BasicClassicHttpResponse classicHttpResponse = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+        classicHttpResponse.setEntity(new InputStreamEntity(new ByteArrayInputStream(data), -1, ContentType.APPLICATION_OCTET_STREAM));
+
+        IntegrationResponse response = new BasicResponseHandler().handleResponse(classicHttpResponse);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("body"), equalTo(Base64.getEncoder().encodeToString(data)));
+    }
+}
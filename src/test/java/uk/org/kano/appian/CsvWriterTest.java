@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.QuoteMode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Check the CSV encoder against commons-csv.
+ */
+public class CsvWriterTest {
+    private static Connection conn;
+
+    @BeforeClass
+    public static void createTable() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:csvwriter");
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("create table CSV_TEST (ID int, BIG bigint, SMALL smallint, AMOUNT decimal(20,4), RATIO double, SCORE real, ACTIVE boolean, DAY date, AT time, CREATED timestamp, NAME varchar(64), NOTES clob)");
+            statement.execute("insert into CSV_TEST values (1, -9223372036854775808, -3, 12345678901234.5678, 1.0E-5, 2.5, true, date '0999-01-02', time '01:02:03', timestamp '2020-01-02 03:04:05.000123', 'Name \"quoted\", with comma', 'Line one\nline two é中')");
+            statement.execute("insert into CSV_TEST values (2, 9223372036854775807, 0, 0.0001, 1.0E20, -0.1, false, date '2020-12-31', time '23:59:59', timestamp '1999-12-31 23:59:59', '', 'Emoji 😀')");
+            statement.execute("insert into CSV_TEST values (3, null, null, null, null, null, null, null, null, null, null, null)");
+        }
+    }
+
+    @AfterClass
+    public static void dropTable() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void whenWritten_thenMatchesCommonsCsv() throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from CSV_TEST order by ID");
+             CSVPrinter printer = new CSVPrinter(new OutputStreamWriter(expected, StandardCharsets.UTF_8), CSVFormat.RFC4180.withQuoteMode(QuoteMode.ALL_NON_NULL).withHeader(resultSet))
+        ) {
+            printer.printRecords(resultSet);
+        }
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("select * from CSV_TEST order by ID");
+             CsvWriter writer = new CsvWriter(actual, resultSet.getMetaData())
+        ) {
+            writer.writeHeader();
+            assertThat(writer.writeAll(resultSet), equalTo(3L));
+        }
+
+        assertThat(new String(actual.toByteArray(), StandardCharsets.UTF_8), equalTo(new String(expected.toByteArray(), StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void whenBinary_thenBase64() throws Exception {
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("select X'00ff10' as A, X'00ff' as B, X'00' as C, cast(null as varbinary) as D");
+             CsvWriter writer = new CsvWriter(actual, resultSet.getMetaData())
+        ) {
+            writer.writeAll(resultSet);
+        }
+        assertThat(new String(actual.toByteArray(), StandardCharsets.UTF_8), equalTo("\"AP8Q\",\"AP8=\",\"AA==\",\r\n"));
+    }
+}
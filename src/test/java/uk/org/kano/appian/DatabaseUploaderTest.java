@@ -24,9 +24,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import uk.org.kano.appian.path.PathDelete;
+import uk.org.kano.appian.path.PathList;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NameAlreadyBoundException;
 import javax.naming.NamingException;
 import java.math.BigDecimal;
 import java.sql.Connection;
@@ -35,9 +37,14 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -50,6 +57,7 @@ public class DatabaseUploaderTest extends TestBase {
 
     private DatabaseUploader databaseUploader = new DatabaseUploader();
     private PathDelete pathDelete = new PathDelete();
+    private PathList pathList = new PathList();
 
     @Before
     public void createDatabase() throws NamingException, SQLException {
@@ -60,9 +68,13 @@ public class DatabaseUploaderTest extends TestBase {
 
         System.setProperty(Context.INITIAL_CONTEXT_FACTORY, "org.apache.naming.java.javaURLContextFactory");
         System.setProperty(Context.URL_PKG_PREFIXES, "org.apache.naming");
+        // The context and the in-memory database outlive each test, so both are set up again from scratch
         Context initCtx = new InitialContext();
-        initCtx.createSubcontext("jdbc");
-        initCtx.bind(JDNI_RESOURCE, ds);
+        try {
+            initCtx.createSubcontext("jdbc");
+        } catch (NameAlreadyBoundException ignored) {
+        }
+        initCtx.rebind(JDNI_RESOURCE, ds);
 
         Connection conn = ds.getConnection();
         // Create the default tables
@@ -70,6 +82,7 @@ public class DatabaseUploaderTest extends TestBase {
             // Create the table
             String tableCreateSql = "create table " + table + "(id IDENTITY, name varchar(255), amount DECIMAL, created timestamp with time zone)";
             Statement createStatement = conn.createStatement();
+            createStatement.execute("drop table if exists " + table);
             createStatement.execute(tableCreateSql);
             createStatement.close();
 
@@ -122,4 +135,121 @@ public class DatabaseUploaderTest extends TestBase {
         response = databaseUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
         assertThat(response.isSuccess(), equalTo(true));
     }
-}
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void uploadTablesInParallel_Success() {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        integrationConfiguration = getIntegrationConfiguration(databaseUploader);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, PATH);
+        values.put(Constants.SC_ATTR_TABLES, Arrays.asList(TABLES));
+        values.put(Constants.SC_ATTR_JNDI_RESOURCE, JDNI_RESOURCE);
+        values.put(Constants.SC_ATTR_PARALLEL_TABLES, TABLES.length);
+        setValues(integrationConfiguration, values);
+
+        response = databaseUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        List results = (List)response.getResult().get("results");
+        assertThat(results.size(), equalTo(TABLES.length));
+        for (Object result: results) {
+            assertThat(((Map)result).get("success"), equalTo(true));
+        }
+    }
+
+    @Test
+    public void uploadTablesWithMissingTable_Error() {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        integrationConfiguration = getIntegrationConfiguration(databaseUploader);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, PATH);
+        values.put(Constants.SC_ATTR_TABLES, Arrays.asList(TABLES[0], "MISSING"));
+        values.put(Constants.SC_ATTR_JNDI_RESOURCE, JDNI_RESOURCE);
+        setValues(integrationConfiguration, values);
+
+        response = databaseUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(false));
+        assertThat(response.getError().getTitle(), equalTo("Export failed for tables MISSING"));
+        assertThat(response.getIntegrationDesignerDiagnostic(), notNullValue());
+    }
+
+    @Test
+    public void whenConnectionClosedByDriver_thenPermitReleasedOnce() throws SQLException {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:appian;DB_CLOSE_DELAY=-1");
+        Semaphore connections = new Semaphore(1);
+        connections.acquireUninterruptibly();
+        DatabaseUploader.LeasedConnection lease = new DatabaseUploader.LeasedConnection(ds.getConnection("sa", "sa"), connections);
+
+        // As after a broken socket, the connection is already closed when the lease is
+        lease.connection.close();
+        lease.close();
+        lease.close();
+        assertThat(connections.availablePermits(), equalTo(1));
+    }
+
+    @Test
+    public void uploadTablesPartitioned_Success() {
+        uploadTablesPartitioned(PATH + "/partitioned", 4, null);
+    }
+
+    @Test
+    public void uploadTablesPartitionedOnOneConnection_Success() {
+        // Only finishes if each table gives back its connection before the parts take theirs
+        uploadTablesPartitioned(PATH + "/oneConnection", 4, 1);
+    }
+
+    /**
+     * Export the tables in partitions under their own path, and check that each table directory holds only its parts
+     */
+    @SuppressWarnings("rawtypes")
+    private void uploadTablesPartitioned(String path, int partitions, Integer maxConnections) {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        integrationConfiguration = getIntegrationConfiguration(databaseUploader);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, path);
+        values.put(Constants.SC_ATTR_TABLES, Arrays.asList(TABLES));
+        values.put(Constants.SC_ATTR_JNDI_RESOURCE, JDNI_RESOURCE);
+        values.put(Constants.SC_ATTR_PARTITIONS, partitions);
+        values.put(Constants.SC_ATTR_PARALLEL_TABLES, TABLES.length);
+        values.put(Constants.SC_ATTR_MAX_CONNECTIONS, maxConnections);
+        setValues(integrationConfiguration, values);
+
+        response = databaseUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        List results = (List)response.getResult().get("results");
+        assertThat(results.size(), equalTo(TABLES.length));
+        for (int i = 0; i < TABLES.length; i++) {
+            Map result = (Map)results.get(i);
+            String tableDirectory = path + "/" + TABLES[i];
+            assertThat(result.get("path"), equalTo(tableDirectory));
+
+            // Two rows can only be split into two ranges of the primary key
+            assertThat(result.get("partitionColumn"), equalTo("ID"));
+            List parts = (List)result.get("parts");
+            assertThat(parts.size(), equalTo(2));
+            Set<String> partPaths = new HashSet<>();
+            for (Object part: parts) partPaths.add(((Map)part).get("path").toString().replaceFirst("^/", ""));
+
+            integrationConfiguration = getIntegrationConfiguration(pathList);
+            values = new HashMap<>();
+            values.put(Constants.SC_ATTR_PATH, tableDirectory);
+            values.put(Constants.SC_ATTR_RECURSIVE, false);
+            setValues(integrationConfiguration, values);
+            IntegrationResponse listResponse = pathList.execute(integrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), null);
+            assertThat(listResponse.isSuccess(), equalTo(true));
+            Set<String> listedPaths = new HashSet<>();
+            for (Object listed: (List)listResponse.getResult().get("paths")) listedPaths.add(((Map)listed).get("name").toString());
+            assertThat(listedPaths, equalTo(partPaths));
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import uk.org.kano.appian.path.PathDelete;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * A test script for the directory sync
+ */
+public class DirectorySyncTest extends TestBase {
+    private static final String PATH = "/appiantest-sync";
+
+    private DirectorySync directorySync = new DirectorySync();
+    private PathDelete pathDelete = new PathDelete();
+    private Path source;
+
+    @Before
+    public void createSource() throws IOException {
+        source = Files.createTempDirectory("directory-sync");
+        Files.createDirectories(source.resolve("sub"));
+        Files.write(source.resolve("a.csv"), "a,b\n1,2\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(source.resolve("sub/b.csv"), "c,d\n3,4\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void clean() throws IOException {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathDelete);
+        integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+        integrationConfiguration.setValue(Constants.SC_ATTR_RECURSIVE, true);
+        pathDelete.execute(integrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), null);
+
+        try (Stream<Path> walk = Files.walk(source)) {
+            walk.sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void syncChanges_Success() throws IOException {
+        IntegrationResponse response = sync();
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("uploaded"), equalTo(Arrays.asList("a.csv", "sub/b.csv")));
+
+        // Nothing has changed
+        response = sync();
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("uploaded"), equalTo(Collections.emptyList()));
+        assertThat(response.getResult().get("unchanged"), equalTo(2));
+
+        // Same size but different content, and a removed directory
+        Files.write(source.resolve("a.csv"), "a,b\n5,6\n".getBytes(StandardCharsets.UTF_8));
+        Files.delete(source.resolve("sub/b.csv"));
+        Files.delete(source.resolve("sub"));
+        response = sync();
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("uploaded"), equalTo(Arrays.asList("a.csv")));
+        assertThat(response.getResult().get("deleted"), equalTo(Arrays.asList("sub")));
+        assertThat(response.getResult().get("failed"), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    public void whenLocalFileReplacesRemoteDirectory_thenDirectoryDeletedFirst() throws IOException {
+        assertThat(sync().isSuccess(), equalTo(true));
+        Files.delete(source.resolve("sub/b.csv"));
+        Files.delete(source.resolve("sub"));
+        Files.write(source.resolve("sub"), "g,h\n7,8\n".getBytes(StandardCharsets.UTF_8));
+
+        IntegrationResponse response = sync();
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("uploaded"), equalTo(Arrays.asList("sub")));
+        assertThat(response.getResult().get("deleted"), equalTo(Arrays.asList("sub")));
+        assertThat(response.getResult().get("failed"), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    public void whenLocalDirectoryReplacesRemoteFile_thenFileDeletedFirst() throws IOException {
+        assertThat(sync().isSuccess(), equalTo(true));
+        Files.delete(source.resolve("a.csv"));
+        Files.createDirectories(source.resolve("a.csv"));
+        Files.write(source.resolve("a.csv/c.csv"), "i,j\n9,0\n".getBytes(StandardCharsets.UTF_8));
+
+        IntegrationResponse response = sync();
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("uploaded"), equalTo(Arrays.asList("a.csv/c.csv")));
+        assertThat(response.getResult().get("deleted"), equalTo(Arrays.asList("a.csv")));
+        assertThat(response.getResult().get("failed"), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    public void whenLinksInSource_thenSkipped() throws IOException {
+        Path outside = Files.createTempDirectory("directory-sync-outside");
+        try {
+            Files.write(outside.resolve("secret.csv"), "e,f\n5,6\n".getBytes(StandardCharsets.UTF_8));
+            Files.createSymbolicLink(source.resolve("secret.csv"), outside.resolve("secret.csv"));
+            Files.createSymbolicLink(source.resolve("linked"), outside);
+
+            IntegrationResponse response = sync();
+            assertThat(response.isSuccess(), equalTo(true));
+            assertThat(response.getResult().get("uploaded"), equalTo(Arrays.asList("a.csv", "sub/b.csv")));
+            assertThat(response.getResult().get("failed"), equalTo(Collections.emptyList()));
+        } finally {
+            Files.deleteIfExists(outside.resolve("secret.csv"));
+            Files.deleteIfExists(outside);
+        }
+    }
+
+    @Test
+    public void whenSourceDirectoryOutsideLocalRoot_thenError() {
+        String previousRoot = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT);
+        IntegrationResponse response;
+        try {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, source.resolve("sub").toString());
+            response = sync();
+        } finally {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, previousRoot);
+        }
+        assertThat(response.isSuccess(), equalTo(false));
+        assertThat(response.getError().getTitle(), equalTo("Invalid source directory"));
+    }
+
+    @Test
+    public void whenContentHashed_thenSha256() throws IOException {
+        assertThat(DirectorySync.contentHash(source.resolve("a.csv")), equalTo("492d5ea496056f1a6a6592241032fab764c321596317930b4fa0e1e8bc3b7470"));
+    }
+
+    @Test
+    public void whenOrphaned_thenOnlyTopmostDeleted() {
+        Map<String, Map<String, Object>> remotePaths = new TreeMap<>();
+        remotePaths.put("a.csv", LogUtil.getIntegrationDataMap("isDirectory", false));
+        remotePaths.put("old", LogUtil.getIntegrationDataMap("isDirectory", true));
+        remotePaths.put("old/c.csv", LogUtil.getIntegrationDataMap("isDirectory", false));
+        remotePaths.put("sub", LogUtil.getIntegrationDataMap("isDirectory", true));
+        remotePaths.put("sub/gone.csv", LogUtil.getIntegrationDataMap("isDirectory", false));
+
+        Map<String, Path> localFiles = new TreeMap<>();
+        localFiles.put("a.csv", source.resolve("a.csv"));
+        List<String> orphans = DirectorySync.findOrphans(remotePaths, localFiles, Arrays.asList("sub"));
+        assertThat(orphans, contains("old", "sub/gone.csv"));
+    }
+
+    private IntegrationResponse sync() {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(directorySync);
+        Map<String, Object> values = new HashMap<>();
+        values.put(Constants.SC_ATTR_SOURCE_DIRECTORY, source.toString());
+        values.put(Constants.SC_ATTR_PATH, PATH);
+        values.put(Constants.SC_ATTR_DELETE_ORPHANS, true);
+        setValues(integrationConfiguration, values);
+        return directorySync.execute(integrationConfiguration, connectedSystemConfiguration, null);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.junit.After;
+import org.junit.Test;
+import uk.org.kano.appian.path.PathDelete;
+import uk.org.kano.appian.path.PathGetProperties;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * A test script for the document uploader
+ */
+public class DocumentUploaderTest extends TestBase {
+    private static final String PATH = "/appiantest-document.bin";
+
+    private DocumentUploader documentUploader = new DocumentUploader();
+    private PathGetProperties pathGetProperties = new PathGetProperties();
+    private PathDelete pathDelete = new PathDelete();
+
+    @After
+    public void clean() {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathDelete);
+        integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+        pathDelete.execute(integrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), null);
+    }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void uploadSourceFile_Success() throws IOException {
+        // Over two appends at the starting size, so the last one is short
+        byte[] data = new byte[AdaptiveChunkSizer.MIN_CHUNK_SIZE * 2 + 100];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        Path sourceFile = Files.createTempFile("document-upload", ".bin");
+        IntegrationResponse response;
+        try {
+            Files.write(sourceFile, data);
+
+            SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(documentUploader);
+            integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+            integrationConfiguration.setValue(Constants.SC_ATTR_SOURCE_FILE, sourceFile.toString());
+            integrationConfiguration.setValue(Constants.SC_ATTR_OVERWRITE, true);
+            response = documentUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        } finally {
+            Files.deleteIfExists(sourceFile);
+        }
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("length"), equalTo((long) data.length));
+        assertThat(((List) response.getResult().get("chunkSizes")).isEmpty(), equalTo(false));
+
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathGetProperties);
+        integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+        response = pathGetProperties.execute(integrationConfiguration.toConfiguration(), connectedSystemConfiguration.toConfiguration(), null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(Long.parseLong(response.getResult().get("length").toString()), equalTo((long) data.length));
+    }
+
+    @Test
+    public void whenSourceFileOutsideLocalRoot_thenError() throws IOException {
+        Path localRoot = Files.createTempDirectory("document-root");
+        Path outside = Files.createTempFile("document-upload", ".bin");
+        Path link = localRoot.resolve("link.bin");
+        String previousRoot = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT);
+        try {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, localRoot.toString());
+            Files.createSymbolicLink(link, outside);
+
+            // Neither the file itself, a relative path, nor a link within the root can reach it
+            for (String sourceFile: new String[] {outside.toString(), "../" + outside.getFileName(), link.toString()}) {
+                SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(documentUploader);
+                integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+                integrationConfiguration.setValue(Constants.SC_ATTR_SOURCE_FILE, sourceFile);
+                IntegrationResponse response = documentUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+                assertThat(response.isSuccess(), equalTo(false));
+                assertThat(response.getError().getTitle(), equalTo("Invalid source file"));
+            }
+        } finally {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, previousRoot);
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(localRoot);
+            Files.deleteIfExists(outside);
+        }
+    }
+
+    @Test
+    public void whenNoLocalRoot_thenSourceFileRejected() throws IOException {
+        Path sourceFile = Files.createTempFile("document-upload", ".bin");
+        String previousRoot = connectedSystemConfiguration.getValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT);
+        IntegrationResponse response;
+        try {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, null);
+            SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(documentUploader);
+            integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+            integrationConfiguration.setValue(Constants.SC_ATTR_SOURCE_FILE, sourceFile.toString());
+            response = documentUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        } finally {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, previousRoot);
+            Files.deleteIfExists(sourceFile);
+        }
+        assertThat(response.isSuccess(), equalTo(false));
+        assertThat(response.getError().getTitle(), equalTo("Invalid source file"));
+    }
+
+    @Test
+    public void whenNoSource_thenError() {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(documentUploader);
+        integrationConfiguration.setValue(Constants.SC_ATTR_PATH, PATH);
+        IntegrationResponse response = documentUploader.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(false));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.core5.http.ContentType;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Sending a region of a file
+ */
+public class FileRegionEntityTest {
+    @Test
+    public void whenWritten_thenOnlyRegionSent() throws Exception {
+        Path file = Files.createTempFile("region", ".txt");
+        try {
+            Files.write(file, "hello region world".getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                FileRegionEntity entity = new FileRegionEntity(channel, 6, 6, ContentType.TEXT_PLAIN);
+                assertThat(entity.getContentLength(), equalTo(6L));
+
+                // Written twice, as a retry would
+                for (int i = 0; i < 2; i++) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    entity.writeTo(out);
+                    assertThat(out.toString("UTF-8"), equalTo("region"));
+                }
+
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                try (InputStream in = entity.getContent()) {
+                    int b;
+                    while ((b = in.read()) >= 0) content.write(b);
+                }
+                assertThat(content.toString("UTF-8"), equalTo("region"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
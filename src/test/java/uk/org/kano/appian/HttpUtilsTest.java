@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Sharing of the HTTP clients, which does not need a datalake.
+ */
+public class HttpUtilsTest {
+    private static final String KEY = "a2V5LW9uZQ==";
+    private static final String ROTATED_KEY = "a2V5LXR3bw==";
+
+    @After
+    public void closeClients() {
+        HttpUtils.closeAll();
+    }
+
+    @Test
+    public void whenSameCredentials_thenClientShared() {
+        CloseableHttpClient client = HttpUtils.getHttpClient("account", KEY, "filesystem", null);
+        assertThat(HttpUtils.getHttpClient("account", KEY, "filesystem", null), sameInstance(client));
+        assertThat(HttpUtils.getClientCount(), equalTo(1));
+    }
+
+    @Test
+    public void whenKeyRotated_thenBothClientsKept() {
+        CloseableHttpClient client = HttpUtils.getHttpClient("account", KEY, "filesystem", null);
+        CloseableHttpClient rotated = HttpUtils.getHttpClient("account", ROTATED_KEY, "filesystem", null);
+        assertThat(rotated, not(sameInstance(client)));
+        assertThat(HttpUtils.getHttpClient("account", KEY, "filesystem", null), sameInstance(client));
+        assertThat(HttpUtils.getClientCount(), equalTo(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void whenIdle_thenClientClosed() throws Exception {
+        CloseableHttpClient client = HttpUtils.getHttpClient("account", KEY, "filesystem", null);
+        HttpUtils.evictIdle(System.currentTimeMillis());
+        assertThat(HttpUtils.getClientCount(), equalTo(1));
+
+        HttpUtils.evictIdle(System.currentTimeMillis() + HttpUtils.CLIENT_IDLE_TIMEOUT_MS + 1);
+        assertThat(HttpUtils.getClientCount(), equalTo(0));
+
+        // A closed pool refuses to lease a connection
+        client.execute(new HttpGet("http://localhost:1/"), response -> null);
+    }
+
+    @Test
+    public void whenClosed_thenClientsRemoved() {
+        HttpUtils.getHttpClient("account", KEY, "filesystem", null);
+        HttpUtils.getHttpClient("account", KEY, "other", null);
+        assertThat(HttpUtils.getClientCount(), equalTo(2));
+        HttpUtils.closeAll();
+        assertThat(HttpUtils.getClientCount(), equalTo(0));
+    }
+
+    @Test
+    public void whenPluginClosed_thenClientsAndMetricsReleased() throws Exception {
+        HttpUtils.getHttpClient("lifecycleaccount", KEY, "filesystem", null);
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName plugin = new ObjectName("uk.org.kano.appian:type=Plugin");
+        ObjectName account = new ObjectName("uk.org.kano.appian:type=Datalake,account=\"lifecycleaccount\"");
+        assertThat(mBeanServer.isRegistered(plugin), equalTo(true));
+        assertThat(mBeanServer.isRegistered(account), equalTo(true));
+
+        // As a newly loaded copy of the plugin would
+        mBeanServer.invoke(plugin, "close", new Object[0], new String[0]);
+        assertThat(HttpUtils.getClientCount(), equalTo(0));
+        assertThat(mBeanServer.isRegistered(plugin), equalTo(false));
+        assertThat(mBeanServer.isRegistered(account), equalTo(false));
+    }
+}
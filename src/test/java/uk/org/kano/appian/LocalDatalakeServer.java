@@ -0,0 +1,796 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.Tomcat;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An in-process stand-in for the ADLS Gen2 DFS endpoint, holding everything in memory. It implements the path
+ * operations the plugin uses, and checks the SharedKey signature of every request, so the integrations can be tested
+ * without an Azure account. The endpoint is path style, ie: http://127.0.0.1:port/accountname
+ */
+public class LocalDatalakeServer implements Closeable {
+    private static final String DEFAULT_PERMISSIONS = "rwxr-x---";
+    private static final String DEFAULT_OWNER = "$superuser";
+    private static final int DEFAULT_MAX_RESULTS = 5000;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneId.of("GMT"));
+
+    private final String accountName;
+    private final byte[] accountKey;
+    private final Tomcat tomcat = new Tomcat();
+    private final File baseDir;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong etagCounter = new AtomicLong(System.currentTimeMillis());
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private volatile int deletePageSize = 0;
+
+    // All the paths, keyed by filesystem then path. Guarded by the server.
+    private final Map<String, Node> fileSystems = new TreeMap<>();
+    private final NavigableMap<String, Node> paths = new TreeMap<>();
+
+    /**
+     * Create a server for an account
+     * @param accountName The account name
+     * @param accountKey The base64 account key requests must be signed with
+     * @throws IOException If the working directory cannot be created
+     */
+    public LocalDatalakeServer(String accountName, String accountKey) throws IOException {
+        this.accountName = accountName;
+        this.accountKey = Base64.getDecoder().decode(accountKey);
+        this.baseDir = Files.createTempDirectory("adls-local-").toFile();
+    }
+
+    /**
+     * Start the server on a free port
+     * @throws IOException If the server cannot be started
+     */
+    public void start() throws IOException {
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+        tomcat.setPort(0);
+        tomcat.getConnector();
+
+        // There is no web application to leak, and the leak clean up fails on newer JVMs
+        StandardContext context = (StandardContext) tomcat.addContext("", baseDir.getAbsolutePath());
+        context.setClearReferencesObjectStreamClassCaches(false);
+        context.setClearReferencesRmiTargets(false);
+        context.setClearReferencesThreadLocals(false);
+        Tomcat.addServlet(context, "datalake", new DatalakeServlet());
+        context.addServletMappingDecoded("/", "datalake");
+
+        try {
+            tomcat.start();
+        } catch (LifecycleException e) {
+            throw new IOException("Unable to start the local datalake", e);
+        }
+    }
+
+    /**
+     * @return The endpoint to configure the connected system with
+     */
+    public URI getEndpoint() {
+        return URI.create("http://127.0.0.1:" + tomcat.getConnector().getLocalPort() + "/" + accountName);
+    }
+
+    /**
+     * @return The number of requests received, including rejected ones
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Throttle the next requests, as the service does when the account is over its limits
+     * @param count The number of requests to reject with a 503 ServerBusy
+     */
+    public void throttleRequests(long count) {
+        throttledRequests.set(count);
+    }
+
+    /**
+     * Limit the paths removed by each recursive delete, as the service does for large directories. The rest are left
+     * for the next request, which is signalled with a continuation token.
+     * @param count The number of paths to remove per request, or 0 for no limit
+     */
+    public void setDeletePageSize(int count) {
+        deletePageSize = count;
+    }
+
+    /**
+     * Create a filesystem
+     * @param name The filesystem name
+     */
+    public synchronized void createFileSystem(String name) {
+        fileSystems.computeIfAbsent(name, key -> new Node(true, null));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            tomcat.stop();
+            tomcat.destroy();
+        } catch (LifecycleException e) {
+            throw new IOException("Unable to stop the local datalake", e);
+        } finally {
+            deleteRecursively(baseDir);
+        }
+    }
+
+    /**
+     * A file or directory
+     */
+    private final class Node {
+        final boolean directory;
+        byte[] data = new byte[0];
+        String contentType;
+        String contentEncoding;
+        String properties;
+        String etag;
+        long lastModified;
+        final NavigableMap<Long, byte[]> uncommitted = new TreeMap<>();
+
+        Node(boolean directory, String contentType) {
+            this.directory = directory;
+            this.contentType = contentType;
+            touch();
+        }
+
+        void touch() {
+            etag = "\"0x" + Long.toHexString(etagCounter.incrementAndGet()).toUpperCase() + "\"";
+            lastModified = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A failed request, returned with the Azure error code
+     */
+    private static final class DatalakeException extends Exception {
+        final int status;
+        final String code;
+
+        DatalakeException(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Dispatches all requests
+     */
+    private final class DatalakeServlet extends HttpServlet {
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            requestCount.incrementAndGet();
+            resp.setHeader("x-ms-request-id", UUID.randomUUID().toString());
+            resp.setHeader("x-ms-version", req.getHeader("x-ms-version"));
+
+            try {
+                String path = new URI(req.getRequestURI()).getPath();
+                Map<String, List<String>> query = parseQuery(req.getQueryString());
+                verifySignature(req, path, query);
+                if (throttledRequests.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                    resp.setHeader("Retry-After", "0");
+                    throw new DatalakeException(503, "ServerBusy", "Operations per second is over the account limit.");
+                }
+
+                String accountPrefix = "/" + accountName;
+                if (!path.startsWith(accountPrefix)) throw new DatalakeException(400, "InvalidUri", "Unknown account");
+                path = path.substring(accountPrefix.length());
+                if (path.startsWith("/")) path = path.substring(1);
+
+                if (path.isEmpty()) {
+                    if ("GET".equals(req.getMethod()) && "account".equals(getParameter(query, "resource"))) {
+                        listFileSystems(resp);
+                        return;
+                    }
+                    throw new DatalakeException(400, "InvalidUri", "Unsupported account operation");
+                }
+
+                int separator = path.indexOf('/');
+                String fileSystem = separator < 0 ? path : path.substring(0, separator);
+                String name = separator < 0 ? "" : path.substring(separator + 1).replaceAll("/+$", "");
+                synchronized (LocalDatalakeServer.this) {
+                    if (!fileSystems.containsKey(fileSystem)) throw new DatalakeException(404, "FilesystemNotFound", "The specified filesystem does not exist.");
+                }
+
+                switch (req.getMethod()) {
+                    case "PUT":
+                        put(req, resp, fileSystem, name);
+                        break;
+                    case "PATCH":
+                        patch(req, resp, fileSystem, name, query);
+                        break;
+                    case "GET":
+                        if (name.isEmpty()) {
+                            listPaths(req, resp, fileSystem, query);
+                        } else {
+                            read(req, resp, fileSystem, name);
+                        }
+                        break;
+                    case "HEAD":
+                        head(req, resp, fileSystem, name);
+                        break;
+                    case "DELETE":
+                        delete(resp, fileSystem, name, query);
+                        break;
+                    default:
+                        throw new DatalakeException(405, "UnsupportedHttpVerb", "The resource doesn't support the specified HTTP verb.");
+                }
+            } catch (DatalakeException e) {
+                sendError(req, resp, e);
+            } catch (URISyntaxException e) {
+                sendError(req, resp, new DatalakeException(400, "InvalidUri", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Create a path, or rename one
+     */
+    private void put(HttpServletRequest req, HttpServletResponse resp, String fileSystem, String name) throws IOException, DatalakeException {
+        readBody(req);
+        if (name.isEmpty()) throw new DatalakeException(400, "InvalidUri", "Unsupported filesystem operation");
+        String key = fileSystem + "/" + name;
+        Node node;
+
+        String renameSource = req.getHeader("x-ms-rename-source");
+        if (null != renameSource) {
+            String source = renameSource.split("\\?", 2)[0].replaceAll("^/+", "").replaceAll("/+$", "");
+            synchronized (this) {
+                Node sourceNode = paths.get(source);
+                if (null == sourceNode) throw new DatalakeException(404, "SourcePathNotFound", "The source path for a rename operation does not exist.");
+                if (key.equals(source) || key.startsWith(source + "/")) throw new DatalakeException(400, "InvalidDestinationPath", "The destination is under the source.");
+                checkConditions(req, paths.get(key));
+
+                NavigableMap<String, Node> moved = new TreeMap<>(children(source));
+                moved.put(source, sourceNode);
+                removeWithChildren(key);
+                moved.forEach((movedKey, movedNode) -> {
+                    paths.remove(movedKey);
+                    paths.put(key + movedKey.substring(source.length()), movedNode);
+                });
+                createParents(key);
+                node = sourceNode;
+            }
+        } else {
+            String resource = req.getParameter("resource");
+            if (!"file".equals(resource) && !"directory".equals(resource)) {
+                throw new DatalakeException(400, "InvalidQueryParameterValue", "Value for one of the query parameters specified in the request URI is invalid.");
+            }
+
+            synchronized (this) {
+                Node existing = paths.get(key);
+                String ifNoneMatch = req.getHeader("If-None-Match");
+                if (null != existing && null != ifNoneMatch && "*".equals(ifNoneMatch.replace("\"", ""))) {
+                    throw new DatalakeException(409, "PathAlreadyExists", "The specified path already exists.");
+                }
+                checkConditions(req, existing);
+                if (null != existing && existing.directory && !children(key).isEmpty() && "file".equals(resource)) {
+                    throw new DatalakeException(409, "PathConflict", "The specified path, or an element of the path, exists and its resource type is invalid for this operation.");
+                }
+
+                String contentType = req.getHeader("x-ms-content-type");
+                if (null == contentType) contentType = req.getContentType();
+                node = new Node("directory".equals(resource), "directory".equals(resource) ? null : null == contentType ? "application/octet-stream" : contentType);
+                node.properties = req.getHeader("x-ms-properties");
+                node.contentEncoding = req.getHeader("x-ms-content-encoding");
+                createParents(key);
+                paths.put(key, node);
+            }
+        }
+
+        resp.setStatus(201);
+        setPathHeaders(resp, node);
+        resp.setContentLength(0);
+    }
+
+    /**
+     * Append, flush or set properties
+     */
+    private void patch(HttpServletRequest req, HttpServletResponse resp, String fileSystem, String name, Map<String, List<String>> query) throws IOException, DatalakeException {
+        byte[] body = readBody(req);
+        String action = getParameter(query, "action");
+        Node node;
+        int status = 200;
+
+        synchronized (this) {
+            node = paths.get(fileSystem + "/" + name);
+            if (null == node) throw new DatalakeException(404, "PathNotFound", "The specified path does not exist.");
+
+            if ("append".equals(action)) {
+                if (node.directory) throw new DatalakeException(400, "InvalidFlushOperation", "The resource is a directory.");
+                long position = getPosition(query);
+                boolean flush = Boolean.parseBoolean(getParameter(query, "flush"));
+                if (flush) checkConditions(req, node);
+                node.uncommitted.put(position, body);
+                if (flush) {
+                    flush(req, node, position + body.length, query);
+                } else {
+                    status = 202;
+                }
+            } else if ("flush".equals(action)) {
+                if (node.directory) throw new DatalakeException(400, "InvalidFlushOperation", "The resource is a directory.");
+                checkConditions(req, node);
+                flush(req, node, getPosition(query), query);
+            } else if ("setProperties".equals(action)) {
+                checkConditions(req, node);
+                String properties = req.getHeader("x-ms-properties");
+                if (null != properties) node.properties = properties;
+                String contentType = req.getHeader("x-ms-content-type");
+                if (null != contentType) node.contentType = contentType;
+                node.touch();
+            } else {
+                throw new DatalakeException(400, "InvalidQueryParameterValue", "Value for one of the query parameters specified in the request URI is invalid.");
+            }
+        }
+
+        resp.setStatus(status);
+        setPathHeaders(resp, node);
+        resp.setContentLength(0);
+    }
+
+    /**
+     * Commit the uncommitted data up to the position. Every byte past the committed data must have been appended.
+     */
+    private void flush(HttpServletRequest req, Node node, long position, Map<String, List<String>> query) throws DatalakeException {
+        if (position > Integer.MAX_VALUE) throw new DatalakeException(400, "InvalidFlushPosition", "The file is too large for the local datalake.");
+
+        long reach = node.data.length;
+        for (Map.Entry<Long, byte[]> chunk: node.uncommitted.entrySet()) {
+            long end = chunk.getKey() + chunk.getValue().length;
+            if (end > position) throw new DatalakeException(400, "InvalidFlushPosition", "The uploaded data is not contiguous or the position query parameter value is not equal to the length of the file after appending the uploaded data.");
+            if (chunk.getKey() <= reach) reach = Math.max(reach, end);
+        }
+        if (reach < position) throw new DatalakeException(400, "InvalidFlushPosition", "The uploaded data is not contiguous or the position query parameter value is not equal to the length of the file after appending the uploaded data.");
+
+        byte[] data = Arrays.copyOf(node.data, (int) position);
+        node.uncommitted.forEach((offset, chunk) -> System.arraycopy(chunk, 0, data, offset.intValue(), chunk.length));
+        node.data = data;
+        if (!Boolean.parseBoolean(getParameter(query, "retainUncommittedData"))) node.uncommitted.clear();
+
+        String contentType = req.getHeader("x-ms-content-type");
+        if (null != contentType) node.contentType = contentType;
+        String contentEncoding = req.getHeader("x-ms-content-encoding");
+        if (null != contentEncoding) node.contentEncoding = contentEncoding;
+        node.touch();
+    }
+
+    /**
+     * Read a file, or a range of it
+     */
+    private void read(HttpServletRequest req, HttpServletResponse resp, String fileSystem, String name) throws IOException, DatalakeException {
+        byte[] data;
+        Node node;
+        synchronized (this) {
+            node = paths.get(fileSystem + "/" + name);
+            if (null == node) throw new DatalakeException(404, "PathNotFound", "The specified path does not exist.");
+            if (node.directory) throw new DatalakeException(400, "UnsupportedOperation", "The resource is a directory.");
+            checkConditions(req, node);
+            data = node.data;
+        }
+
+        int start = 0, end = data.length - 1;
+        String range = req.getHeader("Range");
+        if (null != range) {
+            String[] bounds = range.replaceFirst("^bytes=", "").split("-", 2);
+            try {
+                start = Integer.parseInt(bounds[0].trim());
+                if (2 == bounds.length && !bounds[1].trim().isEmpty()) end = Math.min(end, Integer.parseInt(bounds[1].trim()));
+            } catch (NumberFormatException e) {
+                throw new DatalakeException(400, "InvalidRange", "The range specified is invalid.");
+            }
+            if (start > end) {
+                resp.setHeader("Content-Range", "bytes */" + data.length);
+                throw new DatalakeException(416, "InvalidRange", "The range specified is invalid for the current size of the resource.");
+            }
+            resp.setStatus(206);
+            resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+        } else {
+            resp.setStatus(200);
+        }
+
+        setPathHeaders(resp, node);
+        resp.setHeader("Accept-Ranges", "bytes");
+        resp.setContentType(node.contentType);
+        resp.setContentLength(end - start + 1);
+        try (OutputStream out = resp.getOutputStream()) {
+            out.write(data, start, end - start + 1);
+        }
+    }
+
+    /**
+     * Get the properties of a path or filesystem
+     */
+    private void head(HttpServletRequest req, HttpServletResponse resp, String fileSystem, String name) throws DatalakeException {
+        Node node;
+        long length;
+        synchronized (this) {
+            node = name.isEmpty() ? fileSystems.get(fileSystem) : paths.get(fileSystem + "/" + name);
+            if (null == node) throw new DatalakeException(404, "PathNotFound", "The specified path does not exist.");
+
+            String ifNoneMatch = req.getHeader("If-None-Match");
+            if (null != ifNoneMatch && ifNoneMatch.equals(node.etag)) {
+                resp.setStatus(304);
+                setPathHeaders(resp, node);
+                return;
+            }
+            checkConditions(req, node);
+            length = node.data.length;
+        }
+
+        resp.setStatus(200);
+        setPathHeaders(resp, node);
+        if (name.isEmpty()) {
+            resp.setHeader("x-ms-namespace-enabled", "true");
+        } else {
+            resp.setHeader("x-ms-resource-type", node.directory ? "directory" : "file");
+            if (null != node.contentType) resp.setContentType(node.contentType);
+            resp.setHeader("x-ms-owner", DEFAULT_OWNER);
+            resp.setHeader("x-ms-group", DEFAULT_OWNER);
+            resp.setHeader("x-ms-permissions", DEFAULT_PERMISSIONS);
+        }
+        resp.setContentLengthLong(length);
+    }
+
+    /**
+     * Delete a path
+     */
+    private void delete(HttpServletResponse resp, String fileSystem, String name, Map<String, List<String>> query) throws DatalakeException {
+        if (name.isEmpty()) throw new DatalakeException(400, "InvalidUri", "Unsupported filesystem operation");
+        String key = fileSystem + "/" + name;
+        synchronized (this) {
+            if (!paths.containsKey(key)) throw new DatalakeException(404, "PathNotFound", "The specified path does not exist.");
+            if (!children(key).isEmpty() && !Boolean.parseBoolean(getParameter(query, "recursive"))) {
+                throw new DatalakeException(409, "DirectoryNotEmpty", "The recursive query parameter value must be true to delete a non-empty directory.");
+            }
+            SortedMap<String, Node> children = children(key);
+            if (deletePageSize > 0 && children.size() > deletePageSize) {
+                Iterator<String> iterator = children.keySet().iterator();
+                for (int i = 0; i < deletePageSize; i++) {
+                    iterator.next();
+                    iterator.remove();
+                }
+                resp.setHeader("x-ms-continuation", Base64.getUrlEncoder().encodeToString(name.getBytes(StandardCharsets.UTF_8)));
+            } else {
+                removeWithChildren(key);
+            }
+        }
+        resp.setStatus(200);
+        resp.setContentLength(0);
+    }
+
+    /**
+     * List the paths in a filesystem, in pages
+     */
+    private void listPaths(HttpServletRequest req, HttpServletResponse resp, String fileSystem, Map<String, List<String>> query) throws IOException, DatalakeException {
+        String resource = getParameter(query, "resource");
+        if (!"filesystem".equals(resource)) throw new DatalakeException(400, "InvalidQueryParameterValue", "Value for one of the query parameters specified in the request URI is invalid.");
+
+        String directory = getParameter(query, "directory");
+        directory = null == directory ? "" : directory.replaceAll("^/+", "").replaceAll("/+$", "");
+        boolean recursive = Boolean.parseBoolean(getParameter(query, "recursive"));
+        String continuation = getParameter(query, "continuation");
+        int maxResults = DEFAULT_MAX_RESULTS;
+        if (null != getParameter(query, "maxResults")) {
+            try {
+                maxResults = Integer.parseInt(getParameter(query, "maxResults"));
+            } catch (NumberFormatException e) {
+                throw new DatalakeException(400, "InvalidQueryParameterValue", "Value for one of the query parameters specified in the request URI is invalid.");
+            }
+        }
+
+        String prefix = fileSystem + "/" + (directory.isEmpty() ? "" : directory + "/");
+        StringBuilder json = new StringBuilder("{\"paths\":[");
+        String nextContinuation = null;
+        synchronized (this) {
+            if (!directory.isEmpty() && !paths.containsKey(fileSystem + "/" + directory)) {
+                throw new DatalakeException(404, "PathNotFound", "The specified path does not exist.");
+            }
+
+            int count = 0;
+            String from = null == continuation ? prefix : fileSystem + "/" + new String(Base64.getUrlDecoder().decode(continuation), StandardCharsets.UTF_8);
+            for (Map.Entry<String, Node> entry: paths.tailMap(from, true).entrySet()) {
+                if (!entry.getKey().startsWith(prefix)) break;
+                String pathName = entry.getKey().substring(fileSystem.length() + 1);
+                if (!recursive && entry.getKey().indexOf('/', prefix.length()) >= 0) continue;
+                if (count == maxResults) {
+                    nextContinuation = Base64.getUrlEncoder().encodeToString(pathName.getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+
+                Node node = entry.getValue();
+                if (count++ > 0) json.append(',');
+                json.append("{\"contentLength\":\"").append(node.data.length)
+                        .append("\",\"etag\":").append(jsonString(node.etag))
+                        .append(",\"group\":").append(jsonString(DEFAULT_OWNER));
+                if (node.directory) json.append(",\"isDirectory\":\"true\"");
+                json.append(",\"lastModified\":").append(jsonString(HTTP_DATE.format(Instant.ofEpochMilli(node.lastModified))))
+                        .append(",\"name\":").append(jsonString(pathName))
+                        .append(",\"owner\":").append(jsonString(DEFAULT_OWNER))
+                        .append(",\"permissions\":").append(jsonString(DEFAULT_PERMISSIONS))
+                        .append('}');
+            }
+        }
+        json.append("]}");
+
+        if (null != nextContinuation) resp.setHeader("x-ms-continuation", nextContinuation);
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (null != acceptEncoding && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip")) {
+            sendGzipJson(resp, json.toString());
+        } else {
+            sendJson(resp, 200, json.toString());
+        }
+    }
+
+    /**
+     * List the filesystems in the account
+     */
+    private void listFileSystems(HttpServletResponse resp) throws IOException {
+        String json;
+        synchronized (this) {
+            json = fileSystems.entrySet().stream()
+                    .map(entry -> "{\"etag\":" + jsonString(entry.getValue().etag) +
+                            ",\"lastModified\":" + jsonString(HTTP_DATE.format(Instant.ofEpochMilli(entry.getValue().lastModified))) +
+                            ",\"name\":" + jsonString(entry.getKey()) + "}")
+                    .collect(Collectors.joining(",", "{\"filesystems\":[", "]}"));
+        }
+        sendJson(resp, 200, json);
+    }
+
+    /**
+     * Check the signature of a request, as described in
+     * https://docs.microsoft.com/en-us/rest/api/storageservices/authorize-with-shared-key
+     */
+    private void verifySignature(HttpServletRequest req, String path, Map<String, List<String>> query) throws DatalakeException {
+        String authorization = req.getHeader("Authorization");
+        String expectedPrefix = "SharedKey " + accountName + ":";
+        if (null == authorization || !authorization.startsWith(expectedPrefix)) {
+            throw new DatalakeException(403, "AuthenticationFailed", "Server failed to authenticate the request. Missing or invalid Authorization header.");
+        }
+        if (null == req.getHeader("x-ms-date") && null == req.getHeader("Date")) {
+            throw new DatalakeException(403, "AuthenticationFailed", "Server failed to authenticate the request. No date header.");
+        }
+
+        String contentLength = headerOrEmpty(req, "Content-Length");
+        if ("0".equals(contentLength)) contentLength = "";
+
+        StringBuilder stringToSign = new StringBuilder()
+                .append(req.getMethod()).append('\n')
+                .append(headerOrEmpty(req, "Content-Encoding")).append('\n')
+                .append(headerOrEmpty(req, "Content-Language")).append('\n')
+                .append(contentLength).append('\n')
+                .append(headerOrEmpty(req, "Content-MD5")).append('\n')
+                .append(headerOrEmpty(req, "Content-Type")).append('\n')
+                .append(headerOrEmpty(req, "Date")).append('\n')
+                .append(headerOrEmpty(req, "If-Modified-Since")).append('\n')
+                .append(headerOrEmpty(req, "If-Match")).append('\n')
+                .append(headerOrEmpty(req, "If-None-Match")).append('\n')
+                .append(headerOrEmpty(req, "If-Unmodified-Since")).append('\n')
+                .append(headerOrEmpty(req, "Range")).append('\n');
+
+        TreeMap<String, String> msHeaders = new TreeMap<>();
+        for (String headerName: Collections.list(req.getHeaderNames())) {
+            String lowerName = headerName.toLowerCase();
+            if (lowerName.startsWith("x-ms-")) msHeaders.put(lowerName, String.join(",", Collections.list(req.getHeaders(headerName))));
+        }
+        msHeaders.forEach((headerName, value) -> stringToSign.append(headerName).append(':').append(value).append('\n'));
+
+        stringToSign.append('/').append(accountName).append(path);
+        query.forEach((name, values) -> {
+            List<String> sorted = new ArrayList<>(values);
+            Collections.sort(sorted);
+            stringToSign.append('\n').append(name).append(':').append(String.join(",", sorted));
+        });
+
+        byte[] expected;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(accountKey, "HmacSHA256"));
+            expected = mac.doFinal(stringToSign.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new DatalakeException(500, "InternalError", e.getMessage());
+        }
+
+        byte[] actual;
+        try {
+            actual = Base64.getDecoder().decode(authorization.substring(expectedPrefix.length()));
+        } catch (IllegalArgumentException e) {
+            actual = new byte[0];
+        }
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new DatalakeException(403, "AuthenticationFailed", "Server failed to authenticate the request. The MAC signature found in the HTTP request is not the same as any computed signature.");
+        }
+    }
+
+    /**
+     * Check If-Match against the ETag of a path
+     */
+    private static void checkConditions(HttpServletRequest req, Node node) throws DatalakeException {
+        String ifMatch = req.getHeader("If-Match");
+        if (null == ifMatch) return;
+        if (null == node || (!"*".equals(ifMatch) && !ifMatch.equals(node.etag))) {
+            throw new DatalakeException(412, "ConditionNotMet", "The condition specified using HTTP conditional header(s) is not met.");
+        }
+    }
+
+    /**
+     * Get everything under a path. Must be called while holding the lock.
+     */
+    private SortedMap<String, Node> children(String key) {
+        return paths.subMap(key + "/", key + "0");
+    }
+
+    /**
+     * Remove a path and everything under it. Must be called while holding the lock.
+     */
+    private void removeWithChildren(String key) {
+        children(key).clear();
+        paths.remove(key);
+    }
+
+    /**
+     * Create any missing parent directories. Must be called while holding the lock.
+     */
+    private void createParents(String key) {
+        int separator = key.indexOf('/');
+        while ((separator = key.indexOf('/', separator + 1)) > 0) {
+            paths.computeIfAbsent(key.substring(0, separator), parent -> new Node(true, null));
+        }
+    }
+
+    /**
+     * Set the common headers for a path
+     */
+    private static void setPathHeaders(HttpServletResponse resp, Node node) {
+        resp.setHeader("ETag", node.etag);
+        resp.setHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(node.lastModified)));
+        if (null != node.properties) resp.setHeader("x-ms-properties", node.properties);
+        if (null != node.contentEncoding) resp.setHeader("Content-Encoding", node.contentEncoding);
+    }
+
+    private static void sendError(HttpServletRequest req, HttpServletResponse resp, DatalakeException e) throws IOException {
+        resp.setHeader("x-ms-error-code", e.code);
+        if ("HEAD".equals(req.getMethod())) {
+            resp.setStatus(e.status);
+            resp.setContentLength(0);
+            return;
+        }
+        sendJson(resp, e.status, "{\"error\":{\"code\":" + jsonString(e.code) + ",\"message\":" + jsonString(e.getMessage()) + "}}");
+    }
+
+    private static void sendJson(HttpServletResponse resp, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        resp.setStatus(status);
+        resp.setContentType("application/json;charset=utf-8");
+        resp.setContentLength(body.length);
+        try (OutputStream out = resp.getOutputStream()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Send a successful JSON body compressed with gzip, as the service does for a listing when asked
+     */
+    private static void sendGzipJson(HttpServletResponse resp, String json) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        resp.setStatus(200);
+        resp.setContentType("application/json;charset=utf-8");
+        resp.setHeader("Content-Encoding", "gzip");
+        resp.setContentLength(compressed.size());
+        try (OutputStream out = resp.getOutputStream()) {
+            compressed.writeTo(out);
+        }
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c: value.toCharArray()) {
+            if ('"' == c || '\\' == c) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static byte[] readBody(HttpServletRequest req) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(0, req.getContentLength()));
+        byte[] buf = new byte[65536];
+        int bufLen;
+        try (InputStream in = req.getInputStream()) {
+            while ((bufLen = in.read(buf)) > 0) body.write(buf, 0, bufLen);
+        }
+        return body.toByteArray();
+    }
+
+    private static long getPosition(Map<String, List<String>> query) throws DatalakeException {
+        String position = getParameter(query, "position");
+        try {
+            if (null == position) throw new NumberFormatException();
+            return Long.parseLong(position);
+        } catch (NumberFormatException e) {
+            throw new DatalakeException(400, "InvalidQueryParameterValue", "The position query parameter is missing or invalid.");
+        }
+    }
+
+    private static String getParameter(Map<String, List<String>> query, String name) {
+        List<String> values = query.get(name.toLowerCase());
+        return null == values || values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Parse the query string into lower case names, as it is canonicalised for signing
+     */
+    private static Map<String, List<String>> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, List<String>> query = new TreeMap<>();
+        if (null == rawQuery) return query;
+        for (String option: rawQuery.split("&")) {
+            if (option.isEmpty()) continue;
+            String[] parts = option.split("=", 2);
+            query.computeIfAbsent(URLDecoder.decode(parts[0], StandardCharsets.UTF_8.name()).toLowerCase(), name -> new ArrayList<>())
+                    .add(2 == parts.length ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8.name()) : "");
+        }
+        return query;
+    }
+
+    private static String headerOrEmpty(HttpServletRequest req, String name) {
+        String value = req.getHeader(name);
+        return null == value ? "" : value;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (null != files) for (File child: files) deleteRecursively(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.apache.hc.client5.http.classic.methods.*;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+/**
+ * Check the local datalake against the plugin's request signing.
+ */
+public class LocalDatalakeServerTest {
+    private static final String ACCOUNT_NAME = "localaccount";
+    private static final String ACCOUNT_KEY = Base64.getEncoder().encodeToString("local datalake test key".getBytes(StandardCharsets.UTF_8));
+    private static final String FILESYSTEM = "test";
+
+    private static LocalDatalakeServer server;
+    private static CloseableHttpClient client;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new LocalDatalakeServer(ACCOUNT_NAME, ACCOUNT_KEY);
+        server.createFileSystem(FILESYSTEM);
+        server.start();
+        client = createClient(ACCOUNT_KEY);
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void whenAppendedOutOfOrder_thenFlushedInOrder() throws Exception {
+        send(new HttpPut(uri("/data/file.csv", "resource", "file")));
+        send(patch("/data/file.csv", "world", "action", "append", "position", "6"));
+        send(patch("/data/file.csv", "hello ", "action", "append", "position", "0"));
+        Response flush = send(patch("/data/file.csv", "", "action", "flush", "position", "11", "close", "true"));
+        assertThat(flush.status, equalTo(200));
+
+        Response head = send(new HttpHead(uri("/data/file.csv")));
+        assertThat(head.status, equalTo(200));
+        assertThat(head.headers.get("Content-Length"), equalTo("11"));
+
+        HttpGet rangeGet = new HttpGet(uri("/data/file.csv"));
+        rangeGet.addHeader("Range", "bytes=6-10");
+        Response range = send(rangeGet);
+        assertThat(range.status, equalTo(206));
+        assertThat(range.body, equalTo("world"));
+
+        // Appends and a flush in one request, at the end of the file
+        Response append = send(patch("/data/file.csv", "!", "action", "append", "position", "11", "flush", "true"));
+        assertThat(append.status, equalTo(200));
+        assertThat(send(new HttpGet(uri("/data/file.csv"))).body, equalTo("hello world!"));
+
+        // Conditional requests
+        HttpHead notModified = new HttpHead(uri("/data/file.csv"));
+        notModified.addHeader("If-None-Match", append.headers.get("ETag"));
+        assertThat(send(notModified).status, equalTo(304));
+
+        HttpPatch staleFlush = patch("/data/file.csv", "", "action", "flush", "position", "12");
+        staleFlush.addHeader("If-Match", flush.headers.get("ETag"));
+        assertThat(send(staleFlush).status, equalTo(412));
+    }
+
+    @Test
+    public void whenListedInPages_thenContinuationFollowed() throws Exception {
+        for (int i = 0; i < 5; i++) send(new HttpPut(uri("/list/file" + i, "resource", "file")));
+
+        List<String> names = new ArrayList<>();
+        String continuation = null;
+        int pages = 0;
+        do {
+            URIBuilder uriBuilder = new URIBuilder(uri(""))
+                    .addParameter("resource", "filesystem")
+                    .addParameter("recursive", "false")
+                    .addParameter("directory", "list")
+                    .addParameter("maxResults", "2");
+            if (null != continuation) uriBuilder.addParameter("continuation", continuation);
+            Response list = send(new HttpGet(uriBuilder.build()));
+            assertThat(list.status, equalTo(200));
+            for (Map<String, Object> path: PathListResponseHandler.parsePaths(new ByteArrayInputStream(list.body.getBytes(StandardCharsets.UTF_8)))) {
+                names.add(path.get("name").toString());
+            }
+            continuation = list.headers.get("x-ms-continuation");
+            pages++;
+        } while (null != continuation);
+
+        assertThat(pages, equalTo(3));
+        assertThat(names, contains("list/file0", "list/file1", "list/file2", "list/file3", "list/file4"));
+    }
+
+    @Test
+    public void whenListedWithGzip_thenParsedCompressed() throws Exception {
+        for (int i = 0; i < 3; i++) send(new HttpPut(uri("/gzipped/file" + i, "resource", "file")));
+        URI listUri = uri("", "resource", "filesystem", "recursive", "false", "directory", "gzipped");
+
+        // Without its own decompression, as the plugin's clients are built
+        SigningHttpRequestInterceptor signer = new SigningHttpRequestInterceptor(ACCOUNT_NAME, ACCOUNT_KEY);
+        try (CloseableHttpClient rawClient = HttpClients.custom()
+                .disableContentCompression()
+                .addRequestInterceptorLast(signer)
+                .setDefaultHeaders(signer.getAuthenticationHeaders())
+                .build()) {
+            HttpGet request = new HttpGet(listUri);
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, PathListResponseHandler.ACCEPT_ENCODING);
+            Response raw = rawClient.execute(request, Response::new);
+            assertThat(raw.headers.get("Content-Encoding"), equalTo("gzip"));
+
+            request = new HttpGet(listUri);
+            request.setHeader(HttpHeaders.ACCEPT_ENCODING, PathListResponseHandler.ACCEPT_ENCODING);
+            List<String> names = new ArrayList<>();
+            for (Map<String, Object> path: rawClient.execute(request, response -> PathListResponseHandler.parsePaths(PathListResponseHandler.getBody(response.getEntity())))) {
+                names.add(path.get("name").toString());
+            }
+            assertThat(names, contains("gzipped/file0", "gzipped/file1", "gzipped/file2"));
+        }
+    }
+
+    @Test
+    public void whenRenamedAndDeleted_thenChildrenFollow() throws Exception {
+        send(new HttpPut(uri("/from/child", "resource", "file")));
+
+        HttpPut rename = new HttpPut(uri("/to"));
+        rename.addHeader("x-ms-rename-source", "/" + FILESYSTEM + "/from");
+        assertThat(send(rename).status, equalTo(201));
+        assertThat(send(new HttpHead(uri("/from/child"))).status, equalTo(404));
+        assertThat(send(new HttpHead(uri("/to/child"))).status, equalTo(200));
+
+        assertThat(send(new HttpDelete(uri("/to", "recursive", "false"))).status, equalTo(409));
+        assertThat(send(new HttpDelete(uri("/to", "recursive", "true"))).status, equalTo(200));
+        assertThat(send(new HttpHead(uri("/to/child"))).status, equalTo(404));
+    }
+
+    @Test
+    public void whenDeletedInPages_thenContinuationFollowed() throws Exception {
+        for (int i = 0; i < 5; i++) send(new HttpPut(uri("/paged/file" + i, "resource", "file")));
+
+        server.setDeletePageSize(2);
+        int requests = 0;
+        try {
+            String continuation = null;
+            do {
+                URI deleteUri = null == continuation ? uri("/paged", "recursive", "true") : uri("/paged", "recursive", "true", "continuation", continuation);
+                Response delete = send(new HttpDelete(deleteUri));
+                assertThat(delete.status, equalTo(200));
+                continuation = delete.headers.get("x-ms-continuation");
+                requests++;
+                if (null != continuation) assertThat(send(new HttpHead(uri("/paged"))).status, equalTo(200));
+            } while (null != continuation);
+        } finally {
+            server.setDeletePageSize(0);
+        }
+
+        assertThat(requests, equalTo(3));
+        assertThat(send(new HttpHead(uri("/paged"))).status, equalTo(404));
+        assertThat(send(new HttpHead(uri("/paged/file4"))).status, equalTo(404));
+    }
+
+    @Test
+    public void whenCompressedFileReadInRanges_thenStoredBytesReturned() throws Exception {
+        String content = "id,name\n1,first\n2,second\n3,third\n";
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] stored = compressed.toByteArray();
+
+        HttpPut create = new HttpPut(uri("/encoded.csv.gz", "resource", "file"));
+        create.addHeader("x-ms-content-type", "text/csv;charset=utf-8");
+        create.addHeader("x-ms-content-encoding", "gzip");
+        send(create);
+        HttpPatch append = new HttpPatch(uri("/encoded.csv.gz", "action", "append", "position", "0", "flush", "true"));
+        append.setEntity(new ByteArrayEntity(stored, ContentType.APPLICATION_OCTET_STREAM, false));
+        assertThat(send(append).status, equalTo(200));
+
+        // The shared client leaves each range as stored, rather than trying to decompress it on its own
+        CloseableHttpClient sharedClient = HttpUtils.getHttpClient(ACCOUNT_NAME, ACCOUNT_KEY, FILESYSTEM, null);
+        try {
+            ByteArrayOutputStream ranges = new ByteArrayOutputStream();
+            for (int offset = 0; offset < stored.length; offset += 16) {
+                HttpGet rangeGet = new HttpGet(uri("/encoded.csv.gz"));
+                rangeGet.addHeader("Range", "bytes=" + offset + "-" + Math.min(stored.length - 1, offset + 15));
+                byte[] range = sharedClient.execute(rangeGet, response -> {
+                    assertThat(response.getCode(), equalTo(206));
+                    assertThat(response.getFirstHeader("Content-Encoding").getValue(), equalTo("gzip"));
+                    return EntityUtils.toByteArray(response.getEntity());
+                });
+                ranges.write(range);
+            }
+            assertThat(ranges.toByteArray(), equalTo(stored));
+
+            // The stored encoding is removed when the body is read
+            BasicResponseHandler brh = new BasicResponseHandler();
+            String body = brh.readBody(new ByteArrayInputStream(ranges.toByteArray()), ContentType.parse("text/csv;charset=utf-8"), "gzip", stored.length);
+            assertThat(body, equalTo(content));
+        } finally {
+            HttpUtils.closeAll();
+        }
+    }
+
+    @Test
+    public void whenSignedWithWrongKey_thenForbidden() throws Exception {
+        try (CloseableHttpClient badClient = createClient(Base64.getEncoder().encodeToString("wrong".getBytes(StandardCharsets.UTF_8)))) {
+            Response response = badClient.execute(new HttpHead(uri("", "resource", "filesystem")), Response::new);
+            assertThat(response.status, equalTo(403));
+            assertThat(response.headers.get("x-ms-error-code"), equalTo("AuthenticationFailed"));
+        }
+        assertThat(send(new HttpHead(uri("", "resource", "filesystem"))).headers.get("ETag"), notNullValue());
+    }
+
+    @Test
+    public void whenThrottled_thenRetried() throws Exception {
+        send(new HttpPut(uri("/throttled.txt", "resource", "file")));
+
+        try (CloseableHttpClient retryingClient = createRetryingClient(TimeValue.ofSeconds(10))) {
+            server.throttleRequests(2);
+            long requests = server.getRequestCount();
+            Response append = retryingClient.execute(patch("/throttled.txt", "data", "action", "append", "position", "0", "flush", "true"), Response::new);
+            assertThat(append.status, equalTo(200));
+            assertThat(server.getRequestCount() - requests, equalTo(3L));
+        }
+        assertThat(send(new HttpGet(uri("/throttled.txt"))).body, equalTo("data"));
+    }
+
+    @Test
+    public void whenThrottledPastBudget_thenFailed() throws Exception {
+        try (CloseableHttpClient retryingClient = createRetryingClient(TimeValue.ofMilliseconds(100))) {
+            server.throttleRequests(1000);
+            Response response = retryingClient.execute(new HttpHead(uri("", "resource", "filesystem")), Response::new);
+            assertThat(response.status, equalTo(503));
+            assertThat(response.headers.get("x-ms-error-code"), equalTo("ServerBusy"));
+        } finally {
+            server.throttleRequests(0);
+        }
+    }
+
+    private static CloseableHttpClient createRetryingClient(TimeValue timeBudget) {
+        SigningHttpRequestInterceptor signer = new SigningHttpRequestInterceptor(ACCOUNT_NAME, ACCOUNT_KEY);
+        return HttpClients.custom()
+                .addRequestInterceptorLast(signer)
+                .setDefaultHeaders(signer.getAuthenticationHeaders())
+                .setRetryStrategy(new ThrottlingRetryStrategy(100, TimeValue.ofMilliseconds(10), TimeValue.ofMilliseconds(50), timeBudget))
+                .build();
+    }
+
+    private static CloseableHttpClient createClient(String accountKey) {
+        SigningHttpRequestInterceptor signer = new SigningHttpRequestInterceptor(ACCOUNT_NAME, accountKey);
+        return HttpClients.custom()
+                .addRequestInterceptorLast(signer)
+                .setDefaultHeaders(signer.getAuthenticationHeaders())
+                .build();
+    }
+
+    private static URI uri(String path, String... parameters) throws Exception {
+        URIBuilder uriBuilder = new URIBuilder(server.getEndpoint());
+        uriBuilder.setPath(uriBuilder.getPath() + "/" + FILESYSTEM + path);
+        for (int i = 0; i < parameters.length; i += 2) uriBuilder.addParameter(parameters[i], parameters[i + 1]);
+        return uriBuilder.build();
+    }
+
+    private static HttpPatch patch(String path, String content, String... parameters) throws Exception {
+        HttpPatch request = new HttpPatch(uri(path, parameters));
+        request.setEntity(new ByteArrayEntity(content.getBytes(StandardCharsets.UTF_8), ContentType.TEXT_PLAIN, false));
+        return request;
+    }
+
+    private static Response send(ClassicHttpRequest request) throws IOException {
+        return client.execute(request, Response::new);
+    }
+
+    /**
+     * The parts of a response the tests look at
+     */
+    private static class Response {
+        final int status;
+        final Map<String, String> headers = new java.util.TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final String body;
+
+        Response(org.apache.hc.core5.http.ClassicHttpResponse response) throws IOException {
+            status = response.getCode();
+            for (org.apache.hc.core5.http.Header header: response.getHeaders()) headers.put(header.getName(), header.getValue());
+            try {
+                body = null == response.getEntity() ? null : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            } catch (org.apache.hc.core5.http.ParseException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
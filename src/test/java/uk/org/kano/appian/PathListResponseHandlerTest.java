@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Parsing of the path list body.
+ */
+public class PathListResponseHandlerTest {
+
+    @Test
+    public void whenValuesAreStrings_thenEntriesTyped() throws IOException {
+        String body = "{\"paths\":[" +
+                "{\"contentLength\":\"0\",\"etag\":\"0x8D8\",\"group\":\"$superuser\",\"isDirectory\":\"true\",\"lastModified\":\"Thu, 01 Oct 2020 10:00:00 GMT\",\"name\":\"dir\",\"owner\":\"$superuser\",\"permissions\":\"rwxr-x---\"}," +
+                "{\"contentLength\":\"1234\",\"etag\":\"0x8D9\",\"lastModified\":\"Thu, 01 Oct 2020 11:00:00 GMT\",\"name\":\"dir/file.csv\"}" +
+                "]}";
+
+        List<Map<String, Object>> paths = PathListResponseHandler.parsePaths(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        assertThat(paths, hasSize(2));
+        assertThat(paths.get(0).get("name"), equalTo("dir"));
+        assertThat(paths.get(0).get("isDirectory"), equalTo(true));
+        assertThat(paths.get(1).get("name"), equalTo("dir/file.csv"));
+        assertThat(paths.get(1).get("isDirectory"), equalTo(false));
+        assertThat(paths.get(1).get("contentLength"), equalTo(1234L));
+        assertThat(paths.get(1).get("etag"), equalTo("0x8D9"));
+    }
+
+    @Test
+    public void whenValuesAreNative_thenEntriesTyped() throws IOException {
+        String body = "{\"other\":{\"a\":[1,2]},\"paths\":[{\"contentLength\":42,\"isDirectory\":false,\"name\":\"file\",\"extra\":{\"x\":1}}]}";
+
+        List<Map<String, Object>> paths = PathListResponseHandler.parsePaths(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        assertThat(paths, hasSize(1));
+        assertThat(paths.get(0).get("contentLength"), equalTo(42L));
+        assertThat(paths.get(0).get("isDirectory"), equalTo(false));
+    }
+
+    @Test
+    public void whenEmpty_thenNoEntries() throws IOException {
+        List<Map<String, Object>> paths = PathListResponseHandler.parsePaths(new ByteArrayInputStream("{\"paths\":[]}".getBytes(StandardCharsets.UTF_8)));
+        assertThat(paths, empty());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+/**
+ * Path metadata caching that does not need a datalake.
+ */
+public class PathMetadataCacheTest {
+    private static final URI DIRECTORY = URI.create("https://account.dfs.core.windows.net/filesystem/cache-test");
+    private static final URI FILE = URI.create("https://account.dfs.core.windows.net/filesystem/cache-test/file.txt");
+
+    @Test
+    public void whenWritten_thenPropertiesKept() {
+        PathMetadataCache.put(FILE, LogUtil.getIntegrationDataMap("exists", true, "etag", "\"1\"", "length", 10L, "type", "text/plain", "properties", Collections.singletonMap("a", "b")));
+        PathMetadataCache.putWrite(URI.create(FILE.toString() + "?action=flush&position=20"), "\"2\"", 20L);
+
+        PathMetadataCache.Entry entry = PathMetadataCache.get(FILE);
+        assertThat(entry.getEtag(), equalTo("\"2\""));
+        assertThat(entry.getValues().get("length"), equalTo(20L));
+        assertThat(entry.getValues().get("type"), equalTo("text/plain"));
+        assertThat(entry.getValues().get("properties"), equalTo(Collections.singletonMap("a", "b")));
+        assertThat(entry.isFresh(), equalTo(true));
+    }
+
+    @Test
+    public void whenWrittenWithoutEntry_thenNotCached() {
+        PathMetadataCache.invalidate(FILE);
+        PathMetadataCache.putWrite(FILE, "\"3\"", 30L);
+        assertThat(PathMetadataCache.get(FILE), nullValue());
+    }
+
+    @Test
+    public void whenDirectoryDeleted_thenChildrenInvalidated() {
+        PathMetadataCache.put(FILE, LogUtil.getIntegrationDataMap("exists", true, "etag", "\"1\""));
+        PathMetadataCache.putMissing(URI.create(DIRECTORY.toString() + "?recursive=true"));
+
+        assertThat(PathMetadataCache.get(FILE), nullValue());
+        assertThat(PathMetadataCache.get(DIRECTORY).exists(), equalTo(false));
+        assertThat(PathMetadataCache.get(DIRECTORY).getEtag(), nullValue());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.fail;
+
+/**
+ * Compression of exports that does not need a datalake.
+ */
+public class PipelinedCompressorTest {
+    private static final byte[] DATA = createData();
+
+    @Test
+    public void whenGzipped_thenDecompresses() throws IOException {
+        byte[] compressed = compress(Compression.GZIP);
+        assertThat(compressed.length, lessThan(DATA.length / 5));
+        assertThat(readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))), equalTo(DATA));
+    }
+
+    @Test
+    public void whenZstdCompressed_thenDecompresses() throws IOException {
+        assertThat(Compression.ZSTD.isAvailable(), equalTo(true));
+        byte[] compressed = compress(Compression.ZSTD);
+        assertThat(compressed.length, lessThan(DATA.length / 5));
+        assertThat(readAll(new ZstdInputStream(new ByteArrayInputStream(compressed))), equalTo(DATA));
+    }
+
+    @Test
+    public void whenOutputFails_thenWriteFails() throws IOException {
+        // Accepts the gzip header, then fails
+        OutputStream failing = new OutputStream() {
+            private int written = 0;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 10) throw new IOException("Upload failed");
+            }
+        };
+
+        PipelinedCompressor compressor = new PipelinedCompressor(failing, Compression.GZIP);
+        try {
+            for (int i = 0; i < 100; i++) compressor.write(DATA);
+            compressor.close();
+            fail("Expected the write to fail");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("Upload failed"));
+        } finally {
+            try { compressor.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static byte[] compress(Compression compression) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (PipelinedCompressor compressor = new PipelinedCompressor(compressed, compression)) {
+            for (int i = 0; i < DATA.length; i += 1000) compressor.write(DATA, i, Math.min(1000, DATA.length - i));
+            compressor.write('\n');
+            assertThat(compressor.getRawLength(), equalTo(DATA.length + 1L));
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+        in.close();
+        byte[] data = out.toByteArray();
+        // The extra byte written after the data
+        assertThat(data[data.length - 1], equalTo((byte) '\n'));
+        byte[] rv = new byte[data.length - 1];
+        System.arraycopy(data, 0, rv, 0, rv.length);
+        return rv;
+    }
+
+    private static byte[] createData() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20000; i++) builder.append("\"").append(i).append("\",\"name ").append(i % 10).append("\",\"12.50\"\r\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -25,11 +25,17 @@ import org.junit.BeforeClass;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.Properties;
 
 public class TestBase {
+    private static final String LOCAL_ACCOUNT_NAME = "localaccount";
+    private static final String LOCAL_FILESYSTEM = "appian";
+    private static LocalDatalakeServer localDatalakeServer;
+
     protected static Properties credentials;
     protected static SimpleConfiguration connectedSystemConfiguration;
     private static ConfigurationDescriptor connectedSystemConfigurationDescriptor;
@@ -37,16 +43,45 @@ public class TestBase {
     @BeforeClass
     public static void loadCredentials() throws Exception {
         URL credentialsLocation = TestBase.class.getResource("/credentials.properties");
-        if (null == credentialsLocation) throw new IOException("Credentials file not found");
-        credentials = new Properties();
+        if (null == credentialsLocation) {
+            credentials = getLocalCredentials();
+        } else {
+            credentials = new Properties();
 
-        InputStream in = credentialsLocation.openStream();
-        credentials.load(in);
-        in.close();
+            InputStream in = credentialsLocation.openStream();
+            credentials.load(in);
+            in.close();
+        }
 
         // Get the configuration to help test classes.
         connectedSystemConfiguration = getConnectedSystemConfiguration();
         credentials.forEach((key, value) -> connectedSystemConfiguration.setValue(key.toString(), value));
+
+        // Local files are made in the temporary directory, unless the credentials say otherwise
+        if (!credentials.containsKey(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT)) {
+            connectedSystemConfiguration.setValue(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_LOCAL_ROOT, System.getProperty("java.io.tmpdir"));
+        }
+    }
+
+    /**
+     * Without credentials, run against a local datalake. This is started once and shared by all the tests.
+     * @return The credentials for the local datalake
+     * @throws IOException If the local datalake cannot be started
+     */
+    private static synchronized Properties getLocalCredentials() throws IOException {
+        String accountKey = Base64.getEncoder().encodeToString(LOCAL_ACCOUNT_NAME.getBytes(StandardCharsets.UTF_8));
+        if (null == localDatalakeServer) {
+            localDatalakeServer = new LocalDatalakeServer(LOCAL_ACCOUNT_NAME, accountKey);
+            localDatalakeServer.createFileSystem(LOCAL_FILESYSTEM);
+            localDatalakeServer.start();
+        }
+
+        Properties localCredentials = new Properties();
+        localCredentials.setProperty(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_NAME, LOCAL_ACCOUNT_NAME);
+        localCredentials.setProperty(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ACCOUNT_KEY, accountKey);
+        localCredentials.setProperty(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_FILESYSTEM, LOCAL_FILESYSTEM);
+        localCredentials.setProperty(AzureDatalakeConnectedSystemTemplate.CS_ADLS_G2_ENDPOINT, localDatalakeServer.getEndpoint().toString());
+        return localCredentials;
     }
 
     /**
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian;
+
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.TimeZone;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * Watermark state that does not need a datalake.
+ */
+public class WatermarkStoreTest {
+    @Test
+    public void whenStored_thenRowsExcluded() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:watermark");
+             Statement statement = conn.createStatement()
+        ) {
+            statement.execute("create table orders (id int, created timestamp)");
+            statement.execute("insert into orders values (1, timestamp '2020-01-01 10:00:00.123456'), (2, timestamp '2020-01-02 10:00:00.654321')");
+
+            WatermarkStore.Watermark watermark;
+            try (ResultSet resultSet = statement.executeQuery("select max(created) from orders")) {
+                resultSet.next();
+                watermark = WatermarkStore.Watermark.fromResultSet("created", resultSet, 1);
+            }
+
+            WatermarkStore.Watermark stored = WatermarkStore.parse(WatermarkStore.toJson(watermark));
+            assertThat(stored.getColumn(), equalTo("created"));
+            assertThat(stored.isSame(watermark), equalTo(true));
+
+            // Sub-millisecond precision must survive, or the last row is exported again
+            try (PreparedStatement query = conn.prepareStatement("select count(*) from orders where created > ?")) {
+                stored.bind(query, 1);
+                try (ResultSet resultSet = query.executeQuery()) {
+                    resultSet.next();
+                    assertThat(resultSet.getInt(1), equalTo(0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void whenTimeZoneChanged_thenSameRowsExcluded() throws Exception {
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:watermarkZone");
+             Statement statement = conn.createStatement()
+        ) {
+            statement.execute("create table events (id int, created timestamp, logged timestamp with time zone)");
+            statement.execute("insert into events values (1, timestamp '2020-03-08 01:30:00.5', timestamp with time zone '2020-01-01 10:00:00.123456+05:00'), " +
+                    "(2, timestamp '2020-03-08 02:30:00.25', timestamp with time zone '2020-01-02 10:00:00.654321+05:00')");
+
+            // Exported on a host in one time zone
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            WatermarkStore.Watermark created, logged;
+            try (ResultSet resultSet = statement.executeQuery("select max(created), max(logged) from events")) {
+                resultSet.next();
+                created = WatermarkStore.parse(WatermarkStore.toJson(WatermarkStore.Watermark.fromResultSet("created", resultSet, 1)));
+                logged = WatermarkStore.parse(WatermarkStore.toJson(WatermarkStore.Watermark.fromResultSet("logged", resultSet, 2)));
+            }
+            assertThat(created.getValue(), equalTo("2020-03-08T02:30:00.250Z"));
+            assertThat(logged.getValue(), endsWith("+05:00"));
+
+            // And picked up on a host in another
+            TimeZone.setDefault(TimeZone.getTimeZone("Asia/Kolkata"));
+            assertThat(countAfter(conn, "created", created), equalTo(0));
+            assertThat(countAfter(conn, "logged", logged), equalTo(0));
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test
+    public void whenNumber_thenBoundAsNumber() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:watermarkNumber");
+             Statement statement = conn.createStatement()
+        ) {
+            statement.execute("create table events (id bigint)");
+            statement.execute("insert into events values (9), (10), (11)");
+
+            WatermarkStore.Watermark watermark = WatermarkStore.parse("{\"column\":\"id\",\"type\":\"number\",\"watermark\":\"9\"}");
+            try (PreparedStatement query = conn.prepareStatement("select count(*) from events where id > ?")) {
+                watermark.bind(query, 1);
+                try (ResultSet resultSet = query.executeQuery()) {
+                    resultSet.next();
+                    assertThat(resultSet.getInt(1), equalTo(2));
+                }
+            }
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void whenTimestampNotAnInstant_thenError() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:watermarkInvalid");
+             PreparedStatement query = conn.prepareStatement("select ?")
+        ) {
+            WatermarkStore.parse("{\"column\":\"created\",\"type\":\"timestamp\",\"watermark\":\"2020-01-02 10:00:00.654321\"}").bind(query, 1);
+        }
+    }
+
+    private static int countAfter(Connection conn, String column, WatermarkStore.Watermark watermark) throws SQLException {
+        try (PreparedStatement query = conn.prepareStatement("select count(*) from events where " + column + " > ?")) {
+            watermark.bind(query, 1);
+            try (ResultSet resultSet = query.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.metrics;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPatch;
+import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.TimeValue;
+import org.junit.Test;
+import uk.org.kano.appian.LocalDatalakeServer;
+import uk.org.kano.appian.SigningHttpRequestInterceptor;
+import uk.org.kano.appian.ThrottlingRetryStrategy;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Check the metrics recorded for requests to the local datalake.
+ */
+public class DatalakeMetricsTest {
+    private static final String ACCOUNT_NAME = "metricsaccount";
+    private static final String ACCOUNT_KEY = Base64.getEncoder().encodeToString("local datalake metrics key".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void whenRequestsSent_thenMetricsRegistered() throws Exception {
+        try (LocalDatalakeServer server = new LocalDatalakeServer(ACCOUNT_NAME, ACCOUNT_KEY)) {
+            server.createFileSystem("test");
+            server.start();
+
+            SigningHttpRequestInterceptor signer = new SigningHttpRequestInterceptor(ACCOUNT_NAME, ACCOUNT_KEY);
+            try (CloseableHttpClient client = HttpClients.custom()
+                    .addRequestInterceptorLast(signer)
+                    .setDefaultHeaders(signer.getAuthenticationHeaders())
+                    .setRetryStrategy(new ThrottlingRetryStrategy(5, TimeValue.ofMilliseconds(1), TimeValue.ofMilliseconds(5), TimeValue.ofSeconds(10)))
+                    .addExecInterceptorAfter(ChainElement.RETRY.name(), "metrics", new MetricsExecChainHandler(ACCOUNT_NAME))
+                    .build()) {
+                URI file = URI.create(server.getEndpoint() + "/test/metrics.txt");
+                client.execute(new HttpPut(file + "?resource=file"), response -> response.getCode());
+                HttpPatch append = new HttpPatch(file + "?action=append&position=0&flush=true");
+                append.setEntity(new ByteArrayEntity("hello".getBytes(StandardCharsets.UTF_8), ContentType.TEXT_PLAIN, false));
+                client.execute(append, response -> response.getCode());
+
+                server.throttleRequests(2);
+                assertThat(client.execute(new HttpGet(file), response -> EntityUtils.toString(response.getEntity())), equalTo("hello"));
+            }
+        }
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName read = new ObjectName("uk.org.kano.appian:type=Datalake,account=\"" + ACCOUNT_NAME + "\",operation=\"read\"");
+        assertThat(mBeanServer.getAttribute(read, "RequestCount"), equalTo(3L));
+        assertThat(mBeanServer.getAttribute(read, "ErrorCount"), equalTo(2L));
+        assertThat(mBeanServer.getAttribute(read, "Retries"), equalTo(2L));
+        assertThat(mBeanServer.getAttribute(read, "BytesIn"), equalTo(5L));
+        assertThat((Double) mBeanServer.getAttribute(read, "LatencyP99"), greaterThan(0.0));
+
+        OperationMetrics append = DatalakeMetrics.getOperation(ACCOUNT_NAME, "append");
+        assertThat(append.getBytesOut(), equalTo(5L));
+        assertThat(append.getStatusCounts(), hasEntry("200", 1L));
+        assertThat(DatalakeMetrics.getOperation(ACCOUNT_NAME, "createFile").getRequestCount(), equalTo(1L));
+    }
+
+    @Test
+    public void whenUnregistered_thenMBeansAndPoolsDropped() throws Exception {
+        String account = "unregisteraccount";
+        PoolingHttpClientConnectionManager first = new PoolingHttpClientConnectionManager();
+        PoolingHttpClientConnectionManager second = new PoolingHttpClientConnectionManager();
+        AccountMetrics metrics = DatalakeMetrics.getAccount(account);
+        DatalakeMetrics.addConnectionPool(account, first);
+        DatalakeMetrics.addConnectionPool(account, second);
+        DatalakeMetrics.getOperation(account, "read");
+
+        DatalakeMetrics.removeConnectionPool(account, first);
+        assertThat(metrics.getPoolCount(), equalTo(1));
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName accountName = new ObjectName("uk.org.kano.appian:type=Datalake,account=\"" + account + "\"");
+        ObjectName readName = new ObjectName("uk.org.kano.appian:type=Datalake,account=\"" + account + "\",operation=\"read\"");
+        assertThat(mBeanServer.isRegistered(accountName), equalTo(true));
+        assertThat(mBeanServer.isRegistered(readName), equalTo(true));
+
+        DatalakeMetrics.unregisterAll();
+        assertThat(metrics.getPoolCount(), equalTo(0));
+        assertThat(mBeanServer.isRegistered(accountName), equalTo(false));
+        assertThat(mBeanServer.isRegistered(readName), equalTo(false));
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void whenLatenciesRecorded_thenPercentilesClose() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000L);
+
+        assertThat(histogram.getPercentile(0.50), closeTo(500, 125));
+        assertThat(histogram.getPercentile(0.99), closeTo(990, 250));
+        for (int bucket = 0; bucket < 200; bucket++) {
+            assertThat(LatencyHistogram.bucketOf(LatencyHistogram.lowerBoundOf(bucket)), equalTo(bucket));
+            assertThat(LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(bucket)), equalTo(bucket));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.parquet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.org.kano.appian.Compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Parquet export that does not need a datalake.
+ */
+public class ParquetWriterTest {
+    private static final int ROWS = 50000;
+    private static Connection conn;
+
+    @BeforeClass
+    public static void createTable() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:parquet;DB_CLOSE_DELAY=-1", "sa", "sa");
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("create table rows(id bigint, name varchar(255), amount decimal(10,2), created timestamp)");
+            statement.execute("insert into rows select x, 'name ' || x, x / 100.0, dateadd('SECOND', x, timestamp '2020-01-01 00:00:00') from system_range(1, " + ROWS + ")");
+        }
+    }
+
+    @AfterClass
+    public static void dropTable() throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("drop table rows");
+        }
+        conn.close();
+    }
+
+    @Test
+    public void whenWritten_thenFramedWithFooter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParquetWriter writer;
+        try (Statement statement = conn.createStatement(); ResultSet resultSet = statement.executeQuery("select * from rows")) {
+            writer = new ParquetWriter(out, resultSet.getMetaData(), Compression.GZIP, 1048576);
+            writer.writeAll(resultSet);
+            writer.close();
+        }
+        byte[] file = out.toByteArray();
+
+        assertThat(writer.getRowCount(), equalTo((long) ROWS));
+        assertThat(new String(file, 0, 4, StandardCharsets.US_ASCII), equalTo("PAR1"));
+        assertThat(new String(file, file.length - 4, 4, StandardCharsets.US_ASCII), equalTo("PAR1"));
+        assertThat((long) file.length, lessThan(writer.getUncompressedLength()));
+
+        int footerLength = ByteBuffer.wrap(file, file.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        String footer = new String(Arrays.copyOfRange(file, file.length - 8 - footerLength, file.length - 8), StandardCharsets.ISO_8859_1);
+        assertThat(footer, containsString("NAME"));
+        assertThat(footer, containsString("AMOUNT"));
+        assertThat(footer, containsString("appian-datalake-connected-system"));
+    }
+
+    @Test
+    public void whenReadBack_thenRowsMatch() throws Exception {
+        // Small row groups, so that the reader has to move between them
+        Path file = Files.createTempFile("parquet-", ".parquet");
+        try {
+            try (OutputStream out = Files.newOutputStream(file);
+                 Statement statement = conn.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select * from rows order by id")) {
+                ParquetWriter writer = new ParquetWriter(out, resultSet.getMetaData(), Compression.GZIP, 262144);
+                writer.writeAll(resultSet);
+                writer.close();
+            }
+
+            org.apache.hadoop.fs.Path hadoopPath = new org.apache.hadoop.fs.Path(file.toUri());
+            Configuration configuration = new Configuration();
+            try (ParquetFileReader fileReader = ParquetFileReader.open(HadoopInputFile.fromPath(hadoopPath, configuration))) {
+                assertThat(fileReader.getRecordCount(), equalTo((long) ROWS));
+                assertThat(fileReader.getRowGroups().size(), greaterThan(1));
+
+                MessageType schema = fileReader.getFooter().getFileMetaData().getSchema();
+                assertThat(schema.getFieldCount(), equalTo(4));
+                assertThat(schema.getType("ID").asPrimitiveType().getPrimitiveTypeName(), equalTo(PrimitiveType.PrimitiveTypeName.INT64));
+                assertThat(schema.getType("NAME").getLogicalTypeAnnotation(), equalTo(LogicalTypeAnnotation.stringType()));
+                assertThat(schema.getType("AMOUNT").getLogicalTypeAnnotation(), equalTo(LogicalTypeAnnotation.decimalType(2, 10)));
+                assertThat(schema.getType("CREATED").getLogicalTypeAnnotation(), equalTo(LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MICROS)));
+            }
+
+            long rows = 0;
+            try (ParquetReader<Group> reader = ParquetReader.builder(new GroupReadSupport(), hadoopPath).withConf(configuration).build()) {
+                Group row;
+                while (null != (row = reader.read())) {
+                    rows++;
+                    assertThat(row.getLong("ID", 0), equalTo(rows));
+                    if (1 == rows || ROWS == rows) {
+                        assertThat(row.getString("NAME", 0), equalTo("name " + rows));
+                        assertThat(row.getLong("AMOUNT", 0), equalTo(rows));
+                        long created = Timestamp.valueOf("2020-01-01 00:00:00").getTime() + 1000L * rows;
+                        assertThat(row.getLong("CREATED", 0), equalTo(1000L * created));
+                    }
+                }
+            }
+            assertThat(rows, equalTo((long) ROWS));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void whenRowGroupFull_thenWrittenBeforeClose() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Statement statement = conn.createStatement(); ResultSet resultSet = statement.executeQuery("select * from rows")) {
+            ParquetWriter writer = new ParquetWriter(out, resultSet.getMetaData(), Compression.NONE, 65536);
+            writer.writeAll(resultSet);
+
+            // Only the last row group is held
+            int written = out.size();
+            assertThat(written, greaterThan(1048576));
+            writer.close();
+            assertThat(out.size() - written, lessThan(131072));
+        }
+    }
+}
@@ -28,10 +28,9 @@ import uk.org.kano.appian.TestBase;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import static com.jayway.jsonpath.matchers.JsonPathMatchers.hasJsonPath;
-import static com.jayway.jsonpath.matchers.JsonPathMatchers.isJson;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 
@@ -198,7 +197,7 @@ public class FileOperationsTest extends TestBase {
         response = pathList.execute(integrationConfiguration, connectedSystemConfiguration, null);
         assertThat(response.isSuccess(), equalTo(true));
         assertThat(((Map)response.getIntegrationDesignerDiagnostic().getData().get("response")).get("responseCode"), equalTo("200"));
-        assertThat(response.getResult().get("body"), hasJsonPath("$.paths[0].name", equalTo(fileName2)));
+        assertThat(((Map)((List)response.getResult().get("paths")).get(0)).get("name"), equalTo(fileName2));
 
         // Read the contents of the new file and check the length
         integrationConfiguration = getIntegrationConfiguration(pathRead);
@@ -224,6 +223,17 @@ public class FileOperationsTest extends TestBase {
         String base64Body = response.getResult().get("body").toString();
         assertThat(new String(Base64.getDecoder().decode(base64Body), StandardCharsets.UTF_8), equalTo(data1 + data2));
 
+        // Read the contents with a parallel download
+        integrationConfiguration = getIntegrationConfiguration(pathRead);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PARALLEL_DOWNLOAD, true);
+        values.put(Constants.SC_ATTR_PATH, fileName2);
+        setValues(integrationConfiguration, values);
+
+        response = pathRead.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("body").toString(), equalTo(data1 + data2));
+
         // Delete the new file
         integrationConfiguration = getIntegrationConfiguration(pathDelete);
         values = new HashMap<>();
@@ -261,12 +271,118 @@ public class FileOperationsTest extends TestBase {
         response = pathList.execute(integrationConfiguration, connectedSystemConfiguration, null);
         assertThat(response.isSuccess(), equalTo(true));
         assertThat(((Map)response.getIntegrationDesignerDiagnostic().getData().get("response")).get("responseCode"), equalTo("200"));
-        assertThat(response.getResult().get("body"), isJson(
-                allOf(
-                        hasJsonPath("$.paths[*].name", hasSize(greaterThan(0)))
-                )
-                )
-        );
+        assertThat(((List)response.getResult().get("paths")).size(), greaterThan(0));
+    }
+
+    @Test
+    public void binaryUpdate_Success() {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        String base64Data = Base64.getEncoder().encodeToString(data);
+
+        integrationConfiguration = getIntegrationConfiguration(pathCreate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_FILE, Boolean.TRUE);
+        values.put(Constants.SC_ATTR_OVERWRITE, Boolean.TRUE);
+        values.put(Constants.SC_ATTR_MIME_TYPE, "application/octet-stream");
+        setValues(integrationConfiguration, values);
+        response = pathCreate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+
+        // Write the base64 content, which is decoded into the file
+        integrationConfiguration = getIntegrationConfiguration(pathUpdate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_CONTENT, base64Data);
+        values.put(Constants.SC_ATTR_BASE64_BODY, true);
+        values.put(Constants.SC_ATTR_SINGLE_REQUEST, true);
+        setValues(integrationConfiguration, values);
+        response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+
+        // And read it back unchanged
+        integrationConfiguration = getIntegrationConfiguration(pathRead);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_BASE64_BODY, true);
+        setValues(integrationConfiguration, values);
+        response = pathRead.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("body").toString(), equalTo(base64Data));
+
+        // Content that is not base64 is rejected before anything is written
+        integrationConfiguration = getIntegrationConfiguration(pathUpdate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_CONTENT, "not base64!");
+        values.put(Constants.SC_ATTR_BASE64_BODY, true);
+        setValues(integrationConfiguration, values);
+        response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(false));
+    }
+
+    @Test
+    public void parallelDelete_Success() {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        // Create a directory of files and subdirectories
+        for (String child: new String[] {"a.csv", "b.csv", "x/c.csv", "y/d.csv"}) {
+            integrationConfiguration = getIntegrationConfiguration(pathCreate);
+            values = new HashMap<>();
+            values.put(Constants.SC_ATTR_PATH, fileName1 + "/" + child);
+            values.put(Constants.SC_ATTR_FILE, Boolean.TRUE);
+            values.put(Constants.SC_ATTR_OVERWRITE, Boolean.TRUE);
+            setValues(integrationConfiguration, values);
+
+            response = pathCreate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+            assertThat(response.isSuccess(), equalTo(true));
+        }
+
+        // Delete the subdirectories concurrently, then the directory with its files
+        integrationConfiguration = getIntegrationConfiguration(pathDelete);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_RECURSIVE, Boolean.TRUE);
+        values.put(Constants.SC_ATTR_MAX_PARALLEL, 2);
+        setValues(integrationConfiguration, values);
+
+        response = pathDelete.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("subtrees"), equalTo(2));
+        assertThat(response.getResult().get("requests"), equalTo(3));
+
+        integrationConfiguration = getIntegrationConfiguration(pathGetProperties);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        setValues(integrationConfiguration, values);
+
+        response = pathGetProperties.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(Boolean.parseBoolean(response.getResult().get("exists").toString()), equalTo(false));
+    }
+
+    @Test
+    public void whenPositionInvalid_thenError() {
+        for (String position: new String[] {"abc", "-1", "1.5"}) {
+            SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathUpdate);
+            Map<String, Object> values = new HashMap<>();
+            values.put(Constants.SC_ATTR_PATH, fileName1);
+            values.put(Constants.SC_ATTR_SINGLE_REQUEST, true);
+            values.put(Constants.SC_ATTR_POSITION, position);
+            values.put(Constants.SC_ATTR_CONTENT, "data");
+            setValues(integrationConfiguration, values);
+
+            IntegrationResponse response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+            assertThat(response.isSuccess(), equalTo(false));
+            assertThat(response.getError().getTitle(), equalTo("Invalid position"));
+        }
     }
 
     @Test
@@ -298,4 +414,69 @@ public class FileOperationsTest extends TestBase {
         response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
         assertThat(response.isSuccess(), equalTo(false));
     }
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void singleRequestAppend_Success() {
+        SimpleConfiguration integrationConfiguration;
+        Map<String, Object> values;
+        IntegrationResponse response;
+
+        // Create an empty file
+        integrationConfiguration = getIntegrationConfiguration(pathCreate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_FILE, Boolean.TRUE);
+        values.put(Constants.SC_ATTR_OVERWRITE, Boolean.TRUE);
+        values.put(Constants.SC_ATTR_MIME_TYPE, "text/csv;charset=utf8");
+        setValues(integrationConfiguration, values);
+
+        response = pathCreate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+
+        // Append at a known position
+        String data1 = "\"Column 1\"\n\"Example data\"\n";
+        int data1Len = data1.getBytes(StandardCharsets.UTF_8).length;
+        integrationConfiguration = getIntegrationConfiguration(pathUpdate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_OVERWRITE, false);
+        values.put(Constants.SC_ATTR_SINGLE_REQUEST, true);
+        values.put(Constants.SC_ATTR_POSITION, "0");
+        values.put(Constants.SC_ATTR_CONTENT, data1);
+        setValues(integrationConfiguration, values);
+
+        response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        String etag = response.getResult().get("etag").toString();
+
+        // Append against the ETag from the last write
+        String data2 = "\"テストデータ\"\n";
+        int data2Len = data2.getBytes(StandardCharsets.UTF_8).length;
+        integrationConfiguration = getIntegrationConfiguration(pathUpdate);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        values.put(Constants.SC_ATTR_OVERWRITE, false);
+        values.put(Constants.SC_ATTR_SINGLE_REQUEST, true);
+        values.put(Constants.SC_ATTR_ETAG, etag);
+        values.put(Constants.SC_ATTR_CONTENT, data2);
+        setValues(integrationConfiguration, values);
+
+        response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+
+        // A stale ETag is rejected
+        response = pathUpdate.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(false));
+
+        // Check the length
+        integrationConfiguration = getIntegrationConfiguration(pathGetProperties);
+        values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, fileName1);
+        setValues(integrationConfiguration, values);
+
+        response = pathGetProperties.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(Integer.parseInt(response.getResult().get("length").toString()), equalTo(data1Len + data2Len));
+    }
 }
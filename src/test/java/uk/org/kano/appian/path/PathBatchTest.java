@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Tim Hurman
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package uk.org.kano.appian.path;
+
+import com.appian.connectedsystems.simplified.sdk.configuration.SimpleConfiguration;
+import com.appian.connectedsystems.templateframework.sdk.IntegrationResponse;
+import org.junit.Test;
+import uk.org.kano.appian.Constants;
+import uk.org.kano.appian.TestBase;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PathBatchTest extends TestBase {
+    private PathBatch pathBatch = new PathBatch();
+    private PathGetProperties pathGetProperties = new PathGetProperties();
+
+    @Test
+    @SuppressWarnings("rawtypes")
+    public void batchOperations_Success() {
+        IntegrationResponse response;
+
+        response = runBatch("[" +
+                "{\"operation\": \"create\", \"path\": \"batch/a.csv\"}," +
+                "{\"operation\": \"create\", \"path\": \"batch/b.csv\", \"file\": true, \"overwrite\": true, \"properties\": \"source=YmF0Y2g=\"}," +
+                "{\"operation\": \"create\", \"path\": \"batch/c\", \"file\": false}" +
+                "]");
+        assertThat(response.isSuccess(), equalTo(true));
+        // The first create leaves out file and overwrite, so it makes a file
+        assertThat(response.getResult().get("succeeded"), equalTo(3));
+
+        // The second rename fails on its own, without stopping the others
+        response = runBatch("[" +
+                "{\"operation\": \"rename\", \"sourcePath\": \"batch/a.csv\", \"destinationPath\": \"batch/c/a.csv\"}," +
+                "{\"operation\": \"rename\", \"sourcePath\": \"batch/missing.csv\", \"destinationPath\": \"batch/c/missing.csv\"}," +
+                "{\"operation\": \"delete\", \"path\": \"batch/b.csv\"}" +
+                "]");
+        assertThat(response.isSuccess(), equalTo(true));
+        assertThat(response.getResult().get("failed"), equalTo(1));
+        List results = (List) response.getResult().get("results");
+        assertThat(((Map) results.get(0)).get("success"), equalTo(true));
+        assertThat(((Map) results.get(1)).get("success"), equalTo(false));
+        assertThat(((Map) results.get(1)).get("detail"), notNullValue());
+        assertThat(((Map) results.get(2)).get("success"), equalTo(true));
+        assertThat(exists("batch/c/a.csv"), equalTo(true));
+        assertThat(exists("batch/b.csv"), equalTo(false));
+
+        response = runBatch("[{\"operation\": \"delete\", \"path\": \"batch\", \"recursive\": true}]");
+        assertThat(response.getResult().get("succeeded"), equalTo(1));
+    }
+
+    @Test
+    public void invalidOperations_Rejected() {
+        assertThat(parseError("{}"), containsString("array"));
+        assertThat(parseError("[]"), containsString("No operations"));
+        assertThat(parseError("[{\"operation\": \"copy\", \"path\": \"a\"}]"), containsString("create, delete or rename"));
+        assertThat(parseError("[{\"operation\": \"delete\", \"sourcePath\": \"a\"}]"), containsString("does not take sourcePath"));
+        assertThat(parseError("[{\"operation\": \"delete\", \"path\": [\"a\"]}]"), containsString("invalid value for path"));
+    }
+
+    private IntegrationResponse runBatch(String operations) {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathBatch);
+        Map<String, Object> values = new HashMap<>();
+        values.put(Constants.SC_ATTR_OPERATIONS, operations);
+        setValues(integrationConfiguration, values);
+        return pathBatch.execute(integrationConfiguration, connectedSystemConfiguration, null);
+    }
+
+    private boolean exists(String path) {
+        SimpleConfiguration integrationConfiguration = getIntegrationConfiguration(pathGetProperties);
+        Map<String, Object> values = new HashMap<>();
+        values.put(Constants.SC_ATTR_PATH, path);
+        setValues(integrationConfiguration, values);
+        IntegrationResponse response = pathGetProperties.execute(integrationConfiguration, connectedSystemConfiguration, null);
+        return Boolean.parseBoolean(response.getResult().get("exists").toString());
+    }
+
+    private static String parseError(String operations) {
+        try {
+            PathBatch.parseOperations(operations);
+            return "";
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+}